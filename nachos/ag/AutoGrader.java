@@ -46,6 +46,8 @@ public class AutoGrader {
 	kernel =
 	    (Kernel) Lib.constructObject(Config.getString("Kernel.kernel"));
 	kernel.initialize(args);
+	Machine.startupPhase("kernel");
+	Machine.printStartupTimes();
 
 	run();
     }
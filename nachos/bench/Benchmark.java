@@ -0,0 +1,181 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * A microbenchmark: an operation whose throughput is measured in wall-clock
+ * time. A benchmark is run for a number of warmup iterations, whose results
+ * are thrown away, and then for a number of measured iterations. Each
+ * iteration calls <tt>run()</tt> repeatedly until it has lasted at least the
+ * iteration time, and scores the operations done per second.
+ *
+ * @see	nachos.bench.BenchmarkKernel
+ */
+public abstract class Benchmark {
+    /**
+     * Allocate a new benchmark.
+     *
+     * @param	name	the name of the benchmark, such as
+     *			<tt>threads.semaphore</tt>.
+     * @param	unit	the unit of the score, such as <tt>ops/s</tt>.
+     */
+    public Benchmark(String name, String unit) {
+	this.name = name;
+	this.unit = unit;
+    }
+
+    /**
+     * Prepare to run this benchmark. Called once, before the first
+     * iteration.
+     */
+    public void setUp() {
+    }
+
+    /**
+     * Release whatever <tt>setUp()</tt> allocated. Called once, after the last
+     * iteration.
+     */
+    public void tearDown() {
+    }
+
+    /**
+     * Perform a batch of operations. A batch should take well under the
+     * iteration time.
+     *
+     * @return	the number of operations performed.
+     */
+    public abstract long run();
+
+    /**
+     * Run this benchmark.
+     *
+     * @param	warmups		the number of warmup iterations.
+     * @param	iterations	the number of measured iterations.
+     * @param	millis		the least time each iteration takes, in
+     *				milliseconds.
+     */
+    public void measure(int warmups, int iterations, long millis) {
+	Lib.assertTrue(warmups >= 0 && iterations > 0 && millis > 0);
+
+	this.warmups = warmups;
+	this.millis = millis;
+	scores = new double[iterations];
+
+	setUp();
+
+	for (int i=0; i<warmups; i++)
+	    iteration(millis);
+
+	for (int i=0; i<iterations; i++)
+	    scores[i] = iteration(millis);
+
+	tearDown();
+    }
+
+    private double iteration(long millis) {
+	long operations = 0;
+	long start = System.nanoTime();
+	long end = start + millis*1000000;
+
+	long now;
+	do {
+	    operations += run();
+	    now = System.nanoTime();
+	}
+	while (now < end);
+
+	return operations * 1e9 / (now - start);
+    }
+
+    /**
+     * Return the mean score of the measured iterations.
+     *
+     * @return	the mean score.
+     */
+    public double getScore() {
+	double sum = 0;
+	for (int i=0; i<scores.length; i++)
+	    sum += scores[i];
+
+	return sum / scores.length;
+    }
+
+    /**
+     * Return the half-width of a 99.9% confidence interval around the mean
+     * score, using the normal approximation.
+     *
+     * @return	the error of the score, or 0 if there was only one iteration.
+     */
+    public double getScoreError() {
+	if (scores.length < 2)
+	    return 0;
+
+	double mean = getScore(), sum = 0;
+	for (int i=0; i<scores.length; i++)
+	    sum += (scores[i]-mean) * (scores[i]-mean);
+
+	double deviation = Math.sqrt(sum / (scores.length-1));
+	return 3.29 * deviation / Math.sqrt(scores.length);
+    }
+
+    /**
+     * Print the score of this benchmark.
+     */
+    public void print() {
+	System.out.println(name + ": " + format(getScore()) + " +- "
+			   + format(getScoreError()) + " " + unit);
+    }
+
+    private static String format(double value) {
+	return Long.toString(Math.round(value));
+    }
+
+    /**
+     * Write the result of this benchmark as a JSON object, in the format
+     * written by JMH's <tt>-rf json</tt> option.
+     *
+     * @param	out	the buffer to write to.
+     */
+    public void writeJSON(StringBuffer out) {
+	out.append("  {\n");
+	out.append("    \"benchmark\" : \"" + name + "\",\n");
+	out.append("    \"mode\" : \"thrpt\",\n");
+	out.append("    \"threads\" : 1,\n");
+	out.append("    \"forks\" : 1,\n");
+	out.append("    \"warmupIterations\" : " + warmups + ",\n");
+	out.append("    \"warmupTime\" : \"" + millis + " ms\",\n");
+	out.append("    \"measurementIterations\" : " + scores.length + ",\n");
+	out.append("    \"measurementTime\" : \"" + millis + " ms\",\n");
+	out.append("    \"primaryMetric\" : {\n");
+	out.append("      \"score\" : " + getScore() + ",\n");
+	out.append("      \"scoreError\" : " + getScoreError() + ",\n");
+	out.append("      \"scoreUnit\" : \"" + unit + "\",\n");
+	out.append("      \"rawData\" : [ [ ");
+	for (int i=0; i<scores.length; i++)
+	    out.append((i > 0 ? ", " : "") + scores[i]);
+	out.append(" ] ]\n");
+	out.append("    }\n");
+	out.append("  }");
+    }
+
+    /**
+     * Return the name of this benchmark.
+     *
+     * @return	the name of this benchmark.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Privileged access to the machine, given to the benchmarks by
+     * <tt>BenchmarkGrader</tt>.
+     */
+    static Privilege privilege = null;
+
+    private String name, unit;
+    private int warmups;
+    private long millis;
+    private double[] scores;
+}
@@ -0,0 +1,29 @@
+package nachos.bench;
+
+import nachos.ag.*;
+import nachos.security.*;
+
+/**
+ * An autograder that hands its privilege to the benchmarks, so that they can
+ * measure machine internals such as the interrupt controller. Select it with
+ * <tt>-- nachos.bench.BenchmarkGrader</tt>, and run
+ * <tt>BenchmarkKernel</tt> as the kernel.
+ */
+public class BenchmarkGrader extends AutoGrader {
+    /**
+     * Allocate a new benchmark grader.
+     */
+    public BenchmarkGrader() {
+    }
+
+    /**
+     * Give the benchmarks this grader's privilege, and start the kernel.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     * 				machine.
+     */
+    public void start(Privilege privilege) {
+	Benchmark.privilege = privilege;
+	super.start(privilege);
+    }
+}
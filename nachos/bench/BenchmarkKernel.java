@@ -0,0 +1,129 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/**
+ * A kernel that runs the microbenchmarks instead of user programs, prints
+ * their scores, and writes them as JSON, so that a change can be compared
+ * against a baseline. It must be run with <tt>BenchmarkGrader</tt>; see the
+ * <tt>benchmark</tt> target in the Makefile.
+ *
+ * <p>
+ * The run is set by these <tt>nachos.conf</tt> keys:
+ *
+ * <ul>
+ * <li><tt>Benchmark.warmups</tt>, <tt>Benchmark.iterations</tt>, and
+ *     <tt>Benchmark.millis</tt>: the number of warmup and measured
+ *     iterations, and the length of each in milliseconds.
+ * <li><tt>Benchmark.programs</tt>: the user programs to run on the
+ *     processor, separated by commas.
+ * <li><tt>Benchmark.schedulers</tt>: the scheduler classes to measure,
+ *     separated by commas.
+ * <li><tt>Benchmark.filter</tt>: if set, only benchmarks whose names contain
+ *     it are run.
+ * <li><tt>Benchmark.json</tt>: if set, the file to write the results to.
+ * </ul>
+ */
+public class BenchmarkKernel extends UserKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * The benchmarks are the tests, so this method does nothing.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run every benchmark, print its score, and write the results.
+     */
+    public void run() {
+	Lib.assertTrue(Benchmark.privilege != null,
+		       "run with -- nachos.bench.BenchmarkGrader");
+
+	int warmups = Config.getInteger("Benchmark.warmups", 3);
+	int iterations = Config.getInteger("Benchmark.iterations", 5);
+	int millis = Config.getInteger("Benchmark.millis", 500);
+	String filter = Config.getString("Benchmark.filter");
+
+	Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+
+	String[] programs =
+	    split(Config.getString("Benchmark.programs",
+				   "matmult.coff,sort.coff"));
+	for (int i=0; i<programs.length; i++)
+	    benchmarks.add(new ProcessorBenchmark(programs[i]));
+
+	benchmarks.add(new InterruptBenchmark());
+	benchmarks.add(new ContextSwitchBenchmark());
+	benchmarks.add(new SemaphoreBenchmark());
+	benchmarks.add(new LockBenchmark());
+	benchmarks.add(new Condition2Benchmark());
+
+	String[] schedulers =
+	    split(Config.getString("Benchmark.schedulers",
+				   "nachos.threads.RoundRobinScheduler," +
+				   "nachos.threads.PriorityScheduler," +
+				   "nachos.threads.LotteryScheduler"));
+	for (int i=0; i<schedulers.length; i++)
+	    benchmarks.add(new SchedulerBenchmark(schedulers[i]));
+
+	benchmarks.add(new VirtualMemoryBenchmark(false));
+	benchmarks.add(new VirtualMemoryBenchmark(true));
+
+	final StringBuffer json = new StringBuffer("[\n");
+	int count = 0;
+
+	for (Benchmark benchmark : benchmarks) {
+	    if (filter != null && benchmark.getName().indexOf(filter) < 0)
+		continue;
+
+	    benchmark.measure(warmups, iterations, millis);
+	    benchmark.print();
+
+	    if (count++ > 0)
+		json.append(",\n");
+	    benchmark.writeJSON(json);
+	}
+
+	json.append("\n]\n");
+
+	final String fileName = Config.getString("Benchmark.json");
+	if (fileName != null) {
+	    Benchmark.privilege.doPrivileged(new Runnable() {
+		    public void run() { write(fileName, json.toString()); }
+		});
+	}
+    }
+
+    private static String[] split(String list) {
+	StringTokenizer st = new StringTokenizer(list, ", \t");
+	String[] items = new String[st.countTokens()];
+	for (int i=0; i<items.length; i++)
+	    items[i] = st.nextToken();
+
+	return items;
+    }
+
+    private static void write(String fileName, String contents) {
+	try {
+	    PrintStream out = new PrintStream(new FileOutputStream(fileName));
+	    out.print(contents);
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("could not write " + fileName + ": " + e);
+	}
+    }
+}
@@ -0,0 +1,81 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A user process run by a benchmark. Its <tt>exit()</tt> and <tt>halt()</tt>
+ * system calls end only the process, and wake the benchmark waiting for it,
+ * so that the same program can be run again and again without terminating
+ * Nachos.
+ */
+public class BenchmarkProcess extends UserProcess {
+    /**
+     * Allocate a new benchmark process.
+     */
+    public BenchmarkProcess() {
+	super();
+    }
+
+    /**
+     * Wait for this process to call <tt>exit()</tt> or <tt>halt()</tt>.
+     */
+    public void waitForExit() {
+	exited.P();
+    }
+
+    /**
+     * Give this process an address space of the specified number of pages,
+     * without loading a program into it.
+     *
+     * @param	numPages	the number of pages.
+     * @return	<tt>true</tt> if there was enough free physical memory.
+     */
+    public boolean allocate(int numPages) {
+	this.numPages = numPages;
+
+	UserKernel.pl.acquire();
+	if (numPages > UserKernel.pages.size()) {
+	    UserKernel.pl.release();
+	    this.numPages = 0;
+	    return false;
+	}
+
+	pageTable = new TranslationEntry[numPages];
+	for (int i=0; i<numPages; i++) {
+	    pageTable[i] = new TranslationEntry(i, UserKernel.pages.poll(),
+						true, false, false, false);
+	}
+	UserKernel.pl.release();
+
+	return true;
+    }
+
+    /**
+     * Release the address space given by <tt>allocate()</tt>.
+     */
+    public void free() {
+	unloadSections();
+	numPages = 0;
+    }
+
+    /**
+     * Handle a system call, ending the process on <tt>exit()</tt> and
+     * <tt>halt()</tt>.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	if (syscall == syscallHalt || syscall == syscallExit) {
+	    unloadSections();
+	    exited.V();
+	    KThread.finish();
+	    Lib.assertNotReached();
+	}
+
+	return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    private Semaphore exited = new Semaphore(0);
+
+    private static final int syscallHalt = 0, syscallExit = 1;
+}
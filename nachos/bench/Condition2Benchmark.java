@@ -0,0 +1,67 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures two threads taking turns with a <tt>Condition2</tt>: each wakes
+ * the other and sleeps until it is its turn again. Each operation is one
+ * round trip.
+ */
+public class Condition2Benchmark extends Benchmark {
+    /**
+     * Allocate a new condition variable benchmark.
+     */
+    public Condition2Benchmark() {
+	super("threads.condition2", "ops/s");
+    }
+
+    public void setUp() {
+	stop = false;
+	partner = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    while (true) {
+			while (!partnersTurn && !stop)
+			    turn.sleep();
+			if (stop)
+			    break;
+
+			partnersTurn = false;
+			turn.wake();
+		    }
+		    lock.release();
+		}
+	    });
+	partner.setName("condition partner").fork();
+    }
+
+    public void tearDown() {
+	lock.acquire();
+	stop = true;
+	turn.wake();
+	lock.release();
+	partner.join();
+    }
+
+    public long run() {
+	lock.acquire();
+	for (int i=0; i<batch; i++) {
+	    partnersTurn = true;
+	    turn.wake();
+	    while (partnersTurn)
+		turn.sleep();
+	}
+	lock.release();
+
+	return batch;
+    }
+
+    private Lock lock = new Lock();
+    private Condition2 turn = new Condition2(lock);
+    private boolean partnersTurn = false;
+    private KThread partner;
+    private boolean stop;
+
+    private static final int batch = 1000;
+}
@@ -0,0 +1,46 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures context switches between two threads that take turns calling
+ * <tt>KThread.yield()</tt>. Each operation is one switch.
+ */
+public class ContextSwitchBenchmark extends Benchmark {
+    /**
+     * Allocate a new context switch benchmark.
+     */
+    public ContextSwitchBenchmark() {
+	super("threads.contextSwitch", "ops/s");
+    }
+
+    public void setUp() {
+	stop = false;
+	partner = new KThread(new Runnable() {
+		public void run() {
+		    while (!stop)
+			KThread.yield();
+		}
+	    });
+	partner.setName("yield partner").fork();
+    }
+
+    public void tearDown() {
+	stop = true;
+	partner.join();
+    }
+
+    public long run() {
+	// each yield switches to the partner and back
+	for (int i=0; i<batch; i++)
+	    KThread.yield();
+
+	return 2*batch;
+    }
+
+    private KThread partner;
+    private boolean stop;
+
+    private static final int batch = 1000;
+}
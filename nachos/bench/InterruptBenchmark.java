@@ -0,0 +1,34 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * Measures the interrupt controller: each operation schedules an interrupt
+ * and advances the clock by one kernel tick, running any handlers that are
+ * due. Delays are spread so that about 32 interrupts are pending at a time.
+ */
+public class InterruptBenchmark extends Benchmark {
+    /**
+     * Allocate a new interrupt benchmark.
+     */
+    public InterruptBenchmark() {
+	super("machine.interrupt", "ops/s");
+    }
+
+    public long run() {
+	for (int i=0; i<batch; i++) {
+	    privilege.interrupt.schedule(1 + (i%64)*Stats.KernelTick,
+					 "benchmark", handler);
+	    privilege.interrupt.tick(true);
+	}
+
+	return batch;
+    }
+
+    private Runnable handler = new Runnable() {
+	    public void run() { handled++; }
+	};
+    private long handled = 0;
+
+    private static final int batch = 1000;
+}
@@ -0,0 +1,60 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures handing a contended lock between two threads. Each thread yields
+ * while holding the lock, so the other is always waiting for it when it is
+ * released. Each operation is one <tt>acquire()</tt> and <tt>release()</tt>.
+ */
+public class LockBenchmark extends Benchmark {
+    /**
+     * Allocate a new lock benchmark.
+     */
+    public LockBenchmark() {
+	super("threads.lock", "ops/s");
+    }
+
+    public void setUp() {
+	stop = false;
+	partner = new KThread(new Runnable() {
+		public void run() {
+		    while (true) {
+			lock.acquire();
+			if (stop) {
+			    lock.release();
+			    break;
+			}
+			KThread.yield();
+			lock.release();
+		    }
+		}
+	    });
+	partner.setName("lock partner").fork();
+    }
+
+    public void tearDown() {
+	lock.acquire();
+	stop = true;
+	lock.release();
+	partner.join();
+    }
+
+    public long run() {
+	for (int i=0; i<batch; i++) {
+	    lock.acquire();
+	    KThread.yield();
+	    lock.release();
+	}
+
+	// the partner took the lock as often as we did
+	return 2*batch;
+    }
+
+    private Lock lock = new Lock();
+    private KThread partner;
+    private boolean stop;
+
+    private static final int batch = 1000;
+}
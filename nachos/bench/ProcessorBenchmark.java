@@ -0,0 +1,37 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * Measures the simulated processor by running a user program to completion.
+ * The score is the number of user instructions executed per second.
+ */
+public class ProcessorBenchmark extends Benchmark {
+    /**
+     * Allocate a new benchmark running the specified program.
+     *
+     * @param	program	the name of the program, such as
+     *			<tt>matmult.coff</tt>.
+     */
+    public ProcessorBenchmark(String program) {
+	super("machine.processor." +
+	      (program.endsWith(".coff")
+	       ? program.substring(0, program.length()-5) : program),
+	      "instructions/s");
+
+	this.program = program;
+    }
+
+    public long run() {
+	long userTicks = privilege.stats.userTicks;
+
+	BenchmarkProcess process = new BenchmarkProcess();
+	Lib.assertTrue(process.execute(program, new String[] { program }),
+		       "could not run " + program);
+	process.waitForExit();
+
+	return (privilege.stats.userTicks - userTicks) / Stats.UserTick;
+    }
+
+    private String program;
+}
@@ -0,0 +1,59 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures a scheduler's thread queues. The queue is kept holding
+ * <tt>numThreads</tt> threads with a spread of priorities; each operation
+ * takes the next thread with <tt>nextThread()</tt> and puts it back with
+ * <tt>waitForAccess()</tt>.
+ */
+public class SchedulerBenchmark extends Benchmark {
+    /**
+     * Allocate a new benchmark for the specified scheduler.
+     *
+     * @param	schedulerName	the name of the scheduler class.
+     */
+    public SchedulerBenchmark(String schedulerName) {
+	super("threads.scheduler." +
+	      schedulerName.substring(schedulerName.lastIndexOf('.')+1),
+	      "ops/s");
+
+	this.schedulerName = schedulerName;
+    }
+
+    public void setUp() {
+	scheduler = (Scheduler) Lib.constructObject(schedulerName);
+	queue = scheduler.newThreadQueue(false);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<numThreads; i++) {
+	    KThread thread = new KThread().setName("queued " + i);
+	    // schedulers without priorities ignore them
+	    scheduler.setPriority(thread, 1 + i%7);
+	    queue.waitForAccess(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    public long run() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<batch; i++)
+	    queue.waitForAccess(queue.nextThread());
+
+	Machine.interrupt().restore(intStatus);
+
+	return batch;
+    }
+
+    private String schedulerName;
+    private Scheduler scheduler;
+    private ThreadQueue queue;
+
+    private static final int numThreads = 32;
+    private static final int batch = 1000;
+}
@@ -0,0 +1,54 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures handing control between two threads with a pair of semaphores.
+ * Each operation is one round trip: a <tt>V()</tt> and a <tt>P()</tt> on each
+ * side.
+ */
+public class SemaphoreBenchmark extends Benchmark {
+    /**
+     * Allocate a new semaphore benchmark.
+     */
+    public SemaphoreBenchmark() {
+	super("threads.semaphore", "ops/s");
+    }
+
+    public void setUp() {
+	stop = false;
+	partner = new KThread(new Runnable() {
+		public void run() {
+		    while (true) {
+			ping.P();
+			if (stop)
+			    break;
+			pong.V();
+		    }
+		}
+	    });
+	partner.setName("semaphore partner").fork();
+    }
+
+    public void tearDown() {
+	stop = true;
+	ping.V();
+	partner.join();
+    }
+
+    public long run() {
+	for (int i=0; i<batch; i++) {
+	    ping.V();
+	    pong.P();
+	}
+
+	return batch;
+    }
+
+    private Semaphore ping = new Semaphore(0), pong = new Semaphore(0);
+    private KThread partner;
+    private boolean stop;
+
+    private static final int batch = 1000;
+}
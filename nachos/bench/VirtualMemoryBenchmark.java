@@ -0,0 +1,59 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * Measures copying between kernel buffers and a process's virtual memory.
+ * Each operation reads or writes <tt>copySize</tt> bytes starting part way
+ * into a page, so that every copy spans several pages. The score is the
+ * number of bytes copied per second.
+ */
+public class VirtualMemoryBenchmark extends Benchmark {
+    /**
+     * Allocate a new virtual memory benchmark.
+     *
+     * @param	write	<tt>true</tt> to measure
+     *			<tt>writeVirtualMemory()</tt>, <tt>false</tt> to
+     *			measure <tt>readVirtualMemory()</tt>.
+     */
+    public VirtualMemoryBenchmark(boolean write) {
+	super(write ? "userprog.writeVirtualMemory"
+	      : "userprog.readVirtualMemory", "bytes/s");
+
+	this.write = write;
+    }
+
+    public void setUp() {
+	process = new BenchmarkProcess();
+	Lib.assertTrue(process.allocate(numPages),
+		       "not enough physical memory");
+    }
+
+    public void tearDown() {
+	process.free();
+    }
+
+    public long run() {
+	long bytes = 0;
+	int span = numPages*Processor.pageSize - copySize;
+
+	for (int i=0; i<batch; i++) {
+	    int vaddr = (i*(Processor.pageSize+100)) % span;
+
+	    if (write)
+		bytes += process.writeVirtualMemory(vaddr, buffer);
+	    else
+		bytes += process.readVirtualMemory(vaddr, buffer);
+	}
+
+	return bytes;
+    }
+
+    private boolean write;
+    private BenchmarkProcess process;
+    private byte[] buffer = new byte[copySize];
+
+    private static final int numPages = 16;
+    private static final int copySize = 4000;
+    private static final int batch = 100;
+}
@@ -0,0 +1,268 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a batch of independent Nachos machines at once, one per host core,
+ * for sweeps over seeds, configurations, and test programs. Run it with
+ *
+ * <pre>java nachos.machine.BatchRunner [-j <i>jobs</i>] [-o <i>dir</i>]
+ *	[-J <i>jvm option</i>]... <i>batch file</i></pre>
+ *
+ * <p>
+ * Each line of the batch file describes one run: the directory to run in,
+ * the configuration file, the random seed, and any further Nachos
+ * arguments, separated by white space. Blank lines and lines starting with
+ * <tt>#</tt> are ignored. For example,
+ *
+ * <pre>
+ * proj2 nachos.conf 1 -x sort.coff
+ * proj2 nachos.conf 2 -x sort.coff
+ * proj1 lottery.conf 7
+ * </pre>
+ *
+ * <p>
+ * A pool of <i>jobs</i> workers (by default, the number of host processors)
+ * takes the runs in order. Every machine is separate, with its own
+ * configuration, seed, and program. The output of run <i>n</i> goes to
+ * <tt>run<i>n</i>.out</tt> in the output directory (by default, the current
+ * one), and its console reads no input, so interactive runs should use
+ * <tt>Machine.scriptedConsole</tt>. When all the runs are done, a summary
+ * gives the exit status, simulated ticks, and wall time of each.
+ *
+ * <p>
+ * The machine is a set of static classes, and Nachos uses the JVM's
+ * security manager, <tt>System.exit()</tt>, and standard streams, so each
+ * machine runs in a JVM of its own. The <tt>Machine.checkCache</tt> and
+ * <tt>Machine.lazyDevices</tt> keys make those JVMs start faster.
+ */
+public final class BatchRunner {
+    private BatchRunner() {
+    }
+
+    /**
+     * Run a batch of machines, and print a summary of the runs.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+	int jobs = Runtime.getRuntime().availableProcessors();
+	File outputDirectory = new File(".");
+	ArrayList<String> jvmOptions = new ArrayList<String>();
+	String batchName = null;
+
+	for (int i=0; i<args.length; ) {
+	    String arg = args[i++];
+
+	    if (arg.equals("-j") && i < args.length)
+		jobs = Integer.parseInt(args[i++]);
+	    else if (arg.equals("-o") && i < args.length)
+		outputDirectory = new File(args[i++]);
+	    else if (arg.equals("-J") && i < args.length)
+		jvmOptions.add(args[i++]);
+	    else if (batchName == null && !arg.startsWith("-"))
+		batchName = arg;
+	    else
+		usage();
+	}
+
+	if (batchName == null || jobs < 1)
+	    usage();
+
+	ArrayList<Run> runs = readBatch(batchName, outputDirectory, jvmOptions);
+	outputDirectory.mkdirs();
+
+	long start = System.nanoTime();
+
+	ForkJoinPool pool = new ForkJoinPool(jobs);
+	List<Future<Run>> results = pool.invokeAll(runs);
+	pool.shutdown();
+
+	long elapsed = System.nanoTime() - start;
+
+	int failed = 0;
+	long busy = 0;
+
+	System.out.println("run\tstatus\tticks\twall ms\tcommand");
+	for (Future<Run> result : results) {
+	    Run run;
+	    try {
+		run = result.get();
+	    }
+	    catch (InterruptedException e) {
+		continue;
+	    }
+	    catch (ExecutionException e) {
+		e.getCause().printStackTrace();
+		failed++;
+		continue;
+	    }
+
+	    if (run.status != 0)
+		failed++;
+	    busy += run.wallTime;
+
+	    System.out.println(run.number + "\t" + run.status + "\t"
+			       + (run.ticks >= 0 ? "" + run.ticks : "-") + "\t"
+			       + run.wallTime/1000000 + "\t" + run.line);
+	}
+
+	System.out.println(runs.size() + " runs, " + failed + " failed, "
+			   + elapsed/1000000 + " ms on " + jobs + " workers ("
+			   + busy/1000000 + " ms of runs)");
+
+	System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.machine.BatchRunner [-j <jobs>]"
+			   + " [-o <dir>] [-J <jvm option>]... <batch file>");
+	System.exit(1);
+    }
+
+    private static ArrayList<Run> readBatch(String batchName,
+					    File outputDirectory,
+					    ArrayList<String> jvmOptions)
+	throws IOException {
+	ArrayList<Run> runs = new ArrayList<Run>();
+	BufferedReader in = new BufferedReader(new FileReader(batchName));
+
+	String line;
+	for (int lineNumber=1; (line = in.readLine()) != null; lineNumber++) {
+	    line = line.trim();
+	    if (line.length() == 0 || line.startsWith("#"))
+		continue;
+
+	    StringTokenizer st = new StringTokenizer(line);
+	    if (st.countTokens() < 3) {
+		System.err.println(batchName + ":" + lineNumber
+				   + ": expected <directory> <config> <seed>");
+		System.exit(1);
+	    }
+
+	    File directory = new File(st.nextToken());
+	    ArrayList<String> command = new ArrayList<String>();
+
+	    command.add(new File(new File(System.getProperty("java.home"),
+					  "bin"), "java").getPath());
+	    command.addAll(jvmOptions);
+	    command.add("-classpath");
+	    command.add(classPath());
+	    command.add("nachos.machine.Machine");
+	    command.add("-[]");
+	    command.add(st.nextToken());
+	    command.add("-s");
+	    command.add(st.nextToken());
+	    while (st.hasMoreTokens())
+		command.add(st.nextToken());
+
+	    int number = runs.size() + 1;
+	    File output = new File(outputDirectory, "run" + number + ".out");
+	    runs.add(new Run(number, line, directory, command, output));
+	}
+
+	in.close();
+	return runs;
+    }
+
+    /**
+     * Return the class path of this JVM, with each entry made absolute so it
+     * works from the directory of any run.
+     */
+    private static String classPath() {
+	StringTokenizer st = new StringTokenizer(
+	    System.getProperty("java.class.path"), File.pathSeparator);
+
+	String path = "";
+	while (st.hasMoreTokens()) {
+	    if (path.length() > 0)
+		path += File.pathSeparator;
+	    path += new File(st.nextToken()).getAbsolutePath();
+	}
+
+	return path;
+    }
+
+    /**
+     * One machine in the batch.
+     */
+    private static final class Run implements Callable<Run> {
+	Run(int number, String line, File directory, List<String> command,
+	    File output) {
+	    this.number = number;
+	    this.line = line;
+	    this.directory = directory;
+	    this.command = command;
+	    this.output = output;
+	}
+
+	public Run call() throws IOException, InterruptedException {
+	    ProcessBuilder builder = new ProcessBuilder(command);
+	    builder.directory(directory);
+	    builder.redirectErrorStream(true);
+	    builder.redirectOutput(output);
+	    builder.redirectInput(ProcessBuilder.Redirect.from(nullFile()));
+
+	    long start = System.nanoTime();
+	    status = builder.start().waitFor();
+	    wallTime = System.nanoTime() - start;
+
+	    ticks = readTicks();
+	    return this;
+	}
+
+	/**
+	 * Return the total ticks from the statistics the machine printed when
+	 * it halted, or -1 if it did not print them.
+	 */
+	private long readTicks() throws IOException {
+	    BufferedReader in = new BufferedReader(new FileReader(output));
+	    long result = -1;
+
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		if (line.startsWith(ticksPrefix)) {
+		    int end = line.indexOf(',');
+		    try {
+			result = Long.parseLong(line.substring(
+			    ticksPrefix.length(), end).trim());
+		    }
+		    catch (RuntimeException e) {
+		    }
+		}
+	    }
+
+	    in.close();
+	    return result;
+	}
+
+	private static File nullFile() {
+	    boolean windows =
+		System.getProperty("os.name").startsWith("Windows");
+	    return new File(windows ? "NUL" : "/dev/null");
+	}
+
+	int number;
+	String line;
+	private File directory, output;
+	private List<String> command;
+
+	int status;
+	long wallTime;
+	long ticks;
+    }
+
+    private static final String ticksPrefix = "Ticks: total";
+}
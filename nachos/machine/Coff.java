@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A COFF (common object file format) loader.
@@ -32,6 +33,10 @@ public class Coff {
      * complete. Do not supply a file backed by a simulated cache (the primary
      * purpose of this restriction is to prevent sections from being loaded
      * instantaneously while handling page faults).
+     * <li>If the <tt>nachos.conf</tt> key <tt>Coff.mapExecutables</tt> is
+     * <tt>true</tt>, executables are trusted to be loaded in bulk: the file
+     * is mapped once, at the cost of one sequential read, and its pages are
+     * then copied from the mapping without further simulated delay.
      * </ol>
      *
      * @param	file	the file containing the executable.
@@ -89,6 +94,12 @@ public class Coff {
 		    throw e;
 		}
 	    }
+
+	    if (Config.getBoolean("Coff.mapExecutables", false)) {
+		contents = file.map();
+		if (contents == null)
+		    Lib.debug(dbgCoff, "\tmapping failed, reading by page");
+	    }
 	}
     }
 
@@ -135,10 +146,17 @@ public class Coff {
 	file.close();
 
 	sections = null;
+	contents = null;
     }
 
     private OpenFile file;
 
+    /**
+     * The mapped contents of the executable, or <tt>null</tt> if sections
+     * must be read through <tt>file</tt>.
+     */
+    ByteBuffer contents = null;
+
     /** The virtual address of the first instruction of the program. */
     protected int entryPoint;
     /** The sections in this COFF executable. */
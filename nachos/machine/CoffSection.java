@@ -128,6 +128,15 @@ public class CoffSection {
 	return name;
     }
 
+    /**
+     * Test whether this section contains code.
+     *
+     * @return	<tt>true</tt> if this section contains code.
+     */
+    public boolean isExecutable() {
+	return executable;
+    }
+
     /**
      * Test whether this section is read-only.
      *
@@ -174,32 +183,56 @@ public class CoffSection {
      * @param	ppn	the physical page to load into.
      */
     public void loadPage(int spn, int ppn) {
+	loadPages(spn, ppn, 1);
+    }
+
+    /**
+     * Load a run of consecutive pages from this segment into consecutive
+     * physical pages. If the executable is mapped, the whole run is copied
+     * at once; otherwise each page is loaded with <tt>loadPage()</tt>.
+     *
+     * @param	spn	the first page number within this segment.
+     * @param	ppn	the first physical page to load into.
+     * @param	count	the number of pages to load.
+     */
+    public void loadPages(int spn, int ppn, int count) {
 	Lib.assertTrue(file != null);
 
-	Lib.assertTrue(spn>=0 && spn<numPages);
-	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+	Lib.assertTrue(count > 0 && spn>=0 && spn+count<=numPages);
+	Lib.assertTrue(ppn>=0 &&
+		       ppn+count<=Machine.processor().getNumPhysPages());
+
+	if (count > 1 && coff.contents == null) {
+	    for (int i=0; i<count; i++)
+		loadPage(spn+i, ppn+i);
+	    return;
+	}
 
 	int pageSize = Processor.pageSize;
 	byte[] memory = Machine.processor().getMemory();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
+	int length = count*pageSize;
 	int initlen;
 
 	if (!initialized)
 	    initlen = 0;
-	else if (spn == numPages-1)
-	    /** initlen = size % pageSize; 
-	     *  Bug identified by Steven Schlansker 3/20/08
-	     *  Bug fix by Michael Rauser
-	     */
-	    initlen = (size==pageSize) ? pageSize : (size%pageSize);
+	else if (spn+count == numPages)
+	    initlen = size - spn*pageSize;
 	else
-	    initlen = pageSize;
+	    initlen = length;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (initlen > 0) {
+	    if (coff.contents != null) {
+		coff.contents.position(faddr);
+		coff.contents.get(memory, paddr, initlen);
+	    }
+	    else {
+		Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    }
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	Arrays.fill(memory, paddr+initlen, paddr+length, (byte) 0);
     }
 
     /** The COFF object to which this section belongs. */
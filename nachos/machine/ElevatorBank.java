@@ -7,11 +7,27 @@ import nachos.threads.KThread;
 import nachos.threads.Semaphore;
 
 import java.util.Vector;
-import java.util.LinkedList;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 
 /**
  * A bank of elevators.
+ *
+ * <p>
+ * The simulation is driven by events. An elevator does not report each floor
+ * it passes: when it starts moving, the bank computes when it will reach its
+ * destination and schedules a single interrupt for that time, and its floor
+ * in between is computed from the time it left. Rider events go only to the
+ * riders in the elevator or waiting on the floor. A simulation therefore
+ * costs time in proportion to its events, not to its floors, riders, or
+ * elapsed ticks.
+ *
+ * <p>
+ * Riders normally run in threads of their own. Riders added with
+ * <tt>addEventRider()</tt> instead run entirely from their interrupt
+ * handlers, so a simulation can have thousands of them; see
+ * <tt>ElevatorBenchmark</tt>. The GUI is created only by
+ * <tt>enableGui()</tt>, so a bank without it never loads AWT.
  */
 public final class ElevatorBank implements Runnable {
     /** Indicates an elevator intends to move down. */
@@ -28,8 +44,6 @@ public final class ElevatorBank implements Runnable {
      *				machine.
      */
     public ElevatorBank(Privilege privilege) {
-	System.out.print(" elevators");
-	
 	this.privilege = privilege;
 
 	simulationStarted = false;
@@ -56,11 +70,14 @@ public final class ElevatorBank implements Runnable {
 	
 	elevators = new ElevatorState[numElevators];
 	for (int i=0; i<numElevators; i++)
-	    elevators[i] = new ElevatorState(0);
+	    elevators[i] = new ElevatorState(i, 0);
 
 	numRiders = 0;
 	ridersVector = new Vector<RiderControls>();
 
+	waitTimes = new Histogram("Elevator wait");
+	rideTimes = new Histogram("Elevator ride");
+
 	enableGui = false;
 	gui = null;
     }
@@ -85,6 +102,34 @@ public final class ElevatorBank implements Runnable {
 	return controls;
     }
 
+    /**
+     * Add a rider that runs without a thread of its own, and that arrives on
+     * its floor some time after the simulation starts. The rider's
+     * <tt>run()</tt> method is called from an interrupt handler when it
+     * arrives, and must return; from then on the rider works only from its
+     * interrupt handler. Its call to <tt>controls.finish()</tt> returns. This
+     * method must not be called after <tt>run()</tt> is called.
+     *
+     * @param	rider	the rider to add.
+     * @param	floor	the floor the rider will start on.
+     * @param	stops	the array to pass to the rider's <tt>initialize()</tt>
+     *			method.
+     * @param	delay	the number of ticks after the simulation starts that
+     *			the rider arrives.
+     * @return	the controls that will be given to the rider.
+     */
+    public RiderControls addEventRider(RiderInterface rider, int floor,
+				       int[] stops, long delay) {
+	Lib.assertTrue(!simulationStarted && delay >= 0);
+
+	RiderState controls = new RiderState(rider, floor, stops);
+	controls.threaded = false;
+	controls.delay = delay;
+	ridersVector.addElement(controls);
+	numRiders++;
+	return controls;
+    }
+
     /**
      * Create a GUI for this elevator bank.
      */
@@ -107,6 +152,14 @@ public final class ElevatorBank implements Runnable {
 	riders = new RiderState[numRiders];
 	ridersVector.toArray(riders);
 
+	waiting = new ArrayList<ArrayList<RiderState>>(numFloors);
+	for (int floor=0; floor<numFloors; floor++)
+	    waiting.add(new ArrayList<RiderState>());
+	for (int i=0; i<numRiders; i++) {
+	    if (riders[i].threaded)
+		waiting.get(riders[i].floor).add(riders[i]);
+	}
+
 	if (enableGui) {
 	    privilege.doPrivileged(new Runnable() {
 		public void run() { initGui(); }
@@ -128,6 +181,25 @@ public final class ElevatorBank implements Runnable {
 	simulationStarted = false;
     }
 
+    /**
+     * Return the times riders in the last simulation spent waiting for an
+     * elevator, from first pressing a hall button to getting on.
+     *
+     * @return	the wait times, in ticks.
+     */
+    public Histogram getWaitTimes() {
+	return waitTimes;
+    }
+
+    /**
+     * Return the times riders in the last simulation spent in an elevator.
+     *
+     * @return	the ride times, in ticks.
+     */
+    public Histogram getRideTimes() {
+	return rideTimes;
+    }
+
     private void initGui() {
 	int[] numRidersPerFloor = new int[numFloors];
 	for (int floor=0; floor<numFloors; floor++)
@@ -140,10 +212,15 @@ public final class ElevatorBank implements Runnable {
     }	
 
     /**
-     * Tests whether this module is working.
+     * Tests whether this module is working. If the <tt>nachos.conf</tt> key
+     * <tt>ElevatorBenchmark.riders</tt> is set, also runs an
+     * <tt>ElevatorBenchmark</tt>.
      */
     public static void selfTest() {
 	new ElevatorTest().run();
+
+	if (Config.getString("ElevatorBenchmark.riders") != null)
+	    new ElevatorBenchmark().run();
     }
 
     void postRiderEvent(int event, int floor, int elevator) {
@@ -154,14 +231,14 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	RiderEvent e = new RiderEvent(event, floor, elevator, direction);
-	for (int i=0; i<numRiders; i++) {
-	    RiderState rider = riders[i];
-	    if ((rider.inElevator && rider.elevator == e.elevator) ||
-		(!rider.inElevator && rider.floor == e.floor)) {
-		rider.events.add(e);
-		rider.schedule(1);
-	    }
+
+	// only riders in the elevator or waiting on the floor see the event
+	if (elevator != -1) {
+	    for (RiderState rider : elevators[elevator].riders)
+		rider.post(e);
 	}
+	for (RiderState rider : waiting.get(floor))
+	    rider.post(e);
     }
 
     private class ElevatorManager implements ElevatorControls {
@@ -211,16 +288,12 @@ public final class ElevatorBank implements Runnable {
 	    Lib.assertTrue(floor >= 0 && floor < numFloors);
 	    Lib.assertTrue(elevator >= 0 && elevator < numElevators);
 
-	    if (!elevators[elevator].moveTo(floor))
-		return false;
-	    
-	    schedule(Stats.ElevatorTicks);
-	    return true;
+	    return elevators[elevator].moveTo(floor);
 	}
 	
 	public int getFloor(int elevator) {
 	    Lib.assertTrue(elevator >= 0 && elevator < numElevators);
-	    return elevators[elevator].floor;
+	    return elevators[elevator].getFloor();
 	}
 	
 	public void setDirectionDisplay(int elevator, int direction) {
@@ -254,10 +327,7 @@ public final class ElevatorBank implements Runnable {
 	}
 	
 	public ElevatorEvent getNextEvent() {
-	    if (events.isEmpty())
-		return null;
-	    else
-		return (ElevatorEvent) events.removeFirst();
+	    return events.poll();
 	}
 
 	void schedule(int when) {
@@ -272,24 +342,6 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	void interrupt() {
-	    for (int i=0; i<numElevators; i++) {
-		if (elevators[i].atNextFloor()) {
-		    if (gui != null)
-			gui.elevatorMoved(elevators[i].floor, i);
-		    
-		    if (elevators[i].atDestination()) {
-			postEvent(ElevatorEvent.eventElevatorArrived,
-				  elevators[i].destination, i, false);
-		    }
-		    else {
-			elevators[i].nextETA += Stats.ElevatorTicks;
-			privilege.interrupt.schedule(Stats.ElevatorTicks,
-						   "elevator",
-						   interrupt);
-		    }
-		}
-	    }
-	    
 	    if (!finished && !events.isEmpty() && handler != null)
 		handler.run();
 	}
@@ -314,15 +366,19 @@ public final class ElevatorBank implements Runnable {
 	KThread thread;
 
 	Runnable handler = null;
-	LinkedList<ElevatorEvent> events = new LinkedList<ElevatorEvent>();
+	ArrayDeque<ElevatorEvent> events = new ArrayDeque<ElevatorEvent>();
 	Semaphore done = new Semaphore(0);
 	boolean finished = false;
     }
 
     private class ElevatorState {
-	ElevatorState(int floor) {
+	ElevatorState(int index, int floor) {
+	    this.index = index;
 	    this.floor = floor;
 	    destination = floor;
+
+	    arrival = new Runnable() { public void run() { arrive(); }};
+	    step = new Runnable() { public void run() { step(); }};
 	}
 
 	int openDoors() {
@@ -337,6 +393,21 @@ public final class ElevatorBank implements Runnable {
 	    return floor;
 	}
 
+	/**
+	 * Return the floor this elevator is at, or has most recently passed
+	 * if it is moving.
+	 */
+	int getFloor() {
+	    if (!moving)
+		return floor;
+
+	    long passed = (Machine.timer().getTime() - departTime) /
+		Stats.ElevatorTicks;
+	    int moved = (int) Math.min(passed, Math.abs(destination - floor));
+
+	    return (destination > floor) ? floor + moved : floor - moved;
+	}
+
 	boolean moveTo(int newDestination) {
 	    Lib.assertTrue(!doorsOpen);
 
@@ -346,25 +417,86 @@ public final class ElevatorBank implements Runnable {
 		    return false;
 		
 		destination = newDestination;
-		nextETA = Machine.timer().getTime() + Stats.ElevatorTicks;
+		departTime = Machine.timer().getTime();
 
 		moving = true;
+		scheduleArrival();
+
+		if (gui != null && !stepping) {
+		    stepping = true;
+		    privilege.interrupt.schedule(Stats.ElevatorTicks,
+						 "elevator", step);
+		}
 		return true;
 	    }
 	    else {
-		// moving, shouldn't be at destination
-		Lib.assertTrue(floor != destination);
+		int current = getFloor();
+
+		// too late to change the destination
+		if (current == destination)
+		    return false;
 
 		// make sure it's ok to stop
-		if ((destination > floor && newDestination <= floor) ||
-		    (destination < floor && newDestination >= floor))
+		if ((destination > floor && newDestination <= current) ||
+		    (destination < floor && newDestination >= current))
 		    return false;
 
 		destination = newDestination;
+		scheduleArrival();
 		return true;		
 	    }
 	}
 
+	/**
+	 * Schedule an interrupt for the time this elevator reaches its
+	 * destination. An interrupt scheduled for an earlier destination
+	 * finds the elevator still moving, and is ignored.
+	 */
+	private void scheduleArrival() {
+	    arrivalTime = departTime +
+		(long) Math.abs(destination - floor) * Stats.ElevatorTicks;
+
+	    privilege.interrupt.schedule(arrivalTime -
+					 Machine.timer().getTime(),
+					 "elevator", arrival);
+	}
+
+	private void arrive() {
+	    if (!moving || Machine.timer().getTime() < arrivalTime)
+		return;
+
+	    floor = destination;
+	    moving = false;
+
+	    if (gui != null && shownFloor != floor) {
+		shownFloor = floor;
+		gui.elevatorMoved(floor, index);
+	    }
+
+	    manager.postEvent(ElevatorEvent.eventElevatorArrived, floor, index,
+			      false);
+	    manager.interrupt();
+	}
+
+	/**
+	 * Show each floor the elevator passes in the GUI. Only runs while
+	 * there is a GUI.
+	 */
+	private void step() {
+	    if (!moving) {
+		stepping = false;
+		return;
+	    }
+
+	    int current = getFloor();
+	    if (current != shownFloor) {
+		shownFloor = current;
+		gui.elevatorMoved(current, index);
+	    }
+
+	    privilege.interrupt.schedule(Stats.ElevatorTicks, "elevator", step);
+	}
+
 	boolean enter(RiderState rider, int onFloor) {
 	    Lib.assertTrue(!riders.contains(rider));
 	    
@@ -386,37 +518,15 @@ public final class ElevatorBank implements Runnable {
 	    return true;
 	}
 
-	boolean atNextFloor() {
-	    if (!moving || Machine.timer().getTime() < nextETA)
-		return false;
-
-	    Lib.assertTrue(destination != floor);
-	    if (destination > floor)
-		floor++;
-	    else
-		floor--;
-
-	    for (Iterator i=riders.iterator(); i.hasNext(); ) {
-		RiderState rider = (RiderState) i.next();
-
-		rider.floor = floor;
-	    }
-
-	    return true;
-	}
-
-	boolean atDestination() {
-	    if (!moving || destination != floor)
-		return false;
-
-	    moving = false;
-	    return true;
-	}
-
         static final int maxRiders = 4;
 
+	int index;
+	/** The floor this elevator is at, or left from if it is moving. */
 	int floor, destination;
-	long nextETA;
+	long departTime, arrivalTime;
+	Runnable arrival, step;
+	boolean stepping = false;
+	int shownFloor = 0;
 	
 	boolean doorsOpen = false, moving = false;
 	int direction = dirNeither;
@@ -445,7 +555,10 @@ public final class ElevatorBank implements Runnable {
 	}
 	
 	public int getFloor() {
-	    return floor;
+	    if (inElevator)
+		return elevators[elevator].getFloor();
+	    else
+		return floor;
 	}
 
 	public int[] getFloors() {
@@ -462,10 +575,7 @@ public final class ElevatorBank implements Runnable {
 	}
 	
 	public RiderEvent getNextEvent() {
-	    if (events.isEmpty())
-		return null;
-	    else
-		return (RiderEvent) events.removeFirst();
+	    return events.poll();
 	}
 
 	public boolean pressDirectionButton(boolean up) {
@@ -477,6 +587,7 @@ public final class ElevatorBank implements Runnable {
 	
 	public boolean pressUpButton() {
 	    Lib.assertTrue(!inElevator && floor < numFloors-1);
+	    startWaiting();
 
 	    for (int elevator=0; elevator<numElevators; elevator++) {
 		if (elevators[elevator].doorsOpen &&
@@ -496,6 +607,7 @@ public final class ElevatorBank implements Runnable {
 	
 	public boolean pressDownButton() {
 	    Lib.assertTrue(!inElevator && floor > 0);
+	    startWaiting();
 	    
 	    for (int elevator=0; elevator<numElevators; elevator++) {
 		if (elevators[elevator].doorsOpen &&
@@ -519,6 +631,14 @@ public final class ElevatorBank implements Runnable {
 	    if (!elevators[elevator].enter(this, floor))
 		return false;
 
+	    waiting.get(floor).remove(this);
+
+	    long now = Machine.timer().getTime();
+	    // riders who found the doors already open did not wait at all
+	    waitTimes.add(waitStart >= 0 ? now - waitStart : 0);
+	    waitStart = -1;
+	    rideStart = now;
+
 	    if (gui != null)
 		gui.enterElevator(floor, elevator);
 
@@ -550,6 +670,9 @@ public final class ElevatorBank implements Runnable {
 		return false;
 
 	    inElevator = false;
+	    rideTimes.add(Machine.timer().getTime() - rideStart);
+	    this.floor = floor;
+	    waiting.get(floor).add(this);
 	    floors.add(new Integer(floor));
 
 	    if (gui != null)
@@ -566,14 +689,28 @@ public final class ElevatorBank implements Runnable {
 	    for (int i=0; i<floors.length; i++)
 		Lib.assertTrue(floors[i] == stops[i]);
 	    
+	    // no more events for this rider
+	    waiting.get(floor).remove(this);
+
+	    if (!threaded) {
+		done.V();
+		return;
+	    }
+
 	    Lib.assertTrue(KThread.currentThread() == thread);
 	    
 	    done.V();
 	    KThread.finish();
 	}
 
-	void schedule(int when) {
-	    privilege.interrupt.schedule(when, "rider", interrupt);
+	private void startWaiting() {
+	    if (waitStart < 0)
+		waitStart = Machine.timer().getTime();
+	}
+
+	void post(RiderEvent e) {
+	    events.add(e);
+	    privilege.interrupt.schedule(1, "rider", interrupt);
 	}
 
 	void interrupt() {
@@ -586,21 +723,36 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	void run() {
+	    if (!threaded) {
+		privilege.interrupt.schedule(Math.max(delay, 1), "rider",
+					     new Runnable() {
+			public void run() { arrive(); }
+		    });
+		return;
+	    }
+
 	    thread = new KThread(rider);
 	    thread.setName("rider");
 	    thread.fork();
 	}
 
+	private void arrive() {
+	    waiting.get(floor).add(this);
+	    rider.run();
+	}
+
 	void join() {
 	    done.P();
 	}
 
     	RiderInterface rider;
-	boolean inElevator = false, finished = false;
+	boolean inElevator = false, finished = false, threaded = true;
 	int floor, elevator;
+	long delay = 0;
+	long waitStart = -1, rideStart;
 	int[] stops;
 	Runnable interrupt, handler = null;
-	LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
+	ArrayDeque<RiderEvent> events = new ArrayDeque<RiderEvent>();
 	Vector<Integer> floors = new Vector<Integer>();
 	Semaphore done = new Semaphore(0);
 	KThread thread;
@@ -613,6 +765,8 @@ public final class ElevatorBank implements Runnable {
     private int numRiders;
     private Vector<RiderControls> ridersVector;
     private RiderState[] riders;
+    private ArrayList<ArrayList<RiderState>> waiting;
+    private Histogram waitTimes, rideTimes;
     
     private boolean simulationStarted, enableGui;
     private Privilege privilege;
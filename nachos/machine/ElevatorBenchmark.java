@@ -0,0 +1,195 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Random;
+
+/**
+ * Runs a large, randomly generated scenario on <tt>Machine.bank()</tt>, and
+ * reports how quickly the elevator controller moved the riders and how
+ * quickly the simulation itself ran. The scenario is set by these
+ * <tt>nachos.conf</tt> keys:
+ *
+ * <ul>
+ * <li><tt>ElevatorBenchmark.controller</tt>: the controller class to measure
+ *     (default <tt>nachos.threads.ElevatorController</tt>).
+ * <li><tt>ElevatorBenchmark.elevators</tt>, <tt>ElevatorBenchmark.floors</tt>,
+ *     and <tt>ElevatorBenchmark.riders</tt>: the size of the scenario.
+ * <li><tt>ElevatorBenchmark.stops</tt>: the most stops a rider makes; each
+ *     rider makes between one and this many.
+ * <li><tt>ElevatorBenchmark.meanArrival</tt>: the mean number of ticks
+ *     between riders arriving. Arrivals are a Poisson process.
+ * <li><tt>ElevatorBenchmark.seed</tt>: the random seed. The same seed always
+ *     gives the same scenario.
+ * </ul>
+ *
+ * <p>
+ * The riders are small state machines driven by their interrupt handlers,
+ * not threads, and the bank runs without a GUI.
+ */
+public final class ElevatorBenchmark {
+    /**
+     * Allocate a new <tt>ElevatorBenchmark</tt> object, reading the scenario
+     * from the configuration.
+     */
+    public ElevatorBenchmark() {
+	controllerName =
+	    Config.getString("ElevatorBenchmark.controller",
+			     "nachos.threads.ElevatorController");
+	numElevators = Config.getInteger("ElevatorBenchmark.elevators", 4);
+	numFloors = Config.getInteger("ElevatorBenchmark.floors", 20);
+	numRiders = Config.getInteger("ElevatorBenchmark.riders", 1000);
+	maxStops = Config.getInteger("ElevatorBenchmark.stops", 2);
+	meanArrival = Config.getDouble("ElevatorBenchmark.meanArrival", 3000);
+	seed = Config.getInteger("ElevatorBenchmark.seed", 0);
+
+	Lib.assertTrue(numElevators > 0 && numFloors > 1 && numRiders >= 0 &&
+		       maxStops > 0 && meanArrival >= 0);
+    }
+
+    /**
+     * Generate the scenario, run it on <tt>Machine.bank()</tt>, and print the
+     * results.
+     */
+    public void run() {
+	Random random = new Random(seed);
+
+	ElevatorControllerInterface controller =
+	    (ElevatorControllerInterface) Lib.constructObject(controllerName);
+	Machine.bank().init(numElevators, numFloors, controller);
+
+	long delay = 0;
+	int trips = 0;
+	for (int i=0; i<numRiders; i++) {
+	    delay += Math.round(-meanArrival * Math.log(1-random.nextDouble()));
+
+	    int floor = random.nextInt(numFloors);
+	    int[] stops = new int[1 + random.nextInt(maxStops)];
+
+	    // never the floor the rider is already on
+	    int last = floor;
+	    for (int j=0; j<stops.length; j++) {
+		int stop = random.nextInt(numFloors-1);
+		if (stop >= last)
+		    stop++;
+		stops[j] = last = stop;
+	    }
+	    trips += stops.length;
+
+	    Machine.bank().addEventRider(new Rider(), floor, stops, delay);
+	}
+
+	System.out.println("Elevator benchmark: " + controllerName + ", "
+			   + numElevators + " elevators, " + numFloors
+			   + " floors, " + numRiders + " riders, seed " + seed);
+
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	Machine.bank().run();
+
+	long ticks = Machine.timer().getTime() - startTicks;
+	long nanos = Math.max(System.nanoTime() - startTime, 1);
+
+	System.out.println("  " + trips + " trips in " + ticks + " ticks: "
+			   + (trips * 1000000L / Math.max(ticks, 1))
+			   + " trips per million ticks");
+	System.out.println("  " + (nanos / 1000000) + " ms: "
+			   + (ticks * 1000000000L / nanos)
+			   + " ticks per second, "
+			   + (trips * 1000000000L / nanos)
+			   + " trips per second");
+
+	Machine.bank().getWaitTimes().print();
+	Machine.bank().getRideTimes().print();
+    }
+
+    /**
+     * A rider that runs from its interrupt handler. Whenever something
+     * happens, it tries to make progress: to board an elevator going its way,
+     * or to get off at its stop, pressing a button if it has not already.
+     * Doors closing without it, on its floor or at its stop, make it press
+     * the button again.
+     */
+    private class Rider implements RiderInterface {
+	public void initialize(RiderControls controls, int[] stops) {
+	    this.controls = controls;
+	    this.stops = stops;
+
+	    controls.setInterruptHandler(new Runnable() {
+		    public void run() { interrupt(); }
+		});
+	}
+
+	public void run() {
+	    board();
+	}
+
+	private void interrupt() {
+	    RiderEvent e;
+	    while ((e = controls.getNextEvent()) != null) {
+		if (e.event != RiderEvent.eventDoorsClosed)
+		    continue;
+
+		if (inElevator ? (e.elevator == elevator &&
+				  e.floor == stops[next])
+		    : e.floor == controls.getFloor())
+		    pressed = false;
+	    }
+
+	    if (inElevator)
+		ride();
+	    else
+		board();
+	}
+
+	private void board() {
+	    boolean up = stops[next] > controls.getFloor();
+	    int direction = up ? dirUp : dirDown;
+
+	    for (int i=0; i<numElevators; i++) {
+		int shown = controls.getDirectionDisplay(i);
+		if ((shown == direction || shown == dirNeither) &&
+		    controls.enterElevator(i)) {
+		    inElevator = true;
+		    elevator = i;
+		    pressed = false;
+		    ride();
+		    return;
+		}
+	    }
+
+	    if (!pressed)
+		pressed = controls.pressDirectionButton(up);
+	}
+
+	private void ride() {
+	    if (controls.exitElevator(stops[next])) {
+		inElevator = false;
+		pressed = false;
+
+		if (++next == stops.length)
+		    controls.finish();
+		else
+		    board();
+		return;
+	    }
+
+	    if (!pressed)
+		pressed = controls.pressFloorButton(stops[next]);
+	}
+
+	private RiderControls controls;
+	private int[] stops;
+	private int next = 0, elevator;
+	private boolean inElevator = false, pressed = false;
+    }
+
+    private static final int dirUp = ElevatorBank.dirUp;
+    private static final int dirNeither = ElevatorBank.dirNeither;
+    private static final int dirDown = ElevatorBank.dirDown;
+
+    private String controllerName;
+    private int numElevators, numFloors, numRiders, maxStops, seed;
+    private double meanArrival;
+}
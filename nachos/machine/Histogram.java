@@ -0,0 +1,147 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.PrintStream;
+
+/**
+ * A histogram of non-negative samples, such as latencies in ticks, kept in
+ * log-linear buckets. Every power of two is split into
+ * <tt>subBuckets</tt> equal buckets, so a bucket is never wider than an
+ * eighth of its lower bound; values below <tt>subBuckets</tt> get a bucket
+ * each. The buckets are allocated once, so recording a sample allocates
+ * nothing.
+ */
+public final class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     *
+     * @param	name	the name of the histogram, used when printing it.
+     */
+    public Histogram(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Record a sample. Negative samples are recorded as 0.
+     *
+     * @param	value	the sample to record.
+     */
+    public void add(long value) {
+	if (value < 0)
+	    value = 0;
+
+	counts[bucket(value)]++;
+	count++;
+	sum += value;
+
+	if (count == 1 || value < min)
+	    min = value;
+	if (value > max)
+	    max = value;
+    }
+
+    private static int bucket(long value) {
+	if (value < subBuckets)
+	    return (int) value;
+
+	int shift = 63 - Long.numberOfLeadingZeros(value) - subBits;
+	return (shift+1)*subBuckets + (int) ((value >> shift) & (subBuckets-1));
+    }
+
+    private static long lowerBound(int bucket) {
+	if (bucket < subBuckets)
+	    return bucket;
+
+	int shift = bucket/subBuckets - 1;
+	return (long) (subBuckets + bucket%subBuckets) << shift;
+    }
+
+    private static long upperBound(int bucket) {
+	return (bucket+1 < numBuckets) ? lowerBound(bucket+1) - 1
+	    : Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the number of samples recorded.
+     *
+     * @return	the number of samples.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the mean of the samples recorded.
+     *
+     * @return	the mean, or 0 if there are no samples.
+     */
+    public long getMean() {
+	return (count == 0) ? 0 : sum/count;
+    }
+
+    /**
+     * Return an estimate of the specified percentile: the upper bound of the
+     * bucket holding it, but no more than the largest sample.
+     *
+     * @param	percent	the percentile, between 0 and 100.
+     * @return	the estimate, or 0 if there are no samples.
+     */
+    public long getPercentile(double percent) {
+	if (count == 0)
+	    return 0;
+
+	long rank = (long) Math.ceil(count * percent / 100.0);
+	if (rank < 1)
+	    rank = 1;
+
+	long seen = 0;
+	for (int i=0; i<numBuckets; i++) {
+	    seen += counts[i];
+	    if (seen >= rank)
+		return Math.min(upperBound(i), max);
+	}
+
+	return max;
+    }
+
+    /**
+     * Print a summary of this histogram.
+     */
+    public void print() {
+	if (count == 0) {
+	    System.out.println(name + ": no samples");
+	    return;
+	}
+
+	System.out.println(name + ": samples " + count
+			   + ", min " + min
+			   + ", mean " + getMean()
+			   + ", p50 " + getPercentile(50)
+			   + ", p90 " + getPercentile(90)
+			   + ", p99 " + getPercentile(99)
+			   + ", max " + max);
+    }
+
+    /**
+     * Write every non-empty bucket of this histogram as a CSV row of the form
+     * <tt>histogram,<i>name</i>,<i>lower</i>,<i>upper</i>,<i>count</i></tt>.
+     *
+     * @param	out	the stream to write to.
+     */
+    public void writeCSV(PrintStream out) {
+	for (int i=0; i<numBuckets; i++) {
+	    if (counts[i] != 0)
+		out.println("histogram," + name + "," + lowerBound(i) + ","
+			    + upperBound(i) + "," + counts[i]);
+	}
+    }
+
+    private String name;
+    private long[] counts = new long[numBuckets];
+    private long count = 0, sum = 0, min = 0, max = 0;
+
+    private static final int subBits = 3;
+    private static final int subBuckets = 1<<subBits;
+    private static final int numBuckets = (64-subBits)*subBuckets;
+}
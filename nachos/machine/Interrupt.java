@@ -126,9 +126,8 @@ public final class Interrupt {
 	long time = privilege.stats.totalTicks + when;
 	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Trace.interrupts)
+	    Trace.event(Trace.eventSchedule, 0, Trace.intern(type), (int) when);
 
 	pending.add(toOccur);
     }
@@ -145,8 +144,8 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
-	    System.out.println("== Tick " + stats.totalTicks + " ==");
+	if (Trace.interrupts)
+	    Trace.event(Trace.eventTick, 0, 0, 0);
 
 	enabled = false;
 	checkIfDue();
@@ -158,7 +157,7 @@ public final class Interrupt {
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (Trace.interrupts && !Trace.isRecording())
 	    print();
 
 	if (pending.isEmpty())
@@ -167,7 +166,8 @@ public final class Interrupt {
 	if (((PendingInterrupt) pending.first()).time > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Trace.interrupts && !Trace.isRecording())
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
 	while (!pending.isEmpty() &&
 	       ((PendingInterrupt) pending.first()).time <= time) {
@@ -179,12 +179,14 @@ public final class Interrupt {
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Trace.interrupts)
+		Trace.event(Trace.eventInterrupt, 0, Trace.intern(next.type), 0);
 			
 	    next.handler.run();
 	}
 
-	Lib.debug(dbgInt, "  (end of list)");
+	if (Trace.interrupts && !Trace.isRecording())
+	    System.out.println("  (end of list)");
     }
 
     private void print() {
@@ -239,7 +241,6 @@ public final class Interrupt {
     private boolean enabled;
     private TreeSet<PendingInterrupt> pending;
 
-    private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
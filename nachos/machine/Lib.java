@@ -47,6 +47,7 @@ public final class Lib {
     /**
      * Return a random integer between 0 and <i>range - 1</i>. Must not be
      * called before <tt>seedRandom()</tt> seeds the random number generator.
+     * While replaying, the value is the one recorded instead.
      *
      * @param	range	a positive value specifying the number of possible
      *			return values.
@@ -54,16 +55,34 @@ public final class Lib {
      */
     public static int random(int range) {
 	assertTrue(range > 0);
-	return random.nextInt(range);
+
+	if (Replay.isReplaying() && !Replay.isFinished())
+	    return (int) Replay.replayLong(Replay.eventRandom);
+
+	int value = random.nextInt(range);
+	if (Replay.isRecording())
+	    Replay.recordLong(Replay.eventRandom, value);
+
+	return value;
     }
 
     /**
      * Return a random double between 0.0 (inclusive) and 1.0 (exclusive).
+     * While replaying, the value is the one recorded instead.
      *
      * @return	a random double between 0.0 and 1.0.
      */
     public static double random() {
-	return random.nextDouble();
+	if (Replay.isReplaying() && !Replay.isFinished())
+	    return Double.longBitsToDouble(
+		Replay.replayLong(Replay.eventRandomDouble));
+
+	double value = random.nextDouble();
+	if (Replay.isRecording())
+	    Replay.recordLong(Replay.eventRandomDouble,
+			      Double.doubleToRawLongBits(value));
+
+	return value;
     }
 
     /**
@@ -5,11 +5,33 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.ag.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
  * constructs all simulated hardware devices, and starts the grader.
+ *
+ * <p>
+ * Three <tt>nachos.conf</tt> keys shorten startup, for the many short runs
+ * of a test suite. If <tt>Machine.checkCache</tt> names a file, the checks
+ * of the kernel classes are skipped when the class files have not changed
+ * since they last passed; the file records the size, modification time, and
+ * checksum of each class file (or of the jar holding it), and a class file is
+ * only read to compute its checksum again if its size or time has changed.
+ * If <tt>Machine.lazyDevices</tt> is true, the elevator bank, console, stub
+ * file system, and network link are not created until they are first asked
+ * for, so a run pays only for the devices it uses. If
+ * <tt>Machine.startupTimes</tt> is true, the time spent in each phase of
+ * startup is printed once the kernel is initialized.
  */
 public final class Machine {
     /**
@@ -18,6 +40,7 @@ public final class Machine {
      * @param	args	the command line arguments.
      */
     public static void main(final String[] args) {
+	startupPhase("jvm");
 	System.out.print("nachos 5.0j initializing...");
 	
 	Lib.assertTrue(Machine.args == null);
@@ -26,6 +49,7 @@ public final class Machine {
 	processArgs();
 
 	Config.load(configFileName);
+	startupPhase("config");
 
 	// get the current directory (.)
 	baseDirectory = new File(new File("").getAbsolutePath());
@@ -53,8 +77,13 @@ public final class Machine {
 	privilege.stats = stats;
 
 	securityManager.enable();
+	Trace.init(privilege);
+	Replay.init(privilege);
+	startupPhase("security");
 	createDevices();
+	startupPhase("devices");
 	checkUserClasses();
+	startupPhase("user-check");
 
 	autoGrader = (AutoGrader) Lib.constructObject(autoGraderClassName);
 
@@ -63,6 +92,48 @@ public final class Machine {
 	});
     }
 
+    /**
+     * Mark the end of a phase of startup, such as creating the devices. The
+     * first phase, <tt>jvm</tt>, is the time the JVM took to start.
+     *
+     * @param	phase	the name of the phase that just ended.
+     */
+    public static void startupPhase(String phase) {
+	long time = System.nanoTime();
+	long elapsed;
+
+	if (startupPhases.length() == 0) {
+	    // this runs before the security manager is enabled
+	    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+	    elapsed = uptime * 1000000;
+	    startupStart = time - elapsed;
+	}
+	else {
+	    elapsed = time - startupTime;
+	}
+
+	startupTime = time;
+	startupPhases.append(", " + phase + " " + millis(elapsed));
+    }
+
+    /**
+     * Print the time spent in each phase of startup, if
+     * <tt>Machine.startupTimes</tt> is set. Called once the kernel is
+     * initialized.
+     */
+    public static void printStartupTimes() {
+	if (!Config.getBoolean("Machine.startupTimes", false))
+	    return;
+
+	System.out.println("Startup: " + millis(startupTime - startupStart)
+			   + " ms total" + startupPhases);
+    }
+
+    private static String millis(long nanos) {
+	long tenths = nanos / 100000;
+	return (tenths / 10) + "." + (tenths % 10);
+    }
+
     /**
      * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
      * non-Nachos threads a chance to run.
@@ -170,28 +241,294 @@ public final class Machine {
 	interrupt = new Interrupt(privilege);
 	timer = new Timer(privilege);
 
+	boolean lazy = Config.getBoolean("Machine.lazyDevices", false);
+
 	if (Config.getBoolean("Machine.bank"))
-	    bank = new ElevatorBank(privilege);
+	    enableDevice(deviceBank, lazy);
 
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
-	    processor = new Processor(privilege, numPhysPages);
+	    processor = new Processor(privilege, numPhysPages,
+				      Config.getInteger("Machine.numProcessors",
+							1));
+	    snapshot = new Snapshot(privilege);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
-	    console = new StandardConsole(privilege);
+	    enableDevice(deviceConsole, lazy);
 
 	if (Config.getBoolean("Machine.stubFileSystem"))
-	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
+	    enableDevice(deviceFileSystem, lazy);
 
 	if (Config.getBoolean("Machine.networkLink"))
-	    networkLink = new NetworkLink(privilege);
+	    enableDevice(deviceNetworkLink, lazy);
+    }
+
+    /**
+     * Create a device now, or mark it to be created when first asked for.
+     * Either way, the device is announced with the others.
+     */
+    private static void enableDevice(int device, boolean lazy) {
+	if (lazy) {
+	    pendingDevices[device] = true;
+	    if (device != deviceFileSystem)
+		System.out.print(" " + deviceNames[device] + "(lazy)");
+	}
+	else {
+	    createDevice(device);
+
+	    if (device == deviceConsole && console instanceof ScriptedConsole)
+		System.out.print(" console(scripted)");
+	    else if (device == deviceNetworkLink)
+		System.out.print(" network(" + networkLink.getLinkAddress()
+				 + ")");
+	    else if (device != deviceFileSystem)
+		System.out.print(" " + deviceNames[device]);
+	}
+    }
+
+    /**
+     * Create a device marked to be created when first asked for, if it has
+     * not been created yet.
+     */
+    private static void createPendingDevice(int device) {
+	if (pendingDevices[device]) {
+	    pendingDevices[device] = false;
+	    createDevice(device);
+	}
+    }
+
+    private static void createDevice(final int device) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    switch (device) {
+		    case deviceBank:
+			bank = new ElevatorBank(privilege);
+			break;
+		    case deviceConsole:
+			if (Config.getBoolean("Machine.scriptedConsole", false))
+			    console = new ScriptedConsole(privilege);
+			else
+			    console = new StandardConsole(privilege);
+			break;
+		    case deviceFileSystem:
+			stubFileSystem =
+			    new StubFileSystem(privilege, testDirectory);
+			break;
+		    case deviceNetworkLink:
+			networkLink = new NetworkLink(privilege);
+			break;
+		    }
+		}
+	    });
     }
 
     private static void checkUserClasses() {
 	System.out.print(" user-check");
-	
+
+	String cacheName = Config.getString("Machine.checkCache");
+	if (cacheName == null) {
+	    checkClasses();
+	    return;
+	}
+
+	String oldManifest = readFile(cacheName);
+	String manifest = classManifest(oldManifest);
+
+	// skip the checks if the classes are the ones that last passed them
+	if (oldManifest != null &&
+	    checksums(manifest).equals(checksums(oldManifest))) {
+	    System.out.print("(cached)");
+	}
+	else {
+	    checkClasses();
+	}
+
+	if (!manifest.equals(oldManifest))
+	    writeFile(cacheName, manifest);
+    }
+
+    /**
+     * Return a manifest of the classes <tt>checkClasses()</tt> checks. Each
+     * line gives the name of a class, the size and modification time of its
+     * class file, and the CRC-32 of the class file. The CRC-32 is taken from
+     * the old manifest if the size and time are the same there.
+     *
+     * @param	oldManifest	the last manifest written, or <tt>null</tt>.
+     */
+    private static String classManifest(String oldManifest) {
+	final HashMap<String, String> oldChecksums =
+	    new HashMap<String, String>();
+
+	if (oldManifest != null) {
+	    StringTokenizer lines = new StringTokenizer(oldManifest, "\n");
+	    while (lines.hasMoreTokens()) {
+		String line = lines.nextToken();
+		int space = line.lastIndexOf(' ');
+		if (space > 0)
+		    oldChecksums.put(line.substring(0, space),
+				     line.substring(space+1));
+	    }
+	}
+
+	final StringBuffer manifest = new StringBuffer();
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    for (int i=0; i<checkedClassNames.length; i++) {
+			String name = checkedClassNames[i];
+			String stamp = classStamp(name);
+			String key = name + " " + (stamp != null ? stamp : "-");
+
+			String checksum = null;
+			if (stamp != null)
+			    checksum = oldChecksums.get(key);
+			if (checksum == null)
+			    checksum = classChecksum(name);
+
+			manifest.append(key + " " + checksum + "\n");
+		    }
+		}
+	    });
+
+	return manifest.toString();
+    }
+
+    /**
+     * Return the names and checksums of the classes in a manifest, without
+     * the sizes and times.
+     */
+    private static String checksums(String manifest) {
+	StringBuffer checksums = new StringBuffer();
+
+	StringTokenizer lines = new StringTokenizer(manifest, "\n");
+	while (lines.hasMoreTokens()) {
+	    StringTokenizer fields = new StringTokenizer(lines.nextToken());
+	    String name = fields.nextToken();
+	    String checksum = name;
+	    while (fields.hasMoreTokens())
+		checksum = fields.nextToken();
+
+	    checksums.append(name + " " + checksum + "\n");
+	}
+
+	return checksums.toString();
+    }
+
+    /**
+     * Return the sizes and modification times of the files a class may be
+     * loaded from: its class file, if it is in a directory on the class path,
+     * and every jar before that directory (or on the whole class path), since
+     * any of them may hold the class. This only looks at the files, which is
+     * far cheaper than reading them. Returns <tt>null</tt> if there are no
+     * such files.
+     */
+    private static String classStamp(String className) {
+	String fileName =
+	    className.replace('.', File.separatorChar) + ".class";
+	String stamp = "";
+
+	StringTokenizer path = new StringTokenizer(
+	    System.getProperty("java.class.path"), File.pathSeparator);
+	while (path.hasMoreTokens()) {
+	    File entry = new File(path.nextToken());
+
+	    if (entry.isDirectory()) {
+		File file = new File(entry, fileName);
+		if (file.isFile())
+		    return stamp + file.length() + ":" + file.lastModified();
+	    }
+	    else if (entry.isFile()) {
+		stamp += entry.length() + ":" + entry.lastModified() + ",";
+	    }
+	}
+
+	return (stamp.length() > 0) ? stamp : null;
+    }
+
+    private static String classChecksum(String className) {
+	InputStream in = ClassLoader.getSystemResourceAsStream(
+	    className.replace('.', '/') + ".class");
+	if (in == null)
+	    return "missing";
+
+	CRC32 crc = new CRC32();
+	byte[] buffer = new byte[4096];
+	try {
+	    int amount;
+	    while ((amount = in.read(buffer)) != -1)
+		crc.update(buffer, 0, amount);
+	    in.close();
+	}
+	catch (IOException e) {
+	    return "unreadable";
+	}
+
+	return Long.toHexString(crc.getValue());
+    }
+
+    private static String readFile(final String fileName) {
+	final String[] contents = new String[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			FileInputStream in = new FileInputStream(fileName);
+			ByteArrayOutputStream bytes =
+			    new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int amount;
+			while ((amount = in.read(buffer)) != -1)
+			    bytes.write(buffer, 0, amount);
+			in.close();
+			contents[0] = bytes.toString("UTF-8");
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	return contents[0];
+    }
+
+    private static void writeFile(final String fileName,
+				  final String contents) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			FileOutputStream out = new FileOutputStream(fileName);
+			out.write(contents.getBytes("UTF-8"));
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("Unable to write " + fileName);
+		    }
+		}
+	    });
+    }
+
+    /** The classes <tt>checkClasses()</tt> checks. */
+    private static final String[] checkedClassNames = {
+	"nachos.machine.Kernel",
+	"nachos.machine.FileSystem",
+	"nachos.machine.RiderControls",
+	"nachos.machine.ElevatorControls",
+	"nachos.machine.RiderInterface",
+	"nachos.machine.ElevatorControllerInterface",
+	"nachos.threads.Alarm",
+	"nachos.threads.ThreadedKernel",
+	"nachos.threads.KThread",
+	"nachos.threads.Communicator",
+	"nachos.threads.Semaphore",
+	"nachos.threads.Lock",
+	"nachos.threads.Condition",
+	"nachos.threads.Condition2",
+	"nachos.threads.Rider",
+	"nachos.threads.ElevatorController"
+    };
+
+    private static void checkClasses() {
 	Class aclsInt = (new int[0]).getClass();
 	Class clsObject = Lib.loadClass("java.lang.Object");
 	Class clsRunnable = Lib.loadClass("java.lang.Runnable");
@@ -314,7 +651,10 @@ public final class Machine {
      * @return	the hardware elevator bank, or <tt>null</tt> if it is not
      * 		present.
      */
-    public static ElevatorBank bank() { return bank; }
+    public static ElevatorBank bank() {
+	createPendingDevice(deviceBank);
+	return bank;
+    }
     
     /**
      * Return the MIPS processor.
@@ -322,27 +662,44 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the device that saves and restores snapshots of the machine.
+     *
+     * @return	the snapshot device, or <tt>null</tt> if there is no
+     *		processor.
+     */
+    public static Snapshot snapshot() { return snapshot; }
     
     /**
      * Return the hardware console.
      *
      * @return	the hardware console, or <tt>null</tt> if it is not present.
      */
-    public static SerialConsole console() { return console; }
+    public static SerialConsole console() {
+	createPendingDevice(deviceConsole);
+	return console;
+    }
     
     /**
      * Return the stub filesystem.
      *
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
-    public static FileSystem stubFileSystem() { return stubFileSystem; }
+    public static FileSystem stubFileSystem() {
+	createPendingDevice(deviceFileSystem);
+	return stubFileSystem;
+    }
     
     /**
      * Return the network link.
      *
      * @return	the network link,  or <tt>null</tt> if it is not present.
      */
-    public static NetworkLink networkLink() { return networkLink; }
+    public static NetworkLink networkLink() {
+	createPendingDevice(deviceNetworkLink);
+	return networkLink;
+    }
     
     /**
      * Return the autograder.
@@ -355,11 +712,22 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Snapshot snapshot = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
+    private static final int deviceBank = 0, deviceConsole = 1,
+	deviceFileSystem = 2, deviceNetworkLink = 3;
+    private static final String[] deviceNames = {
+	"elevators", "console", "", "network"
+    };
+    private static boolean[] pendingDevices = new boolean[4];
+
+    private static long startupStart, startupTime;
+    private static StringBuffer startupPhases = new StringBuffer();
+
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
 
     /**
@@ -4,12 +4,16 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +61,29 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * By default, packets travel between Nachos instances as UDP datagrams. If
+ * the <tt>nachos.conf</tt> key <tt>NetworkLink.sharedMemory</tt> is true,
+ * they travel instead through memory-mapped rings in the directory named by
+ * <tt>NetworkLink.sharedDirectory</tt>, one ring of
+ * <tt>NetworkLink.ringSlots</tt> packets per link address. This needs
+ * neither sockets nor a receiving thread, so many instances can run on one
+ * host cheaply. A packet sent to a full ring is lost. Either way, the
+ * interrupt timing and the <tt>reliability</tt> drop model are the same.
+ *
+ * <p>
+ * Arriving packets wait in a queue of <tt>NetworkLink.receiveQueueSize</tt>
+ * packets. Every <tt>NetworkTime</tt> ticks, up to
+ * <tt>NetworkLink.receiveBatch</tt> of them are handed to the kernel with a
+ * single receive interrupt, so a burst is not delivered one packet per
+ * interrupt. Likewise, up to <tt>NetworkLink.sendQueueSize</tt> packets can
+ * be queued to be sent, and go out back to back.
+ *
+ * <p>
+ * Received packets are framed in place in pooled buffers. Their
+ * <tt>contents</tt> field is filled in when the kernel receives them,
+ * unless <tt>NetworkLink.inPlace</tt> is true.
  */
 public class NetworkLink {
     /**
@@ -71,10 +98,60 @@ public class NetworkLink {
      * 				machine.
      */
     public NetworkLink(Privilege privilege) {
-	System.out.print(" network");
-
 	this.privilege = privilege;
 
+	reliability = Config.getDouble("NetworkLink.reliability");
+	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+
+	receiveQueueSize = Config.getInteger("NetworkLink.receiveQueueSize", 32);
+	receiveBatch = Config.getInteger("NetworkLink.receiveBatch", 8);
+	sendQueueSize = Config.getInteger("NetworkLink.sendQueueSize", 16);
+	Lib.assertTrue(receiveQueueSize > 0 && receiveBatch > 0 &&
+		       sendQueueSize > 0);
+
+	inPlace = Config.getBoolean("NetworkLink.inPlace", false);
+
+	if (Config.getBoolean("NetworkLink.sharedMemory", false))
+	    openRing();
+	else
+	    openSocket();
+
+	// a replayed run has the link address of the recorded one
+	if (Replay.isReplaying())
+	    linkAddress = (byte) Replay.replayLong(Replay.eventLinkAddress);
+	else if (Replay.isRecording())
+	    Replay.recordLong(Replay.eventLinkAddress, linkAddress);
+
+	stats = new NetworkStats();
+	privilege.stats.network = stats;
+
+	final String csvName = Config.getString("NetworkStats.csv");
+	if (csvName != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { writeStats(csvName); }
+		});
+	}
+
+	receiveInterrupt = new Runnable() {
+		public void run() { receiveInterrupt(); }
+	    };
+
+	sendInterrupt = new Runnable() {
+		public void run() { sendInterrupt(); }
+	    };		
+	
+	scheduleReceiveInterrupt();
+
+	if (socket != null && !Replay.isReplaying()) {
+	    Thread receiveThread = new Thread(new Runnable() {
+		    public void run() { receiveLoop(); }
+		});
+
+	    receiveThread.start();
+	}
+    }
+
+    private void openSocket() {
 	try {
 	    localHost = InetAddress.getLocalHost();
 	}
@@ -84,9 +161,6 @@ public class NetworkLink {
 
 	Lib.assertTrue(localHost != null);
 
-	reliability = Config.getDouble("NetworkLink.reliability");
-	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
-
 	socket = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
@@ -99,28 +173,46 @@ public class NetworkLink {
 	}
 
 	if (socket == null) {
-	    System.out.println("");
+	    System.out.println(" network");
 	    System.out.println("Unable to acquire a link address!");
 	    Lib.assertNotReached();
 	}
+    }
 
-	System.out.print("(" + linkAddress + ")");
+    private void openRing() {
+	String name = Config.getString("NetworkLink.sharedDirectory");
+	directory = (name != null) ? new File(name) :
+	    new File(System.getProperty("java.io.tmpdir"),
+		     "nachos-net-" + Math.abs(hash));
+	directory.mkdirs();
 
-	receiveInterrupt = new Runnable() {
-		public void run() { receiveInterrupt(); }
-	    };
+	int slots = Config.getInteger("NetworkLink.ringSlots", 64);
+	Lib.assertTrue(slots > 0);
 
-	sendInterrupt = new Runnable() {
-		public void run() { sendInterrupt(); }
-	    };		
-	
-	scheduleReceiveInterrupt();
+	peers = new PacketRing[Packet.linkAddressLimit];
 
-	Thread receiveThread = new Thread(new Runnable() {
-		public void run() { receiveLoop(); }
-	    });
+	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
+	    try {
+		PacketRing candidate = new PacketRing(ringFile(linkAddress),
+						      slots);
+		if (candidate.own()) {
+		    ring = candidate;
+		    break;
+		}
+	    }
+	    catch (IOException e) {
+	    }
+	}
 
-	receiveThread.start();
+	if (ring == null) {
+	    System.out.println(" network");
+	    System.out.println("Unable to acquire a link address!");
+	    Lib.assertNotReached();
+	}
+    }
+
+    private File ringFile(int linkAddress) {
+	return new File(directory, "link" + linkAddress);
     }
 
     /**
@@ -160,54 +252,122 @@ public class NetworkLink {
 				     receiveInterrupt);
     }
 
-    private synchronized void receiveInterrupt() {
-	Lib.assertTrue(incomingPacket == null);
+    private void receiveInterrupt() {
+	Lib.assertTrue(delivered.isEmpty());
+
+	// keep polling until someone is listening
+	if (receiveInterruptHandler == null) {
+	    scheduleReceiveInterrupt();
+	    return;
+	}
+
+	synchronized (this) {
+	    if (Replay.isReplaying())
+		replayPackets();
+	    else if (ring != null)
+		pollRing();
 
-	if (incomingBytes != null) {
-	    if (Machine.autoGrader().canReceivePacket(privilege)) {
-		try {
-		    incomingPacket = new Packet(incomingBytes);
+	    // hand over everything that has arrived, up to a batch
+	    while (delivered.size() < receiveBatch && !incoming.isEmpty()) {
+		Packet p = incoming.removeFirst();
 
+		if (Replay.isRecording())
+		    Replay.recordBytes(Replay.eventPacket, p.packetBytes, 0,
+				       p.getLength());
+
+		if (Machine.autoGrader().canReceivePacket(privilege)) {
+		    p.queueTime = privilege.stats.totalTicks;
+		    delivered.add(p);
 		    privilege.stats.numPacketsReceived++;
+		    stats.linkReceived(p.srcLink, p.getLength());
 		}
-		catch (MalformedPacketException e) {
+		else {
+		    p.release();
 		}
 	    }
 
-	    incomingBytes = null;
 	    notify();
-
-	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
-	    else if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
 	}
-	else {
+
+	// one interrupt announces the whole batch
+	if (delivered.isEmpty())
 	    scheduleReceiveInterrupt();
-	}
+	else
+	    receiveInterruptHandler.run();
     }
 
     /**
-     * Return the next packet received.
+     * Return the next packet received. After the receive interrupt handler is
+     * called, this should be called until it returns <tt>null</tt>; the
+     * handler is not called again until every packet of the batch has been
+     * dequeued.
      *
      * @return	the next packet received, or <tt>null</tt> if no packet is
      * 		available.
      */
     public Packet receive() {
-	Packet p = incomingPacket;
-	
-	if (incomingPacket != null) {
-	    incomingPacket = null;
+	Packet p = delivered.poll();
+	if (p == null)
+	    return null;
+
+	if (!inPlace)
+	    p.copyContents();
+
+	stats.receiveQueue.add(privilege.stats.totalTicks - p.queueTime);
+
+	if (delivered.isEmpty())
 	    scheduleReceiveInterrupt();
-	}
 
 	return p;
     }
 
+    /**
+     * Queue the packets that were handed over at this tick when the run was
+     * recorded.
+     */
+    private void replayPackets() {
+	while (Replay.hasNext(Replay.eventPacket)) {
+	    byte[] bytes = Replay.replayBytes(Replay.eventPacket);
+
+	    try {
+		incoming.add(new Packet(bytes, bytes.length));
+	    }
+	    catch (MalformedPacketException e) {
+		Lib.assertNotReached("corrupt packet in replay log");
+	    }
+	}
+    }
+
+    private void pollRing() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			while (incoming.size() < receiveQueueSize) {
+			    if (ringBuffer == null)
+				ringBuffer = Packet.allocateBuffer();
+
+			    int length = ring.take(ringBuffer);
+			    if (length < 0)
+				break;
+
+			    try {
+				incoming.add(new Packet(ringBuffer, length));
+				ringBuffer = null;
+			    }
+			    catch (MalformedPacketException e) {
+			    }
+			}
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+    }
+
     private void receiveLoop() {
 	while (true) {
 	    synchronized(this) {
-		while (incomingBytes != null) {
+		while (incoming.size() >= receiveQueueSize) {
 		    try {
 			wait();
 		    }
@@ -216,25 +376,26 @@ public class NetworkLink {
 		}
 	    }
 
-	    byte[] packetBytes;
+	    // receive straight into a reusable buffer, without trimming it
+	    byte[] buffer = Packet.allocateBuffer();
+	    Packet p;
 
 	    try {
-		byte[] buffer = new byte[Packet.maxPacketLength];
-
 		DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
 		
 		socket.receive(dp);
 
-		packetBytes = new byte[dp.getLength()];
-
-		System.arraycopy(buffer,0, packetBytes,0, packetBytes.length);
+		p = new Packet(buffer, dp.getLength());
+	    }
+	    catch (MalformedPacketException e) {
+		continue;
 	    }
 	    catch (IOException e) {
 		return;
 	    }
 
 	    synchronized(this) {
-		incomingBytes = packetBytes;
+		incoming.add(p);
 	    }
 	}
     }		
@@ -245,49 +406,117 @@ public class NetworkLink {
     }
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingPacket != null);
+	Lib.assertTrue(!outgoing.isEmpty());
+
+	final Packet p = outgoing.removeFirst();
+
+	stats.sendQueue.add(privilege.stats.totalTicks - p.queueTime);
 
 	// randomly drop packets, according to its reliability
 	if (Machine.autoGrader().canSendPacket(privilege) &&
 	    Lib.random() <= reliability) {
 	    // ok, no drop
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { sendPacket(); }
+		    public void run() { sendPacket(p); }
 		});
 	}
 	else {
-	    outgoingPacket = null;
+	    stats.linkDropped(p.dstLink);
 	}
 
+	// the next queued packet goes on the wire right away
+	if (!outgoing.isEmpty())
+	    scheduleSendInterrupt();
+
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
-    private void sendPacket() {
-	Packet p = outgoingPacket;
-	outgoingPacket = null;
+    private void sendPacket(Packet p) {
+	if (ring != null) {
+	    sendToRing(p);
+	    return;
+	}
 	
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
+	    socket.send(new DatagramPacket(p.packetBytes, p.getLength(),
 					   localHost, portBase+p.dstLink));
 
 	    privilege.stats.numPacketsSent++;
+	    stats.linkSent(p.dstLink, p.getLength());
 	}
 	catch (IOException e) {
 	}
     }
 
+    private void sendToRing(Packet p) {
+	try {
+	    if (peers[p.dstLink] == null)
+		peers[p.dstLink] = new PacketRing(ringFile(p.dstLink), 0);
+
+	    // like a datagram, a packet for a full ring is simply lost
+	    peers[p.dstLink].put(p.packetBytes, p.getLength());
+	}
+	catch (IOException e) {
+	    // nobody has ever used this link address
+	}
+
+	privilege.stats.numPacketsSent++;
+	stats.linkSent(p.dstLink, p.getLength());
+    }
+
     /**
-     * Send another packet. If a packet is already being sent, the result is
-     * not defined.
+     * Queue another packet to be sent. Packets are sent in order, one every
+     * <tt>NetworkTime</tt> ticks, and the send interrupt handler is called
+     * once for each packet, after it has been sent or dropped. At most
+     * <tt>getSendQueueSize()</tt> packets may be queued at once.
      *
      * @param	pkt	the packet to send.
      */       
     public void send(Packet pkt) {
-	if (outgoingPacket == null)
+	Lib.assertTrue(outgoing.size() < sendQueueSize);
+
+	if (outgoing.isEmpty())
 	    scheduleSendInterrupt();
 	
-	outgoingPacket = pkt;
+	pkt.queueTime = privilege.stats.totalTicks;
+	outgoing.add(pkt);
+    }
+
+    /**
+     * Return the network statistics of this link, to which the kernel can add
+     * its own measurements.
+     *
+     * @return	the network statistics.
+     */
+    public NetworkStats getStats() {
+	return stats;
+    }
+
+    private void writeStats(final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			PrintStream out =
+			    new PrintStream(new FileOutputStream(fileName));
+			stats.writeCSV(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("Unable to write " + fileName);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Return the number of packets that can be queued to be sent, set by the
+     * <tt>nachos.conf</tt> key <tt>NetworkLink.sendQueueSize</tt>.
+     *
+     * @return	the capacity of the send queue.
+     */
+    public int getSendQueueSize() {
+	return sendQueueSize;
     }
 
     private static final int hash;
@@ -316,14 +545,23 @@ public class NetworkLink {
     private Runnable sendInterruptHandler = null;
 
     private InetAddress localHost;
-    private DatagramSocket socket;
+    private DatagramSocket socket = null;
+
+    private File directory;
+    private PacketRing ring = null;
+    private PacketRing[] peers;
+    private byte[] ringBuffer = null;
 
     private byte linkAddress;
+    private NetworkStats stats;
     private double reliability;
 
-    private byte[] incomingBytes = null;
-    private Packet incomingPacket = null;
-    private Packet outgoingPacket = null;
+    private boolean inPlace;
+    private int receiveQueueSize, receiveBatch;
+    private ArrayDeque<Packet> incoming = new ArrayDeque<Packet>();
+    private ArrayDeque<Packet> delivered = new ArrayDeque<Packet>();
+    private int sendQueueSize;
+    private ArrayDeque<Packet> outgoing = new ArrayDeque<Packet>();
 
     private boolean sendBusy = false;
 }
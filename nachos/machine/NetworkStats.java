@@ -0,0 +1,200 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.PrintStream;
+
+/**
+ * Network statistics, kept per link address and per port. The network link
+ * counts packets, bytes, and drops for each remote link, and measures how long
+ * packets wait in its queues. The kernel reports what only it can see:
+ * traffic on each port, retransmissions, and round-trip times.
+ *
+ * <p>
+ * The statistics are printed with the rest of <tt>Stats</tt>. If the
+ * <tt>nachos.conf</tt> key <tt>NetworkStats.csv</tt> names a file, they are
+ * also written to it as CSV when Nachos exits.
+ */
+public final class NetworkStats {
+    /**
+     * Allocate a new, empty set of network statistics.
+     */
+    public NetworkStats() {
+    }
+
+    /**
+     * Record a packet sent to the specified link.
+     */
+    void linkSent(int dstLink, int bytes) {
+	linkPacketsSent[dstLink]++;
+	linkBytesSent[dstLink] += bytes;
+    }
+
+    /**
+     * Record a packet received from the specified link.
+     */
+    void linkReceived(int srcLink, int bytes) {
+	linkPacketsReceived[srcLink]++;
+	linkBytesReceived[srcLink] += bytes;
+    }
+
+    /**
+     * Record a packet to the specified link dropped by the network.
+     */
+    void linkDropped(int dstLink) {
+	linkPacketsDropped[dstLink]++;
+    }
+
+    /**
+     * Record a message sent from a local port.
+     *
+     * @param	port	the local port.
+     * @param	bytes	the number of content bytes in the message.
+     */
+    public void portSent(int port, int bytes) {
+	portMessagesSent[port]++;
+	portBytesSent[port] += bytes;
+    }
+
+    /**
+     * Record a message received on a local port.
+     *
+     * @param	port	the local port.
+     * @param	bytes	the number of content bytes in the message.
+     */
+    public void portReceived(int port, int bytes) {
+	portMessagesReceived[port]++;
+	portBytesReceived[port] += bytes;
+    }
+
+    /**
+     * Record a message sent again from a local port because it was thought
+     * to be lost.
+     *
+     * @param	port	the local port.
+     */
+    public void portRetransmitted(int port) {
+	portRetransmits[port]++;
+    }
+
+    /**
+     * Print these statistics. Only links and ports that were used are listed.
+     */
+    public void print() {
+	long bytesSent = 0, bytesReceived = 0, dropped = 0, retransmits = 0;
+	for (int i=0; i<linkAddressLimit; i++) {
+	    bytesSent += linkBytesSent[i];
+	    bytesReceived += linkBytesReceived[i];
+	    dropped += linkPacketsDropped[i];
+	}
+	for (int i=0; i<portLimit; i++)
+	    retransmits += portRetransmits[i];
+
+	System.out.println("Network bytes: received " + bytesReceived
+			   + ", sent " + bytesSent
+			   + "; packets dropped " + dropped
+			   + ", retransmitted " + retransmits);
+
+	for (int i=0; i<linkAddressLimit; i++) {
+	    if (linkPacketsSent[i] + linkPacketsReceived[i] +
+		linkPacketsDropped[i] == 0)
+		continue;
+
+	    System.out.println("  link " + i
+			       + ": received " + linkPacketsReceived[i]
+			       + " (" + linkBytesReceived[i] + " bytes)"
+			       + ", sent " + linkPacketsSent[i]
+			       + " (" + linkBytesSent[i] + " bytes)"
+			       + ", dropped " + linkPacketsDropped[i]);
+	}
+
+	for (int i=0; i<portLimit; i++) {
+	    if (portMessagesSent[i] + portMessagesReceived[i] == 0)
+		continue;
+
+	    System.out.println("  port " + i
+			       + ": received " + portMessagesReceived[i]
+			       + " (" + portBytesReceived[i] + " bytes)"
+			       + ", sent " + portMessagesSent[i]
+			       + " (" + portBytesSent[i] + " bytes)"
+			       + ", retransmitted " + portRetransmits[i]);
+	}
+
+	roundTrip.print();
+	sendQueue.print();
+	receiveQueue.print();
+    }
+
+    /**
+     * Write these statistics as CSV. Counters are written as rows of the form
+     * <tt>link,<i>address</i>,<i>counter</i>,<i>value</i></tt> or
+     * <tt>port,<i>port</i>,<i>counter</i>,<i>value</i></tt>, followed by the
+     * buckets of each histogram.
+     *
+     * @param	out	the stream to write to.
+     */
+    public void writeCSV(PrintStream out) {
+	for (int i=0; i<linkAddressLimit; i++) {
+	    if (linkPacketsSent[i] + linkPacketsReceived[i] +
+		linkPacketsDropped[i] == 0)
+		continue;
+
+	    out.println("link," + i + ",packetsReceived,"
+			+ linkPacketsReceived[i]);
+	    out.println("link," + i + ",bytesReceived," + linkBytesReceived[i]);
+	    out.println("link," + i + ",packetsSent," + linkPacketsSent[i]);
+	    out.println("link," + i + ",bytesSent," + linkBytesSent[i]);
+	    out.println("link," + i + ",packetsDropped,"
+			+ linkPacketsDropped[i]);
+	}
+
+	for (int i=0; i<portLimit; i++) {
+	    if (portMessagesSent[i] + portMessagesReceived[i] == 0)
+		continue;
+
+	    out.println("port," + i + ",messagesReceived,"
+			+ portMessagesReceived[i]);
+	    out.println("port," + i + ",bytesReceived," + portBytesReceived[i]);
+	    out.println("port," + i + ",messagesSent," + portMessagesSent[i]);
+	    out.println("port," + i + ",bytesSent," + portBytesSent[i]);
+	    out.println("port," + i + ",retransmits," + portRetransmits[i]);
+	}
+
+	roundTrip.writeCSV(out);
+	sendQueue.writeCSV(out);
+	receiveQueue.writeCSV(out);
+    }
+
+    /**
+     * Round-trip times, in ticks, measured by the kernel: from sending a
+     * message to receiving its acknowledgement or reply.
+     */
+    public final Histogram roundTrip = new Histogram("Network round trip");
+    /**
+     * The ticks each packet waited in the network link's send queue before
+     * it was sent or dropped.
+     */
+    public final Histogram sendQueue = new Histogram("Network send queue");
+    /**
+     * The ticks each packet waited, after its receive interrupt, until the
+     * kernel dequeued it.
+     */
+    public final Histogram receiveQueue =
+	new Histogram("Network receive queue");
+
+    private static final int linkAddressLimit = Packet.linkAddressLimit;
+    /** The number of mail ports, as in <tt>nachos.network.MailMessage</tt>. */
+    private static final int portLimit = 128;
+
+    private long[] linkPacketsSent = new long[linkAddressLimit];
+    private long[] linkBytesSent = new long[linkAddressLimit];
+    private long[] linkPacketsReceived = new long[linkAddressLimit];
+    private long[] linkBytesReceived = new long[linkAddressLimit];
+    private long[] linkPacketsDropped = new long[linkAddressLimit];
+
+    private long[] portMessagesSent = new long[portLimit];
+    private long[] portBytesSent = new long[portLimit];
+    private long[] portMessagesReceived = new long[portLimit];
+    private long[] portBytesReceived = new long[portLimit];
+    private long[] portRetransmits = new long[portLimit];
+}
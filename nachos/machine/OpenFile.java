@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -86,6 +87,30 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Get the time at which this file was last modified, as a host timestamp.
+     * Two opens of the same unchanged file return the same value.
+     *
+     * @return	the modification time of this file, or -1 if this file has no
+     *		modification time.
+     */
+    public long lastModified() {
+	return -1;
+    }
+
+    /**
+     * Map the contents of this file into host memory for reading. The
+     * simulated time of one sequential read of the whole file is charged
+     * once, when the file is mapped; reading the returned buffer takes no
+     * further simulated time.
+     *
+     * @return	a read-only buffer holding the contents of this file, or
+     *		<tt>null</tt> if this file cannot be mapped.
+     */
+    public ByteBuffer map() {
+	return null;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
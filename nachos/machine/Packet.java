@@ -2,9 +2,23 @@
 
 package nachos.machine;
 
+import java.util.ArrayDeque;
+
 /**
  * A link-layer packet.
  *
+ * <p>
+ * Packets received from a network link wrap a reusable buffer of
+ * <tt>maxPacketLength</tt> bytes, which is handed back for reuse with
+ * <tt>release()</tt> once the packet is no longer needed. A received packet
+ * that is never released is simply garbage collected. Their
+ * <tt>contents</tt> field is filled in as usual, unless the
+ * <tt>nachos.conf</tt> key <tt>NetworkLink.inPlace</tt> is true. Then the
+ * packets are framed in place, without copying their contents, and
+ * <tt>contents</tt> is <tt>null</tt>; a kernel that sets this key must read
+ * them with <tt>getContentsLength()</tt>, <tt>getContentsByte()</tt> and
+ * <tt>getContents()</tt>.
+ *
  * @see	nachos.machine.NetworkLink
  */
 public class Packet {
@@ -26,6 +40,7 @@ public class Packet {
 	this.dstLink = dstLink;
 	this.srcLink = srcLink;
 	this.contents = contents;
+	contentsLength = contents.length;
 
 	packetBytes = new byte[headerLength + contents.length];
 
@@ -39,6 +54,36 @@ public class Packet {
 			 contents.length);
     }
 
+    /**
+     * Allocate a new packet to be sent, whose contents have already been
+     * written to <i>packetBytes</i> at offset <tt>headerLength</tt>. The
+     * header is written in place, so the contents are not copied.
+     *
+     * @param	dstLink		the destination link address.
+     * @param	srcLink		the source link address.
+     * @param	packetBytes	the array holding the packet.
+     * @param	contentsLength	the number of content bytes.
+     */
+    public Packet(int dstLink, int srcLink, byte[] packetBytes,
+		  int contentsLength) throws MalformedPacketException {
+	// make sure the paramters are valid
+	if (dstLink < 0 || dstLink >= linkAddressLimit ||
+	    srcLink < 0 || srcLink >= linkAddressLimit ||
+	    contentsLength < 0 || contentsLength > maxContentsLength ||
+	    headerLength + contentsLength > packetBytes.length)
+	    throw new MalformedPacketException();
+
+	this.dstLink = dstLink;
+	this.srcLink = srcLink;
+	this.packetBytes = packetBytes;
+	this.contentsLength = contentsLength;
+
+	packetBytes[0] = NetworkLink.networkID;
+	packetBytes[1] = (byte) dstLink;
+	packetBytes[2] = (byte) srcLink;
+	packetBytes[3] = (byte) contentsLength;
+    }
+
     /**
      * Allocate a new packet using the specified array of bytes received from
      * the network.
@@ -60,19 +105,153 @@ public class Packet {
 	srcLink = packetBytes[2];
 
 	contents = new byte[packetBytes[3]];
+	contentsLength = contents.length;
 	System.arraycopy(packetBytes, headerLength, contents, 0,
 			 contents.length);
     }
 
+    /**
+     * Allocate a new packet that frames the first <i>length</i> bytes of the
+     * specified buffer in place, without copying them. If the buffer is
+     * <tt>maxPacketLength</tt> bytes long, such as one returned by
+     * <tt>allocateBuffer()</tt>, <tt>release()</tt> hands it on for reuse.
+     *
+     * @param	buffer	the buffer holding the packet received from the
+     *			network.
+     * @param	length	the number of bytes received.
+     */
+    public Packet(byte[] buffer, int length) throws MalformedPacketException {
+	// make sure we have a valid header
+	if (length < headerLength || length > buffer.length ||
+	    buffer[0] != NetworkLink.networkID ||
+	    buffer[1] < 0 || buffer[1] >= linkAddressLimit ||
+	    buffer[2] < 0 || buffer[2] >= linkAddressLimit ||
+	    buffer[3] < 0 || buffer[3] > length-4)
+	    throw new MalformedPacketException();
+
+	packetBytes = buffer;
+	pooled = (buffer.length == maxPacketLength);
+
+	dstLink = buffer[1];
+	srcLink = buffer[2];
+	contentsLength = buffer[3];
+    }
+
+    /**
+     * Return the number of bytes in this packet, including the header. This
+     * may be less than the length of <tt>packetBytes</tt>.
+     *
+     * @return	the length of the packet.
+     */
+    public int getLength() {
+	return headerLength + contentsLength;
+    }
+
+    /**
+     * Return the number of content bytes in this packet.
+     *
+     * @return	the length of the contents.
+     */
+    public int getContentsLength() {
+	return contentsLength;
+    }
+
+    /**
+     * Return one byte of the contents of this packet.
+     *
+     * @param	offset	the offset of the byte within the contents.
+     * @return	the byte.
+     */
+    public byte getContentsByte(int offset) {
+	Lib.assertTrue(offset >= 0 && offset < contentsLength);
+
+	return packetBytes[headerLength + offset];
+    }
+
+    /**
+     * Copy part of the contents of this packet.
+     *
+     * @param	offset	the offset of the first byte within the contents.
+     * @param	buf	the buffer to copy to.
+     * @param	bufOffset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to copy.
+     */
+    public void getContents(int offset, byte[] buf, int bufOffset,
+			    int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= contentsLength);
+
+	System.arraycopy(packetBytes, headerLength + offset, buf, bufOffset,
+			 length);
+    }
+
+    /**
+     * Fill in the <tt>contents</tt> field of a packet that was framed in
+     * place.
+     */
+    void copyContents() {
+	if (contents != null)
+	    return;
+
+	contents = new byte[contentsLength];
+	System.arraycopy(packetBytes, headerLength, contents, 0,
+			 contentsLength);
+    }
+
+    /**
+     * Return the buffer of this packet for reuse. The packet must not be used
+     * afterwards. Releasing a packet twice, or releasing a packet that does
+     * not wrap a reusable buffer, does nothing.
+     */
+    public void release() {
+	if (!pooled)
+	    return;
+
+	pooled = false;
+
+	synchronized (pool) {
+	    if (pool.size() < maxPooledBuffers)
+		pool.add(packetBytes);
+	}
+    }
+
+    /**
+     * Return a buffer of <tt>maxPacketLength</tt> bytes, reusing one that was
+     * released if possible.
+     *
+     * @return	a buffer for a packet.
+     */
+    public static byte[] allocateBuffer() {
+	synchronized (pool) {
+	    if (!pool.isEmpty())
+		return pool.removeLast();
+	}
+
+	return new byte[maxPacketLength];
+    }
+
     /** This packet, as an array of bytes that can be sent on a network. */
     public byte[] packetBytes;
     /** The address of the destination link of this packet. */
     public int dstLink;
     /** The address of the source link of this packet. */
     public int srcLink;
-    /** The contents of this packet, excluding the link-layer header. */
+    /**
+     * The contents of this packet, excluding the link-layer header, or
+     * <tt>null</tt> if this packet was received with
+     * <tt>NetworkLink.inPlace</tt> set.
+     */
     public byte[] contents;
 
+    private int contentsLength;
+    private boolean pooled = false;
+
+    /** When this packet entered a network link queue, for statistics. */
+    long queueTime;
+
+    private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+    private static final int maxPooledBuffers = 256;
+
     /**
      * The number of bytes in a link-layer packet header. The header is
      * formatted as follows:
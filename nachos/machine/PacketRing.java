@@ -0,0 +1,146 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A bounded queue of packets in a memory-mapped file, used by a network link
+ * to receive packets from other Nachos instances on the same host without
+ * sockets. Each link address has its own ring; any instance may add packets
+ * to it, but only the instance that owns the address removes them.
+ *
+ * <p>
+ * The file starts with a header holding the number of slots and the head and
+ * tail counters, followed by the slots themselves. Each slot holds a length
+ * byte and up to <tt>Packet.maxPacketLength</tt> bytes of packet. Updates are
+ * serialized across processes with a lock on the header.
+ */
+class PacketRing {
+    /**
+     * Open the ring in the specified file.
+     *
+     * @param	file	the file holding the ring.
+     * @param	slots	the number of packets the ring can hold, or 0 to open an
+     *			existing ring of any size.
+     */
+    PacketRing(File file, int slots) throws IOException {
+	if (slots == 0 && !file.exists())
+	    throw new IOException("no ring");
+
+	this.file = new RandomAccessFile(file, "rw");
+	channel = this.file.getChannel();
+
+	if (slots == 0) {
+	    if (channel.size() < headerLength)
+		throw new IOException("short ring");
+
+	    ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength);
+	    slots = ring.getInt(slotsOffset);
+	    if (slots <= 0)
+		throw new IOException("ring not ready");
+	}
+
+	ring = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+			   headerLength + (long) slots*slotLength);
+	this.slots = slots;
+    }
+
+    /**
+     * Take ownership of this ring, and discard any packets left in it. Fails
+     * if another running instance already owns it.
+     *
+     * @return	<tt>true</tt> if this instance now owns the ring.
+     */
+    boolean own() throws IOException {
+	owner = channel.tryLock(ownerOffset, 1, false);
+	if (owner == null) {
+	    file.close();
+	    return false;
+	}
+
+	FileLock lock = channel.lock(0, headerLength, false);
+	ring.putInt(slotsOffset, slots);
+	ring.putInt(headOffset, 0);
+	ring.putInt(tailOffset, 0);
+	lock.release();
+
+	return true;
+    }
+
+    /**
+     * Add a packet to the tail of this ring.
+     *
+     * @param	packetBytes	the array holding the packet.
+     * @param	length		the length of the packet.
+     * @return	<tt>true</tt> if the packet was added, or <tt>false</tt> if the
+     *		ring was full.
+     */
+    boolean put(byte[] packetBytes, int length) throws IOException {
+	Lib.assertTrue(length <= Packet.maxPacketLength);
+
+	FileLock lock = channel.lock(0, headerLength, false);
+
+	int head = ring.getInt(headOffset);
+	int tail = ring.getInt(tailOffset);
+
+	boolean added = (tail - head < slots);
+	if (added) {
+	    int slot = headerLength + (tail % slots)*slotLength;
+
+	    ring.put(slot, (byte) length);
+	    for (int i=0; i<length; i++)
+		ring.put(slot+1+i, packetBytes[i]);
+
+	    ring.putInt(tailOffset, tail+1);
+	}
+
+	lock.release();
+	return added;
+    }
+
+    /**
+     * Remove the packet at the head of this ring.
+     *
+     * @param	buffer	a buffer of <tt>Packet.maxPacketLength</tt> bytes to
+     *			hold the packet.
+     * @return	the length of the packet, or -1 if the ring is empty.
+     */
+    int take(byte[] buffer) throws IOException {
+	// only the owner moves the head, so an empty ring needs no lock
+	if (ring.getInt(headOffset) == ring.getInt(tailOffset))
+	    return -1;
+
+	FileLock lock = channel.lock(0, headerLength, false);
+
+	int head = ring.getInt(headOffset);
+	int slot = headerLength + (head % slots)*slotLength;
+
+	int length = ring.get(slot) & 0xFF;
+	for (int i=0; i<length; i++)
+	    buffer[i] = ring.get(slot+1+i);
+
+	ring.putInt(headOffset, head+1);
+
+	lock.release();
+	return length;
+    }
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer ring;
+    private FileLock owner = null;
+    private int slots;
+
+    private static final int slotsOffset = 0, headOffset = 4, tailOffset = 8;
+    private static final int headerLength = 12;
+    private static final int slotLength = 1 + Packet.maxPacketLength;
+
+    /** A byte past the end of any ring, locked by the owner while it runs. */
+    private static final long ownerOffset = 1L<<30;
+}
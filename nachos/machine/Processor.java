@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +22,15 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ *
+ * <p>
+ * A processor can have several cores, set by the <tt>nachos.conf</tt> key
+ * <tt>Machine.numProcessors</tt>. The cores share physical memory, but each
+ * has its own registers and TLB (or page table). They are simulated one at a
+ * time, in an order the kernel chooses with <tt>setCore()</tt>, so a run is
+ * as deterministic as on a single core. Register accesses, address
+ * translation, and user instructions act on the current core, and the user
+ * ticks of each core are counted separately.
  */
 public final class Processor {
     /**
@@ -29,7 +42,25 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
+	this(privilege, numPhysPages, 1);
+    }
+
+    /**
+     * Allocate a new MIPS processor, with the specified amount of memory and
+     * number of cores.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	numPhysPages	the number of pages of physical memory to
+     *				attach.
+     * @param	numCores	the number of cores.
+     */
+    public Processor(Privilege privilege, int numPhysPages, int numCores) {
 	System.out.print(" processor");
+	if (numCores > 1)
+	    System.out.print("(" + numCores + " cores)");
+
+	Lib.assertTrue(numCores > 0);
 
 	this.privilege = privilege;
 	privilege.processor = new ProcessorPrivilege();
@@ -42,18 +73,40 @@ public final class Processor {
 	
 	this.numPhysPages = numPhysPages;
 
-	for (int i=0; i<numUserRegisters; i++)
-	    registers[i] = 0;
-
 	mainMemory = new byte[pageSize * numPhysPages];
 
+	coreRegisters = new int[numCores][numUserRegisters];
+	coreTranslations = new TranslationEntry[numCores][];
+	coreTicks = new long[numCores];
+
 	if (usingTLB) {
-	    translations = new TranslationEntry[tlbSize];
-	    for (int i=0; i<tlbSize; i++)
-		translations[i] = new TranslationEntry();
+	    for (int core=0; core<numCores; core++) {
+		coreTranslations[core] = new TranslationEntry[tlbSize];
+		for (int i=0; i<tlbSize; i++)
+		    coreTranslations[core][i] = new TranslationEntry();
+	    }
 	}
-	else {
-	    translations = null;
+
+	registers = coreRegisters[0];
+	translations = coreTranslations[0];
+
+	if (numCores > 1)
+	    privilege.stats.coreTicks = coreTicks;
+
+	if (Config.getBoolean("Processor.profile", false)) {
+	    profiler = new Profiler();
+	    privilege.stats.profiler = profiler;
+	}
+
+	syscallStats = new SyscallStats();
+	if (Config.getBoolean("SyscallStats.enabled", false))
+	    privilege.stats.syscalls = syscallStats;
+
+	final String jsonName = Config.getString("SyscallStats.json");
+	if (jsonName != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { writeSyscallStats(jsonName); }
+		});
 	}
     }
 
@@ -101,6 +154,7 @@ public final class Processor {
 		e.handle();
 	    }
 
+	    coreTicks[core] += Stats.UserTick;
 	    privilege.interrupt.tick(false);
 	}
     }
@@ -130,6 +184,47 @@ public final class Processor {
 	    registers[number] = value;
     }
 
+    /**
+     * Return the number of cores of this processor.
+     *
+     * @return	the number of cores.
+     */
+    public int getNumCores() {
+	return coreRegisters.length;
+    }
+
+    /**
+     * Return the core that register accesses and address translation act on,
+     * set by the last call to <tt>setCore()</tt>.
+     *
+     * @return	the current core.
+     */
+    public int getCore() {
+	return core;
+    }
+
+    /**
+     * Switch to the specified core. Further register accesses, address
+     * translations, and user instructions use the registers and TLB (or page
+     * table) of that core, which keeps those of the other cores unchanged.
+     *
+     * @param	number	the core to switch to.
+     */
+    public void setCore(int number) {
+	Lib.assertTrue(number >= 0 && number < coreRegisters.length);
+
+	if (number == core)
+	    return;
+
+	finishLoad();
+
+	coreTranslations[core] = translations;
+
+	core = number;
+	registers = coreRegisters[core];
+	translations = coreTranslations[core];
+    }
+
     /**
      * Test whether this processor uses a software-managed TLB, or single-level
      * paging.
@@ -228,6 +323,32 @@ public final class Processor {
 	return numPhysPages;
     }
 
+    /**
+     * Return the syscall statistics of this processor, to which the kernel
+     * adds the syscalls it handles.
+     *
+     * @return	the syscall statistics.
+     */
+    public SyscallStats getSyscallStats() {
+	return syscallStats;
+    }
+
+    private void writeSyscallStats(final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			PrintStream out =
+			    new PrintStream(new FileOutputStream(fileName));
+			syscallStats.writeJSON(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("Unable to write " + fileName);
+		    }
+		}
+	    });
+    }
+
     /**
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
@@ -294,13 +415,13 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
+	if (Trace.processor)
+	    Trace.event(Trace.eventTranslate, writing ? 1 : 0, vaddr, 0);
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
+	    if (Trace.processor)
+		Trace.event(Trace.eventFault, Trace.faultAlignment, vaddr, 0);
 	    throw new MipsException(exceptionAddressError, vaddr);
 	}
 
@@ -316,7 +437,8 @@ public final class Processor {
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
+		if (Trace.processor)
+		    Trace.event(Trace.eventFault, Trace.faultPage, vaddr, 0);
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
@@ -332,21 +454,24 @@ public final class Processor {
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
+		if (Trace.processor)
+		    Trace.event(Trace.eventFault, Trace.faultTLB, vaddr, 0);
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
+	    if (Trace.processor)
+		Trace.event(Trace.eventFault, Trace.faultReadOnly, vaddr, 0);
 	    throw new MipsException(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
+	    if (Trace.processor)
+		Trace.event(Trace.eventFault, Trace.faultPhysical, vaddr, 0);
 	    throw new MipsException(exceptionBusError, vaddr);
 	}
 
@@ -357,8 +482,8 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	if (Trace.processor)
+	    Trace.event(Trace.eventPhysical, 0, paddr, 0);
 	return paddr;
     }
 
@@ -372,18 +497,16 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size);
+	if (Trace.processor)
+	    Trace.event(Trace.eventRead, size, vaddr, 0);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
 	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				   size);
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tvalue read=0x" +
-			       Lib.toHexString(value, size*2));
+	if (Trace.processor)
+	    Trace.event(Trace.eventValue, size, value, 0);
 	
 	return value;
     }
@@ -399,10 +522,8 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size + ", value=0x"
-			       + Lib.toHexString(value, size*2));
+	if (Trace.processor)
+	    Trace.event(Trace.eventWrite, size, vaddr, value);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
@@ -527,8 +648,17 @@ public final class Processor {
     /** Provides privilege to this processor. */
     private Privilege privilege;
     
-    /** MIPS registers accessible to the kernel. */
-    private int registers[] = new int[numUserRegisters];
+    /** MIPS registers accessible to the kernel, those of the current core. */
+    private int registers[];
+
+    /** The registers of each core. */
+    private int[][] coreRegisters;
+    /** The translation entries of each core, except the current one. */
+    private TranslationEntry[][] coreTranslations;
+    /** The user ticks of each core. */
+    private long[] coreTicks;
+    /** The current core. */
+    private int core = 0;
 
     /** The registered target of the delayed load currently in progress. */
     private int loadTarget = 0;
@@ -559,9 +689,12 @@ public final class Processor {
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The execution profile, or <tt>null</tt> if not profiling. */
+    private Profiler profiler = null;
+    /** Syscall statistics, kept by the kernel. */
+    private SyscallStats syscallStats;
+
     private static final char dbgProcessor = 'p';
-    private static final char dbgDisassemble = 'm';
-    private static final char dbgFullDisassemble = 'M';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -569,6 +702,216 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Return a number for an opcode, from 0 to <tt>numInstructions</tt>-1,
+     * that tells apart every instruction the processor decodes. Used by the
+     * profiler to count instructions.
+     *
+     * @param	op	the primary opcode.
+     * @param	rt	the <tt>rt</tt> field, which selects a reg-imm
+     *			instruction.
+     * @param	func	the <tt>func</tt> field, which selects a special
+     *			instruction.
+     * @return	the number of the opcode.
+     */
+    static int instructionNumber(int op, int rt, int func) {
+	switch (op) {
+	case 0:
+	    return 64 + func;
+	case 1:
+	    return 128 + rt;
+	default:
+	    return op;
+	}
+    }
+
+    /**
+     * Return the mnemonic of an instruction numbered by
+     * <tt>instructionNumber()</tt>.
+     *
+     * @param	number	the number of the opcode.
+     * @return	its mnemonic, such as <tt>addiu</tt>.
+     */
+    static String instructionName(int number) {
+	Mips info;
+	if (number < 64)
+	    info = Mips.optable[number];
+	else if (number < 128)
+	    info = Mips.specialtable[number-64];
+	else
+	    info = Mips.regimmtable[number-128];
+
+	return info.name.substring(0, info.name.indexOf(' '));
+    }
+
+    /** The number of opcodes <tt>instructionNumber()</tt> can return. */
+    static final int numInstructions = 160;
+
+    /**
+     * Disassemble an instruction, as the <tt>m</tt> and <tt>M</tt> debug flags
+     * show it.
+     *
+     * @param	pc	the address of the instruction.
+     * @param	value	the instruction.
+     * @param	rsValue	the value of its <tt>rs</tt> register before it ran.
+     * @param	rtValue	the value of its <tt>rt</tt> register before it ran.
+     * @param	full	<tt>true</tt> to show register values, as <tt>M</tt>
+     *			does.
+     * @return	the disassembled instruction, padded to 48 columns.
+     */
+    static String disassemble(int pc, int value, int rsValue, int rtValue,
+			      boolean full) {
+	int op = Lib.extract(value, 26, 6);
+	int rs = Lib.extract(value, 21, 5);
+	int rt = Lib.extract(value, 16, 5);
+	int rd = Lib.extract(value, 11, 5);
+	int sh = Lib.extract(value, 6, 5);
+	int func = Lib.extract(value, 0, 6);
+	int target = Lib.extract(value, 0, 26);
+	int imm = Lib.extend(value, 0, 16);
+
+	Mips info;
+	switch (op) {
+	case 0:
+	    info = Mips.specialtable[func];
+	    break;
+	case 1:
+	    info = Mips.regimmtable[rt];
+	    break;
+	default:
+	    info = Mips.optable[op];
+	    break;
+	}
+
+	StringBuffer out = new StringBuffer();
+
+	if (info.operation == Mips.INVALID) {
+	    out.append("invalid: op=" + Lib.toHexString(op, 2) +
+		       " rs=" + Lib.toHexString(rs, 2) +
+		       " rt=" + Lib.toHexString(rt, 2) +
+		       " rd=" + Lib.toHexString(rd, 2) +
+		       " sh=" + Lib.toHexString(sh, 2) +
+		       " func=" + Lib.toHexString(func, 2) +
+		       "\n");
+	    return out.toString();
+	}
+
+	// the delay slot follows the instruction
+	int jtarget;
+	if (info.format == Mips.RFMT)
+	    jtarget = rsValue;
+	else if (info.format == Mips.IFMT)
+	    jtarget = pc + 4 + (imm<<2);
+	else if (info.format == Mips.JFMT)
+	    jtarget = ((pc + 4)&0xF0000000) | (target<<2);
+	else
+	    jtarget = -1;
+
+	if (Lib.test(Mips.UNSIGNED, info.flags))
+	    imm &= 0xFFFF;
+
+	String name = info.name;
+	int spaceIndex = name.indexOf(' ');
+	Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
+
+	String instname = name.substring(0, spaceIndex);
+	char[] args = name.substring(spaceIndex+1).toCharArray();
+
+	out.append(instname + "\t");
+
+	int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+	for (int i=0; i<args.length; i++) {
+	    switch (args[i]) {
+	    case Mips.RS:
+		out.append("$" + rs);
+		minCharsPrinted += 2;
+		maxCharsPrinted += 3;
+
+		if (full) {
+		    out.append("#0x" + Lib.toHexString(rsValue));
+		    minCharsPrinted += 11;
+		    maxCharsPrinted += 11;
+		}
+		break;
+	    case Mips.RT:
+		out.append("$" + rt);
+		minCharsPrinted += 2;
+		maxCharsPrinted += 3;
+
+		if (full &&
+		    (i!=0 || !Lib.test(Mips.DST, info.flags)) &&
+		    !Lib.test(Mips.DELAYEDLOAD, info.flags)) {
+		    out.append("#0x" + Lib.toHexString(rtValue));
+		    minCharsPrinted += 11;
+		    maxCharsPrinted += 11;
+		}
+		break;
+	    case Mips.RETURNADDRESS:
+		if (rd == 31)
+		    continue;
+	    case Mips.RD:
+		out.append("$" + rd);
+		minCharsPrinted += 2;
+		maxCharsPrinted += 3;
+		break;
+	    case Mips.IMM:
+		out.append(imm);
+		minCharsPrinted += 1;
+		maxCharsPrinted += 6;
+		break;
+	    case Mips.SHIFTAMOUNT:
+		out.append(sh);
+		minCharsPrinted += 1;
+		maxCharsPrinted += 2;
+		break;
+	    case Mips.ADDR:
+		out.append(imm + "($" + rs);
+		minCharsPrinted += 4;
+		maxCharsPrinted += 5;
+
+		if (full) {
+		    out.append("#0x" + Lib.toHexString(rsValue));
+		    minCharsPrinted += 11;
+		    maxCharsPrinted += 11;
+		}
+
+		out.append(")");
+		break;
+	    case Mips.TARGET:
+		out.append("0x" + Lib.toHexString(jtarget));
+		minCharsPrinted += 10;
+		maxCharsPrinted += 10;
+		break;
+	    default:
+		Lib.assertTrue(false);
+	    }
+	    if (i+1 < args.length) {
+		out.append(", ");
+		minCharsPrinted += 2;
+		maxCharsPrinted += 2;
+	    }
+	    else {
+		// most separation possible is tsi, 5+1+1=7,
+		// thankfully less than 8 (makes this possible)
+		Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
+		// longest string is stj, which is 40-42 chars w/ -d M;
+		// go for 48
+		while ((minCharsPrinted%8) != 0) {
+		    out.append(" ");
+		    minCharsPrinted++;
+		    maxCharsPrinted++;
+		}
+		while (minCharsPrinted < 48) {
+		    out.append("\t");
+		    minCharsPrinted += 8;
+		}
+	    }
+	}
+
+	return out.toString();
+    }
+
     private class MipsException extends Exception {
 	public MipsException(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
@@ -589,8 +932,15 @@ public final class Processor {
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		System.out.println("exception: " + exceptionNames[cause]);
+	    if (profiler != null && cause == exceptionSyscall)
+		profiler.syscall(registers[regV0]);
+
+	    if (Trace.disassemble || Trace.fullDisassemble) {
+		if (Trace.isRecording())
+		    Trace.record(Trace.eventException, cause, badVAddr, 0, 0, 0);
+		else
+		    System.out.println("exception: " + exceptionNames[cause]);
+	    }
 
 	    finishLoad();
 
@@ -612,17 +962,42 @@ public final class Processor {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
 	    decode();
+
+	    if (profiler != null)
+		profile();
+
 	    execute();
 	    writeBack();
+
+	    if (profiler != null && test(Mips.BRANCH))
+		profiler.branch(number, branch);
 	}	
 
+	private void profile() {
+	    number = instructionNumber(op, rt, func);
+	    profiler.instruction(registers[regPC], number);
+
+	    switch (operation) {
+	    case Mips.LOAD:
+	    case Mips.LWL:
+	    case Mips.LWR:
+		profiler.load(addr);
+		break;
+	    case Mips.STORE:
+	    case Mips.SWL:
+	    case Mips.SWR:
+		profiler.store(addr);
+		break;
+	    }
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if (((Trace.disassemble && !Trace.processor) ||
+		 Trace.fullDisassemble) && !Trace.isRecording())
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
@@ -718,130 +1093,33 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
+	    if (Trace.disassemble || Trace.fullDisassemble) {
+		if (Trace.isRecording()) {
+		    Trace.record(Trace.eventInstruction,
+				 (Trace.fullDisassemble ? 1 : 0) |
+				 (Trace.processor ? 2 : 0),
+				 registers[regPC], value,
+				 registers[rs], registers[rt]);
+		}
+		else {
+		    print();
+		}
+	    }
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    boolean prefix = Trace.disassemble && Trace.processor &&
+		!Trace.fullDisassemble;
+
+	    if (prefix)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
-	    
-	    if (operation == Mips.INVALID) {
-		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
-				 " rs=" + Lib.toHexString(rs, 2) +
-				 " rt=" + Lib.toHexString(rt, 2) +
-				 " rd=" + Lib.toHexString(rd, 2) +
-				 " sh=" + Lib.toHexString(sh, 2) +
-				 " func=" + Lib.toHexString(func, 2) +
-				 "\n");
-		return;
-	    }
-
-	    int spaceIndex = name.indexOf(' ');
-	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
-
-	    String instname = name.substring(0, spaceIndex);
-	    char[] args = name.substring(spaceIndex+1).toCharArray();
 
-	    System.out.print(instname + "\t");
+	    System.out.print(disassemble(registers[regPC], value,
+					 registers[rs], registers[rt],
+					 Trace.fullDisassemble));
 
-	    int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-	    for (int i=0; i<args.length; i++) {
-		switch (args[i]) {
-		case Mips.RS:
-		    System.out.print("$" + rs);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RT:
-		    System.out.print("$" + rt);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-
-		    if (Lib.test(dbgFullDisassemble) &&
-			(i!=0 || !test(Mips.DST)) &&
-			!test(Mips.DELAYEDLOAD)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rt]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RETURNADDRESS:
-		    if (rd == 31)
-			continue;
-		case Mips.RD:
-		    System.out.print("$" + rd);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    break;
-		case Mips.IMM:
-		    System.out.print(imm);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 6;
-		    break;
-		case Mips.SHIFTAMOUNT:
-		    System.out.print(sh);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 2;
-		    break;
-		case Mips.ADDR:
-		    System.out.print(imm + "($" + rs);
-		    minCharsPrinted += 4;
-		    maxCharsPrinted += 5;
-
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    
-		    System.out.print(")");
-		    break;
-		case Mips.TARGET:
-		    System.out.print("0x" + Lib.toHexString(jtarget));
-		    minCharsPrinted += 10;
-		    maxCharsPrinted += 10;
-		    break;
-		default:
-		    Lib.assertTrue(false);    
-		}
-		if (i+1 < args.length) {
-		    System.out.print(", ");
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 2;
-		}
-		else {
-		    // most separation possible is tsi, 5+1+1=7,
-		    // thankfully less than 8 (makes this possible)
-		    Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
-		    // longest string is stj, which is 40-42 chars w/ -d M;
-		    // go for 48
-		    while ((minCharsPrinted%8) != 0) {
-			System.out.print(" ");
-			minCharsPrinted++;
-			maxCharsPrinted++;
-		    }
-		    while (minCharsPrinted < 48) {
-			System.out.print("\t");
-			minCharsPrinted += 8;
-		    }
-		}
-	    }
-
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (prefix)
 		System.out.print("\n");
 	}
 
@@ -1033,10 +1311,17 @@ public final class Processor {
 		registers[dstReg] = (int) dst;
 
 	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
+		if (Trace.fullDisassemble) {
+		    if (Trace.isRecording()) {
+			Trace.record(Trace.eventResult,
+				     test(Mips.DELAYEDLOAD) ? 1 : 0,
+				     (int) dst, 0, 0, 0);
+		    }
+		    else {
+			System.out.print("#0x" + Lib.toHexString((int) dst));
+			if (test(Mips.DELAYEDLOAD))
+			    System.out.print(" (delayed load)");
+		    }
 		}
 	    }
 
@@ -1046,13 +1331,13 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if (((Trace.disassemble && !Trace.processor) ||
+		 Trace.fullDisassemble) && !Trace.isRecording())
 		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int value, op, rs, rt, rd, sh, func, target, imm, number;
 	int operation, format, flags;
 	String name;
 
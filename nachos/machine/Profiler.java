@@ -0,0 +1,202 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * An execution profile of the user programs run by the MIPS processor. The
+ * profiler counts the instructions executed, by opcode and by the virtual
+ * page of their PC; the branches taken and not taken, by opcode; the loads
+ * and stores, by the virtual page they access; and the syscalls, by number.
+ * Pages are counted across all address spaces, so the pages of different
+ * processes that share a virtual page number are counted together.
+ *
+ * <p>
+ * The profiler is enabled by setting the <tt>nachos.conf</tt> key
+ * <tt>Processor.profile</tt>, and is printed with the rest of
+ * <tt>Stats</tt> when the machine halts. The counters are arrays of
+ * <tt>long</tt>, so counting an instruction allocates nothing.
+ */
+public final class Profiler {
+    /**
+     * Allocate a new, empty profile.
+     */
+    public Profiler() {
+    }
+
+    /**
+     * Count an instruction about to be executed.
+     *
+     * @param	pc	the address of the instruction.
+     * @param	number	the number of its opcode, as returned by
+     *			<tt>Processor.instructionNumber()</tt>.
+     */
+    void instruction(int pc, int number) {
+	instructions[number]++;
+	textPages = count(textPages, pc >>> pageShift);
+    }
+
+    /**
+     * Count a conditional or unconditional branch.
+     *
+     * @param	number	the number of its opcode.
+     * @param	taken	whether the branch was taken.
+     */
+    void branch(int number, boolean taken) {
+	if (taken)
+	    branchesTaken[number]++;
+	else
+	    branchesNotTaken[number]++;
+    }
+
+    /**
+     * Count a load from the specified virtual address.
+     */
+    void load(int vaddr) {
+	loadPages = count(loadPages, vaddr >>> pageShift);
+    }
+
+    /**
+     * Count a store to the specified virtual address.
+     */
+    void store(int vaddr) {
+	storePages = count(storePages, vaddr >>> pageShift);
+    }
+
+    /**
+     * Count a syscall.
+     *
+     * @param	number	the syscall number, from register <tt>v0</tt>.
+     */
+    void syscall(int number) {
+	if (number >= 0 && number < syscalls.length)
+	    syscalls[number]++;
+	else
+	    badSyscalls++;
+    }
+
+    /**
+     * Increment a page counter, growing the array if the page is beyond its
+     * end. The array only grows a few times per run.
+     */
+    private static long[] count(long[] counts, int page) {
+	if (page >= counts.length) {
+	    long[] larger = new long[Math.max(counts.length*2, page+1)];
+	    System.arraycopy(counts, 0, larger, 0, counts.length);
+	    counts = larger;
+	}
+
+	counts[page]++;
+	return counts;
+    }
+
+    /**
+     * Print this profile. Opcodes are listed most frequent first; pages are
+     * listed most frequent first, up to <tt>numHotPages</tt> of each.
+     */
+    public void print() {
+	long total = 0;
+	for (int i=0; i<instructions.length; i++)
+	    total += instructions[i];
+
+	System.out.println("Profile: " + total + " instructions");
+	if (total == 0)
+	    return;
+
+	for (Integer number : sorted(instructions)) {
+	    int i = number.intValue();
+	    String line = "  " + Processor.instructionName(i) + "\t"
+		+ instructions[i] + "\t" + percent(instructions[i], total);
+
+	    if (branchesTaken[i] + branchesNotTaken[i] > 0)
+		line += "\ttaken " + branchesTaken[i]
+		    + ", not taken " + branchesNotTaken[i];
+
+	    System.out.println(line);
+	}
+
+	printPages("Profile: hot text pages", textPages, total);
+
+	long loads = 0, stores = 0;
+	for (int i=0; i<loadPages.length; i++)
+	    loads += loadPages[i];
+	for (int i=0; i<storePages.length; i++)
+	    stores += storePages[i];
+
+	printPages("Profile: " + loads + " loads, by page", loadPages, loads);
+	printPages("Profile: " + stores + " stores, by page", storePages,
+		   stores);
+
+	System.out.println("Profile: syscalls");
+	for (int i=0; i<syscalls.length; i++) {
+	    if (syscalls[i] > 0)
+		System.out.println("  " + i + "\t" + syscalls[i]);
+	}
+	if (badSyscalls > 0)
+	    System.out.println("  other\t" + badSyscalls);
+    }
+
+    private static void printPages(String title, long[] counts, long total) {
+	System.out.println(title);
+
+	int printed = 0;
+	for (Integer page : sorted(counts)) {
+	    if (printed++ == numHotPages)
+		break;
+
+	    int i = page.intValue();
+	    System.out.println("  0x" + Lib.toHexString(i << pageShift)
+			       + "\t" + counts[i] + "\t"
+			       + percent(counts[i], total));
+	}
+    }
+
+    /**
+     * Return the indices of the nonzero elements of <i>counts</i>, largest
+     * first.
+     */
+    private static ArrayList<Integer> sorted(final long[] counts) {
+	ArrayList<Integer> indices = new ArrayList<Integer>();
+	for (int i=0; i<counts.length; i++) {
+	    if (counts[i] > 0)
+		indices.add(new Integer(i));
+	}
+
+	Collections.sort(indices, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    long ca = counts[a.intValue()], cb = counts[b.intValue()];
+		    if (ca != cb)
+			return (ca > cb) ? -1 : 1;
+		    else
+			return a.compareTo(b);
+		}
+	    });
+
+	return indices;
+    }
+
+    private static String percent(long count, long total) {
+	long tenths = count * 1000 / total;
+	return (tenths / 10) + "." + (tenths % 10) + "%";
+    }
+
+    /** The number of pages of each kind to print. */
+    private static final int numHotPages = 10;
+    private static final int pageShift =
+	Integer.numberOfTrailingZeros(Processor.pageSize);
+    private static final int syscallLimit = 64;
+
+    private long[] instructions = new long[Processor.numInstructions];
+    private long[] branchesTaken = new long[Processor.numInstructions];
+    private long[] branchesNotTaken = new long[Processor.numInstructions];
+
+    private long[] textPages = new long[64];
+    private long[] loadPages = new long[64];
+    private long[] storePages = new long[64];
+
+    private long[] syscalls = new long[syscallLimit];
+    private long badSyscalls = 0;
+}
@@ -0,0 +1,359 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the nondeterministic inputs of a run, and feeds them back in a
+ * later run, so that the later run repeats the first exactly. The inputs are
+ * the values returned by <tt>Lib.random()</tt> (such as timer jitter, lottery
+ * draws, and network drops), the console input delivered by each receive
+ * interrupt, the packets delivered by each network receive interrupt, and
+ * the link address of the network.
+ *
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>Replay.record</tt> names a file, every
+ * input is appended to it, with the tick at which it happened, as it
+ * happens. Each record is a type byte, the ticks since the previous record
+ * and the value, with the numbers in a variable-length encoding, so that
+ * recording an input costs only a few bytes appended to a buffer.
+ *
+ * <p>
+ * If <tt>Replay.replay</tt> names a file recorded this way, the devices take
+ * their inputs from it instead of from the host. Since the run is the same,
+ * every input is asked for in the same order and at the same tick as it was
+ * recorded. If not, the run has diverged (for example, because the kernel
+ * was changed), and Nachos stops with an error giving the tick. When the
+ * recording runs out, the random number generator takes over, and the
+ * console and network receive nothing more; the debug flag <tt>r</tt> shows
+ * when.
+ */
+public final class Replay {
+    private Replay() {
+    }
+
+    /**
+     * Start recording or replaying, if <tt>Replay.record</tt> or
+     * <tt>Replay.replay</tt> is set. Called by <tt>Machine</tt> once the
+     * configuration is loaded, before the devices are created.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    static void init(Privilege privilege) {
+	Replay.privilege = privilege;
+
+	final String recordName = Config.getString("Replay.record");
+	final String replayName = Config.getString("Replay.replay");
+	Lib.assertTrue(recordName == null || replayName == null,
+		       "cannot record and replay at once");
+
+	if (recordName != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			try {
+			    out = new DataOutputStream(
+				new BufferedOutputStream(
+				    new FileOutputStream(recordName)));
+			    out.writeInt(magic);
+			}
+			catch (IOException e) {
+			    System.out.println("Unable to write " + recordName);
+			    out = null;
+			}
+		    }
+		});
+
+	    if (out == null)
+		return;
+
+	    recording = true;
+
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { close(); }
+		});
+	}
+	else if (replayName != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			try {
+			    in = new DataInputStream(
+				new BufferedInputStream(
+				    new FileInputStream(replayName)));
+			}
+			catch (IOException e) {
+			    System.out.println("Unable to read " + replayName);
+			}
+		    }
+		});
+
+	    boolean valid;
+	    try {
+		valid = (in != null && in.readInt() == magic);
+	    }
+	    catch (IOException e) {
+		valid = false;
+	    }
+
+	    Lib.assertTrue(valid, replayName + " is not a Nachos replay log");
+
+	    replaying = true;
+	    readNext();
+	}
+    }
+
+    /**
+     * Test whether inputs are being recorded.
+     *
+     * @return	<tt>true</tt> if recording.
+     */
+    public static boolean isRecording() {
+	return recording;
+    }
+
+    /**
+     * Test whether inputs are being replayed. Stays <tt>true</tt> after the
+     * recording runs out.
+     *
+     * @return	<tt>true</tt> if replaying.
+     */
+    public static boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Test whether every recorded input has been replayed.
+     *
+     * @return	<tt>true</tt> if the recording has run out.
+     */
+    public static boolean isFinished() {
+	return nextType == eventEnd;
+    }
+
+    /**
+     * Record an input that is a number. Must only be called while recording.
+     *
+     * @param	type	the type of the input, such as <tt>eventRandom</tt>.
+     * @param	value	the value of the input.
+     */
+    static void recordLong(int type, long value) {
+	try {
+	    header(type);
+	    writeVarLong(value);
+	}
+	catch (IOException e) {
+	    stopRecording();
+	}
+    }
+
+    /**
+     * Record an input that is a sequence of bytes. Must only be called while
+     * recording.
+     *
+     * @param	type	the type of the input, such as <tt>eventConsole</tt>.
+     * @param	data	the array holding the input.
+     * @param	offset	the offset in the array of the first byte.
+     * @param	length	the number of bytes.
+     */
+    static void recordBytes(int type, byte[] data, int offset, int length) {
+	try {
+	    header(type);
+	    writeVarLong(length);
+	    out.write(data, offset, length);
+	}
+	catch (IOException e) {
+	    stopRecording();
+	}
+    }
+
+    private static void header(int type) throws IOException {
+	long time = privilege.stats.totalTicks;
+
+	out.writeByte(type);
+	writeVarLong(time - lastTime);
+	lastTime = time;
+    }
+
+    private static void writeVarLong(long value) throws IOException {
+	while ((value & ~0x7FL) != 0) {
+	    out.writeByte((int) (value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out.writeByte((int) value);
+    }
+
+    private static void stopRecording() {
+	System.out.println("Unable to write replay log, recording stopped");
+	recording = false;
+    }
+
+    private static void close() {
+	if (!recording)
+	    return;
+
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("Unable to write replay log");
+	}
+    }
+
+    /**
+     * Test whether the next recorded input has the specified type and
+     * happened at the current tick. A device that polls for input, such as
+     * the console, calls this each time it polls.
+     *
+     * @param	type	the type of input the device takes.
+     * @return	<tt>true</tt> if the next input is for this device, now.
+     */
+    static boolean hasNext(int type) {
+	return nextType == type && nextTime == privilege.stats.totalTicks;
+    }
+
+    /**
+     * Return the next recorded input, which must be a number of the
+     * specified type, and must have been recorded at the current tick.
+     *
+     * @param	type	the type of the input.
+     * @return	the value of the input.
+     */
+    static long replayLong(int type) {
+	check(type);
+
+	long value = nextValue;
+	readNext();
+	return value;
+    }
+
+    /**
+     * Return the next recorded input, which must be a sequence of bytes of
+     * the specified type, and must have been recorded at the current tick.
+     *
+     * @param	type	the type of the input.
+     * @return	the bytes of the input.
+     */
+    static byte[] replayBytes(int type) {
+	check(type);
+
+	byte[] value = nextBytes;
+	readNext();
+	return value;
+    }
+
+    private static void check(int type) {
+	long time = privilege.stats.totalTicks;
+
+	if (nextType != type || nextTime != time) {
+	    Lib.assertNotReached("replay diverged at tick " + time
+				 + ": expected " + typeNames[type]
+				 + ", recorded " + describeNext());
+	}
+    }
+
+    private static String describeNext() {
+	if (nextType == eventEnd)
+	    return "end of log";
+	else
+	    return typeNames[nextType] + " at tick " + nextTime;
+    }
+
+    /**
+     * Read the next input from the log into <tt>nextType</tt>,
+     * <tt>nextTime</tt>, and <tt>nextValue</tt> or <tt>nextBytes</tt>.
+     */
+    private static void readNext() {
+	nextType = eventEnd;
+	if (in == null)
+	    return;
+
+	try {
+	    int type;
+	    try {
+		type = in.readUnsignedByte();
+	    }
+	    catch (EOFException e) {
+		Lib.debug(dbgReplay, "end of replay log at tick " + nextTime);
+		in.close();
+		in = null;
+		return;
+	    }
+
+	    Lib.assertTrue(type > eventEnd && type < typeNames.length,
+			   "corrupt replay log");
+
+	    nextTime += readVarLong();
+	    if (type == eventConsole || type == eventPacket) {
+		nextBytes = new byte[(int) readVarLong()];
+		in.readFully(nextBytes);
+	    }
+	    else {
+		nextValue = readVarLong();
+	    }
+
+	    nextType = type;
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("truncated replay log");
+	}
+    }
+
+    private static long readVarLong() throws IOException {
+	long value = 0;
+	for (int shift=0; ; shift+=7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    /** The end of the log, while replaying. */
+    static final int eventEnd = 0;
+    /** A value returned by <tt>Lib.random(int)</tt>. */
+    static final int eventRandom = 1;
+    /** A value returned by <tt>Lib.random()</tt>, as its raw bits. */
+    static final int eventRandomDouble = 2;
+    /** The console input delivered by a receive interrupt. */
+    static final int eventConsole = 3;
+    /** The end of the console input. */
+    static final int eventConsoleEnd = 4;
+    /** A packet delivered by a network receive interrupt. */
+    static final int eventPacket = 5;
+    /** The link address of the network. */
+    static final int eventLinkAddress = 6;
+
+    private static final String[] typeNames = {
+	"end of log",
+	"random",
+	"random double",
+	"console input",
+	"end of console input",
+	"network packet",
+	"link address"
+    };
+
+    private static final int magic = 0x4E52504C;	// "NRPL"
+    private static final char dbgReplay = 'r';
+
+    private static Privilege privilege = null;
+    private static boolean recording = false, replaying = false;
+
+    private static DataOutputStream out = null;
+    private static long lastTime = 0;
+
+    private static DataInputStream in = null;
+    private static int nextType = eventEnd;
+    private static long nextTime = 0, nextValue;
+    private static byte[] nextBytes;
+}
@@ -0,0 +1,243 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A headless console that replays its input from a file and collects its
+ * output in memory, so that runs do not depend on a terminal.
+ *
+ * <p>
+ * The input file, named by the <tt>nachos.conf</tt> key
+ * <tt>ScriptedConsole.input</tt>, is mapped into memory. If
+ * <tt>ScriptedConsole.inputInterval</tt> is positive, byte <i>i</i> of the
+ * input arrives exactly <tt>(i+1)*inputInterval</tt> ticks after the console
+ * was created; otherwise all input is available at once.
+ *
+ * <p>
+ * Output is collected in a buffer of <tt>ScriptedConsole.outputSize</tt>
+ * bytes, and written to the file named by <tt>ScriptedConsole.output</tt>
+ * (or to <tt>System.out</tt>) when the buffer fills and when Nachos exits.
+ * Sending a byte or a burst of up to
+ * <tt>StandardConsole.transmitBufferSize</tt> bytes takes
+ * <tt>ConsoleTime</tt> ticks, as it does for the standard console, so the
+ * two give the same simulated timing.
+ */
+public class ScriptedConsole implements SerialConsole {
+    /**
+     * Allocate a new scripted console.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public ScriptedConsole(Privilege privilege) {
+	this.privilege = privilege;
+
+	inputInterval = Config.getInteger("ScriptedConsole.inputInterval", 0);
+	outgoing = new byte[Config.getInteger("ScriptedConsole.outputSize",
+					      1<<20)];
+
+	String inputName = Config.getString("ScriptedConsole.input");
+	Lib.assertTrue(inputName != null,
+		       "ScriptedConsole.input must name the console script");
+
+	try {
+	    RandomAccessFile file = new RandomAccessFile(inputName, "r");
+	    FileChannel channel = file.getChannel();
+	    input = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				channel.size());
+	    file.close();
+
+	    String outputName = Config.getString("ScriptedConsole.output");
+	    if (outputName != null)
+		output = new FileOutputStream(new File(outputName));
+	    else
+		output = System.out;
+	}
+	catch (IOException e) {
+	    System.out.println("");
+	    System.out.println("Unable to open the console script!");
+	    Lib.assertNotReached();
+	}
+
+	startTime = privilege.stats.totalTicks;
+
+	receiveInterrupt = new Runnable() {
+		public void run() { receiveInterrupt(); }
+	    };
+
+	sendInterrupt = new Runnable() {
+		public void run() { sendInterrupt(); }
+	    };
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { flush(); }
+	    });
+
+	scheduleReceiveInterrupt();
+    }
+
+    public final void setInterruptHandlers(Runnable receiveInterruptHandler,
+					   Runnable sendInterruptHandler) {
+	this.receiveInterruptHandler = receiveInterruptHandler;
+	this.sendInterruptHandler = sendInterruptHandler;
+    }
+
+    private int arrived() {
+	if (inputInterval <= 0)
+	    return input.limit();
+
+	long elapsed = privilege.stats.totalTicks - startTime;
+	return (int) Math.min(input.limit(), elapsed/inputInterval);
+    }
+
+    private void scheduleReceiveInterrupt() {
+	if (position == input.limit())
+	    return;
+
+	long when = 1;
+	if (inputInterval > 0) {
+	    long arrival = startTime + (long) (position+1)*inputInterval;
+	    when = Math.max(1, arrival - privilege.stats.totalTicks);
+	}
+
+	receiveArmed = true;
+	privilege.interrupt.schedule(when, "console read", receiveInterrupt);
+    }
+
+    private void receiveInterrupt() {
+	Lib.assertTrue(receiveArmed);
+
+	receiveArmed = false;
+
+	// keep polling until input has arrived and someone is listening
+	if (arrived() == position || receiveInterruptHandler == null)
+	    scheduleReceiveInterrupt();
+	else
+	    receiveInterruptHandler.run();
+    }
+
+    public final int readByte() {
+	if (receiveArmed || arrived() == position)
+	    return -1;
+
+	int key = input.get(position)&0xFF;
+	consume(1);
+
+	return key;
+    }
+
+    public final int readBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= buf.length);
+
+	if (receiveArmed)
+	    return 0;
+
+	int available = arrived() - position;
+	int amount = 0;
+	while (amount < length && amount < available) {
+	    byte c = input.get(position+amount);
+	    buf[offset + amount++] = c;
+
+	    if (c == '\n')
+		break;
+	}
+
+	if (amount > 0)
+	    consume(amount);
+
+	return amount;
+    }
+
+    private void consume(int amount) {
+	position += amount;
+	privilege.stats.numConsoleReads += amount;
+
+	scheduleReceiveInterrupt();
+    }
+
+    private void scheduleSendInterrupt() {
+	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
+				     sendInterrupt);
+    }
+
+    private void sendInterrupt() {
+	Lib.assertTrue(sending > 0);
+
+	privilege.stats.numConsoleWrites += sending;
+	sending = 0;
+
+	if (sendInterruptHandler != null)
+	    sendInterruptHandler.run();
+    }
+
+    public final void writeByte(int value) {
+	if (sending == 0)
+	    scheduleSendInterrupt();
+
+	if (outgoingCount == outgoing.length)
+	    flush();
+
+	outgoing[outgoingCount++] = (byte) value;
+	sending++;
+    }
+
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 && offset+length <= buf.length);
+
+	if (sending == 0)
+	    scheduleSendInterrupt();
+
+	if (outgoingCount == outgoing.length)
+	    flush();
+
+	// a burst is no larger than the standard console's transmit buffer
+	int amount = Math.min(length, outgoing.length - outgoingCount);
+	amount = Math.min(amount,
+			  StandardConsole.transmitBufferSize - sending);
+	System.arraycopy(buf, offset, outgoing, outgoingCount, amount);
+	outgoingCount += amount;
+	sending += amount;
+
+	return amount;
+    }
+
+    private void flush() {
+	try {
+	    output.write(outgoing, 0, outgoingCount);
+	    output.flush();
+	}
+	catch (IOException e) {
+	}
+
+	outgoingCount = 0;
+    }
+
+    private Privilege privilege = null;
+
+    private Runnable receiveInterrupt;
+    private Runnable sendInterrupt;
+
+    private Runnable receiveInterruptHandler = null;
+    private Runnable sendInterruptHandler = null;
+
+    private MappedByteBuffer input;
+    private int position = 0;
+    private int inputInterval;
+    private long startTime;
+    private boolean receiveArmed = false;
+
+    private OutputStream output;
+    private byte[] outgoing;
+    private int outgoingCount = 0;
+    private int sending = 0;
+}
@@ -5,9 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 
 /**
- * A serial console can be used to send and receive characters. Only one
- * character may be sent at a time, and only one character may be received at a
- * time.
+ * A serial console can be used to send and receive characters. Characters
+ * are received either one at a time or a line at a time, and are sent either
+ * one at a time or in bursts through the console's transmit buffer.
  */
 
 public interface SerialConsole {
@@ -15,8 +15,9 @@ public interface SerialConsole {
      * Set this console's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time another byte arrives
-     * and can be read using <tt>readByte()</tt>.
+     * The receive interrupt handler is called every time received bytes
+     * become available, and can be read using <tt>readByte()</tt> or
+     * <tt>readBytes()</tt>.
      *
      * <p>
      * The send interrupt handler is called every time a byte sent with
@@ -39,6 +40,17 @@ public interface SerialConsole {
      */
     public int	readByte();
 
+    /**
+     * Return as many received bytes as are available, up to the specified
+     * length or through the first newline, whichever comes first.
+     *
+     * @param	buf	the buffer in which to store the bytes.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the maximum number of bytes to read.
+     * @return	the number of bytes read, or 0 if no byte is available.
+     */
+    public int readBytes(byte[] buf, int offset, int length);
+
     /**
      * Send another byte. If a byte is already being sent, the result is not
      * defined.
@@ -46,4 +58,18 @@ public interface SerialConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Queue a burst of bytes in the transmit buffer, and return the number of
+     * bytes that fit. The send interrupt handler is called once, after the
+     * whole burst has been sent. If a byte or burst is already being sent,
+     * the result is not defined.
+     *
+     * @param	buf	the buffer containing the bytes to send.
+     * @param	offset	the offset of the first byte to send.
+     * @param	length	the number of bytes to send.
+     * @return	the number of bytes queued, at least one if <i>length</i> is
+     *		positive.
+     */
+    public int writeBytes(byte[] buf, int offset, int length);
 }
@@ -0,0 +1,242 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Saves the state of the machine to a file, and restores it in a later run,
+ * so that a long workload can resume from a warmed-up state instead of
+ * starting over.
+ *
+ * <p>
+ * A snapshot holds the contents of physical memory, the counters in
+ * <tt>Stats</tt>, and whatever state the kernel supplies, such as its page
+ * tables, the user registers, and its open files. The kernel decides when to
+ * save, and must only do so when the machine is quiescent: in a syscall or
+ * other exception, when the user registers hold a consistent state and no
+ * delayed load is in progress.
+ *
+ * <p>
+ * The state of the simulated devices is not saved. In the restored machine,
+ * the devices start afresh and schedule their own interrupts; only the clock
+ * is moved forward to the time of the snapshot.
+ *
+ * <p>
+ * The <tt>nachos.conf</tt> key <tt>Snapshot.save</tt> names the file a
+ * snapshot is saved to, and <tt>Snapshot.restore</tt> the file a snapshot is
+ * restored from. The file is read through a memory mapping, and only the
+ * pages of memory that are not zero are stored.
+ */
+public final class Snapshot {
+    /**
+     * Allocate a new snapshot device.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Snapshot(Privilege privilege) {
+	this.privilege = privilege;
+
+	saveName = Config.getString("Snapshot.save");
+	restoreName = Config.getString("Snapshot.restore");
+    }
+
+    /**
+     * Test whether the kernel should save a snapshot.
+     *
+     * @return	<tt>true</tt> if <tt>Snapshot.save</tt> names a file.
+     */
+    public boolean isSaving() {
+	return saveName != null;
+    }
+
+    /**
+     * Test whether the kernel should restore a snapshot instead of starting
+     * afresh.
+     *
+     * @return	<tt>true</tt> if <tt>Snapshot.restore</tt> names a file.
+     */
+    public boolean isRestoring() {
+	return restoreName != null;
+    }
+
+    /**
+     * Save the state of the machine, and the specified kernel state, to the
+     * file named by <tt>Snapshot.save</tt>.
+     *
+     * @param	kernelState	the state of the kernel, in a form only the
+     *				kernel understands.
+     * @return	<tt>true</tt> if the snapshot was saved.
+     */
+    public boolean save(final byte[] kernelState) {
+	Lib.assertTrue(isSaving());
+
+	final boolean[] saved = new boolean[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			DataOutputStream out = new DataOutputStream(
+			    new BufferedOutputStream(
+				new FileOutputStream(saveName)));
+			write(out, kernelState);
+			out.close();
+			saved[0] = true;
+		    }
+		    catch (IOException e) {
+			System.out.println("Unable to write " + saveName);
+		    }
+		}
+	    });
+
+	return saved[0];
+    }
+
+    private void write(DataOutputStream out, byte[] kernelState)
+	throws IOException {
+	byte[] memory = Machine.processor().getMemory();
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	Stats stats = privilege.stats;
+
+	out.writeInt(magic);
+	out.writeInt(version);
+	out.writeInt(pageSize);
+	out.writeInt(numPhysPages);
+
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+
+	int numUsed = 0;
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (!isZero(memory, ppn))
+		numUsed++;
+	}
+
+	out.writeInt(numUsed);
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (!isZero(memory, ppn)) {
+		out.writeInt(ppn);
+		out.write(memory, ppn*pageSize, pageSize);
+	    }
+	}
+
+	out.writeInt(kernelState.length);
+	out.write(kernelState);
+    }
+
+    private static boolean isZero(byte[] memory, int ppn) {
+	for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++) {
+	    if (memory[i] != 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Restore the state of the machine from the file named by
+     * <tt>Snapshot.restore</tt>, and return the kernel state saved with it.
+     * The snapshot must have been saved by a machine with the same amount of
+     * physical memory.
+     *
+     * @return	the kernel state, or <tt>null</tt> if the snapshot could not
+     *		be read.
+     */
+    public byte[] restore() {
+	Lib.assertTrue(isRestoring());
+
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			RandomAccessFile file =
+			    new RandomAccessFile(restoreName, "r");
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer =
+			    channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			file.close();
+			mapped[0] = buffer;
+		    }
+		    catch (IOException e) {
+			System.out.println("Unable to read " + restoreName);
+		    }
+		}
+	    });
+
+	if (mapped[0] == null)
+	    return null;
+
+	return read(mapped[0]);
+    }
+
+    private byte[] read(ByteBuffer in) {
+	byte[] memory = Machine.processor().getMemory();
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	Stats stats = privilege.stats;
+
+	if (in.getInt() != magic || in.getInt() != version) {
+	    System.out.println(restoreName + " is not a Nachos snapshot");
+	    return null;
+	}
+	if (in.getInt() != pageSize || in.getInt() != numPhysPages) {
+	    System.out.println(restoreName
+			       + " was saved with a different memory size");
+	    return null;
+	}
+
+	stats.totalTicks = in.getLong();
+	stats.kernelTicks = in.getLong();
+	stats.userTicks = in.getLong();
+	stats.numDiskReads = in.getInt();
+	stats.numDiskWrites = in.getInt();
+	stats.numConsoleReads = in.getInt();
+	stats.numConsoleWrites = in.getInt();
+	stats.numPageFaults = in.getInt();
+	stats.numTLBMisses = in.getInt();
+	stats.numPacketsSent = in.getInt();
+	stats.numPacketsReceived = in.getInt();
+
+	Arrays.fill(memory, (byte) 0);
+
+	int numUsed = in.getInt();
+	for (int i=0; i<numUsed; i++) {
+	    int ppn = in.getInt();
+	    Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+	    in.get(memory, ppn*pageSize, pageSize);
+	}
+
+	byte[] kernelState = new byte[in.getInt()];
+	in.get(kernelState);
+
+	return kernelState;
+    }
+
+    private static final int magic = 0x4E534E50;	// "NSNP"
+    private static final int version = 1;
+    private static final int pageSize = Processor.pageSize;
+
+    private Privilege privilege;
+    private String saveName, restoreName;
+}
@@ -8,6 +8,15 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * A receive thread reads whatever the host has available into a receive ring
+ * buffer. The simulated device polls the ring every <tt>ConsoleTime</tt>
+ * ticks while it is empty, delivers everything in it with one receive
+ * interrupt, and stops polling once the host input has ended. Input only
+ * becomes visible to the kernel when it is polled, so the input a run sees,
+ * and when, can be recorded and replayed by <tt>Replay</tt>. While
+ * replaying, the host input is not read at all.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -17,8 +26,6 @@ public class StandardConsole implements SerialConsole {
      *				machine.
      */
     public StandardConsole(Privilege privilege) {
-	System.out.print(" console");
-
 	this.privilege = privilege;
 
 	receiveInterrupt = new Runnable() {
@@ -30,6 +37,16 @@ public class StandardConsole implements SerialConsole {
 	    };		
 	
 	scheduleReceiveInterrupt();
+
+	if (Replay.isReplaying())
+	    return;
+
+	Thread receiveThread = new Thread(new Runnable() {
+		public void run() { receiveLoop(); }
+	    });
+
+	receiveThread.setDaemon(true);
+	receiveThread.start();
     }
     
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
@@ -39,21 +56,23 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
+	receiveArmed = true;
 	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
 				     receiveInterrupt);
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
+     * Read bytes from the object backing this console, blocking until at
+     * least one byte is available. Called only by the receive thread.
      *
-     * @return	the byte read, or -1 of no data is available.
+     * @param	buf	the buffer in which to store the bytes.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the maximum number of bytes to read.
+     * @return	the number of bytes read, or -1 at the end of input.
      */
-    protected int in() {
+    protected int in(byte[] buf, int offset, int length) {
 	try {
-	    if (System.in.available() <= 0)
-		return -1;
-
-	    return System.in.read();
+	    return System.in.read(buf, offset, length);
 	}
 	catch (IOException e) {
 	    return -1;
@@ -86,64 +105,214 @@ public class StandardConsole implements SerialConsole {
     }
 
 
+    private void receiveLoop() {
+	byte[] buffer = new byte[incoming.length];
+
+	while (true) {
+	    int amount = in(buffer, 0, buffer.length);
+
+	    synchronized (this) {
+		if (amount == -1) {
+		    endOfInput = true;
+		    return;
+		}
+
+		for (int i=0; i<amount; i++) {
+		    int c = translateCharacter(buffer[i]&0xFF);
+		    if (c == -1)
+			continue;
+
+		    while (incomingCount == incoming.length) {
+			try {
+			    wait();
+			}
+			catch (InterruptedException e) {
+			}
+		    }
+
+		    incoming[(incomingHead+incomingCount) % incoming.length] =
+			(byte) c;
+		    incomingCount++;
+		}
+	    }
+	}
+    }
+
     private void receiveInterrupt() {
-	Lib.assertTrue(incomingKey == -1);
+	synchronized (this) {
+	    Lib.assertTrue(receiveArmed);
 
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
+	    receiveArmed = false;
+
+	    if (Replay.isReplaying())
+		replayInput();
+	    else
+		takeInput();
+
+	    if (available == 0 && inputEnded)
+		return;
+
+	    // keep polling until input has arrived and someone is listening
+	    if (available == 0 || receiveInterruptHandler == null) {
+		scheduleReceiveInterrupt();
+		return;
+	    }
 	}
-	else {
-	    privilege.stats.numConsoleReads++;
 
-	    if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
+	receiveInterruptHandler.run();
+    }
+
+    /**
+     * Make the input the receive thread has read so far visible to the
+     * kernel, recording it if inputs are being recorded.
+     */
+    private void takeInput() {
+	int amount = incomingCount - available;
+
+	if (amount > 0 && Replay.isRecording()) {
+	    byte[] data = new byte[amount];
+	    int start = incomingHead + available;
+	    for (int i=0; i<amount; i++)
+		data[i] = incoming[(start+i) % incoming.length];
+
+	    Replay.recordBytes(Replay.eventConsole, data, 0, amount);
+	}
+
+	available = incomingCount;
+
+	if (endOfInput && !inputEnded) {
+	    inputEnded = true;
+	    if (Replay.isRecording())
+		Replay.recordLong(Replay.eventConsoleEnd, 0);
 	}
     }
 
-    public final int readByte() {
-	int key = incomingKey;
+    /**
+     * Put the input recorded at this tick, if any, in the receive buffer.
+     */
+    private void replayInput() {
+	if (Replay.hasNext(Replay.eventConsole)) {
+	    byte[] data = Replay.replayBytes(Replay.eventConsole);
+	    Lib.assertTrue(incomingCount + data.length <= incoming.length);
 
-	if (incomingKey != -1) {
-	    incomingKey = -1;
-	    scheduleReceiveInterrupt();
+	    for (int i=0; i<data.length; i++) {
+		incoming[(incomingHead+incomingCount) % incoming.length] =
+		    data[i];
+		incomingCount++;
+	    }
+	}
+
+	available = incomingCount;
+
+	if (Replay.hasNext(Replay.eventConsoleEnd)) {
+	    Replay.replayLong(Replay.eventConsoleEnd);
+	    inputEnded = true;
 	}
+	else if (Replay.isFinished()) {
+	    inputEnded = true;
+	}
+    }
+
+    public final synchronized int readByte() {
+	if (receiveArmed || available == 0)
+	    return -1;
+
+	int key = incoming[incomingHead]&0xFF;
+	consume(1);
 
 	return key;
     }
 
+    public final synchronized int readBytes(byte[] buf, int offset,
+					    int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= buf.length);
+
+	if (receiveArmed || available == 0)
+	    return 0;
+
+	int amount = 0;
+	while (amount < length && amount < available) {
+	    byte c = incoming[(incomingHead+amount) % incoming.length];
+	    buf[offset + amount++] = c;
+
+	    if (c == '\n')
+		break;
+	}
+
+	consume(amount);
+
+	return amount;
+    }
+
+    private void consume(int amount) {
+	incomingHead = (incomingHead+amount) % incoming.length;
+	incomingCount -= amount;
+	available -= amount;
+	notify();
+
+	privilege.stats.numConsoleReads += amount;
+
+	if (incomingCount > 0 || !inputEnded)
+	    scheduleReceiveInterrupt();
+    }
+
     private void scheduleSendInterrupt() {
 	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
 				     sendInterrupt);
     }
 
     /**
-     * Write a byte to the object backing this console.
+     * Write a byte to the object backing this console. The byte may be
+     * buffered until the next call to <tt>flush()</tt>.
      *
      * @param	value	the byte to write.
      */
     protected void out(int value) {
 	System.out.write(value);
-	System.out.flush();
     }	
 
+    /**
+     * Flush any bytes buffered by <tt>out()</tt>. Called whenever the
+     * transmit buffer has been drained.
+     */
+    protected void flush() {
+	System.out.flush();
+    }
+
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	Lib.assertTrue(outgoingCount > 0);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	for (int i=0; i<outgoingCount; i++)
+	    out(outgoing[i]&0xFF);
+	flush();
 
-	privilege.stats.numConsoleWrites++;
+	privilege.stats.numConsoleWrites += outgoingCount;
+	outgoingCount = 0;
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
     public final void writeByte(int value) {
-	if (outgoingKey == -1)
+	if (outgoingCount == 0)
 	    scheduleSendInterrupt();
+	else
+	    outgoingCount--;
 	
-	outgoingKey = value&0xFF;
+	outgoing[outgoingCount++] = (byte) value;
+    }
+
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 && offset+length <= buf.length);
+
+	if (outgoingCount == 0)
+	    scheduleSendInterrupt();
+
+	int amount = Math.min(length, outgoing.length - outgoingCount);
+	System.arraycopy(buf, offset, outgoing, outgoingCount, amount);
+	outgoingCount += amount;
+
+	return amount;
     }
 
     private Privilege privilege = null;
@@ -154,8 +323,26 @@ public class StandardConsole implements SerialConsole {
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
-    private int incomingKey = -1;
-    private int outgoingKey = -1;
+    private byte[] incoming = new byte[receiveBufferSize];
+    private int incomingHead = 0, incomingCount = 0;
+    private boolean receiveArmed = false;
+    private boolean endOfInput = false;
+
+    /**
+     * The number of bytes in the receive buffer the kernel can read, and
+     * whether the kernel has seen the end of the input. These only change
+     * when the device polls.
+     */
+    private int available = 0;
+    private boolean inputEnded = false;
+
+    private byte[] outgoing = new byte[transmitBufferSize];
+    private int outgoingCount = 0;
+
+    /** The number of received bytes the receive buffer can hold. */
+    public static final int receiveBufferSize = 1024;
+    /** The number of bytes the transmit buffer can hold. */
+    public static final int transmitBufferSize = 256;
 
     private boolean prevCarriageReturn = false;
 }
@@ -21,6 +21,11 @@ public final class Stats {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
 			   + ", user " + userTicks);
+	if (coreTicks != null) {
+	    for (int i=0; i<coreTicks.length; i++)
+		System.out.println("Core " + i + ": user ticks "
+				   + coreTicks[i]);
+	}
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
@@ -29,6 +34,13 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	if (network != null)
+	    network.print();
+	if (syscalls != null)
+	    syscalls.print();
+	if (profiler != null)
+	    profiler.print();
     }
 
     /**
@@ -44,6 +56,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The amount of simulated time that each processor core has spent in user
+     * mode, or <tt>null</tt> if the processor has only one core.
+     */
+    public long[] coreTicks = null;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -61,6 +78,20 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * Detailed network statistics, or <tt>null</tt> if there is no network
+     * link.
+     */
+    public NetworkStats network = null;
+    /**
+     * The execution profile of user programs, or <tt>null</tt> if the
+     * processor is not profiling.
+     */
+    public Profiler profiler = null;
+    /**
+     * Syscall statistics, or <tt>null</tt> if there is no processor.
+     */
+    public SyscallStats syscalls = null;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -76,7 +78,7 @@ public class StubFileSystem implements FileSystem {
 	    throws IOException {
 	    super(StubFileSystem.this, name);
 
-	    final File f = new File(directory, name);
+	    f = new File(directory, name);
 
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
@@ -146,6 +148,41 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public long lastModified() {
+	    if (!open)
+		return -1;
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { modified = f.lastModified(); }
+	    });
+
+	    return (modified == 0) ? -1 : modified;
+	}
+
+	public ByteBuffer map() {
+	    if (!open)
+		return null;
+
+	    delay();
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { mapFile(); }
+	    });
+
+	    return mapped;
+	}
+
+	private void mapFile() {
+	    try {
+		FileChannel channel = file.getChannel();
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				     channel.size());
+	    }
+	    catch (IOException e) {
+		mapped = null;
+	    }
+	}
+
 	public void close() {
 	    if (open) {
 		open = false;
@@ -159,8 +196,11 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	private File f;
 	private RandomAccessFile file = null;
 	private boolean open = false;
+	private long modified;
+	private ByteBuffer mapped = null;
     }
 
     private int openCount = 0;
@@ -0,0 +1,220 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.PrintStream;
+
+/**
+ * Syscall statistics, reported by the kernel. For every syscall number, the
+ * kernel records how many times each process made the syscall and how long
+ * each call took, both in simulated ticks and in host nanoseconds. Latency
+ * histograms are kept per syscall; per process, only the count and the total
+ * time of each syscall are kept.
+ *
+ * <p>
+ * The statistics are printed with the rest of <tt>Stats</tt> only if the
+ * <tt>nachos.conf</tt> key <tt>SyscallStats.enabled</tt> is true, since the
+ * host times differ from run to run. If <tt>SyscallStats.json</tt> names a
+ * file, they are written to it as JSON when Nachos exits.
+ */
+public final class SyscallStats {
+    /**
+     * Allocate a new, empty set of syscall statistics.
+     */
+    public SyscallStats() {
+    }
+
+    /**
+     * Give a syscall a name, to use when printing these statistics.
+     *
+     * @param	syscall	the syscall number.
+     * @param	name	the name of the syscall, such as <tt>read</tt>.
+     */
+    public void setName(int syscall, String name) {
+	Lib.assertTrue(syscall >= 0 && syscall < syscallLimit);
+
+	names[syscall] = name;
+    }
+
+    /**
+     * Record a completed syscall. Syscalls with numbers outside the range
+     * these statistics keep are counted together as invalid.
+     *
+     * @param	pid	the ID of the process that made the syscall.
+     * @param	syscall	the syscall number.
+     * @param	ticks	the simulated time the syscall took.
+     * @param	nanos	the host time the syscall took, in nanoseconds.
+     */
+    public void record(int pid, int syscall, long ticks, long nanos) {
+	if (syscall < 0 || syscall >= syscallLimit) {
+	    invalid++;
+	    return;
+	}
+
+	if (tickTimes[syscall] == null) {
+	    tickTimes[syscall] =
+		new Histogram("Syscall " + getName(syscall) + " ticks");
+	    hostTimes[syscall] =
+		new Histogram("Syscall " + getName(syscall) + " ns");
+	}
+
+	tickTimes[syscall].add(ticks);
+	hostTimes[syscall].add(nanos);
+
+	if (pid >= 0) {
+	    long[] row = processRow(pid);
+	    row[syscall*3+0]++;
+	    row[syscall*3+1] += ticks;
+	    row[syscall*3+2] += nanos;
+	}
+    }
+
+    /**
+     * Return the counters of a process, allocating them the first time the
+     * process makes a syscall.
+     */
+    private long[] processRow(int pid) {
+	if (pid >= processes.length) {
+	    long[][] larger = new long[Math.max(processes.length*2, pid+1)][];
+	    System.arraycopy(processes, 0, larger, 0, processes.length);
+	    processes = larger;
+	}
+
+	if (processes[pid] == null)
+	    processes[pid] = new long[syscallLimit*3];
+
+	return processes[pid];
+    }
+
+    private String getName(int syscall) {
+	return (names[syscall] != null) ? names[syscall] : "#" + syscall;
+    }
+
+    /**
+     * Print these statistics. Nothing is printed if no syscall was recorded.
+     */
+    public void print() {
+	long total = invalid;
+	for (int i=0; i<syscallLimit; i++) {
+	    if (tickTimes[i] != null)
+		total += tickTimes[i].getCount();
+	}
+
+	if (total == 0)
+	    return;
+
+	System.out.println("Syscalls: " + total + ", invalid " + invalid);
+
+	for (int i=0; i<syscallLimit; i++) {
+	    if (tickTimes[i] != null) {
+		tickTimes[i].print();
+		hostTimes[i].print();
+	    }
+	}
+
+	for (int pid=0; pid<processes.length; pid++) {
+	    long[] row = processes[pid];
+	    if (row == null)
+		continue;
+
+	    String line = "  pid " + pid + ":";
+	    for (int i=0; i<syscallLimit; i++) {
+		if (row[i*3] != 0)
+		    line += " " + getName(i) + " " + row[i*3]
+			+ " (" + row[i*3+1] + " ticks)";
+	    }
+
+	    System.out.println(line);
+	}
+    }
+
+    /**
+     * Write these statistics as a JSON object, with a <tt>syscalls</tt>
+     * array giving the count and latency percentiles of each syscall, and a
+     * <tt>processes</tt> array giving the count and total time of each
+     * syscall made by each process.
+     *
+     * @param	out	the stream to write to.
+     */
+    public void writeJSON(PrintStream out) {
+	out.println("{");
+	out.println("  \"invalid\" : " + invalid + ",");
+	out.println("  \"syscalls\" : [");
+
+	boolean first = true;
+	for (int i=0; i<syscallLimit; i++) {
+	    if (tickTimes[i] == null)
+		continue;
+
+	    if (!first)
+		out.println(",");
+	    first = false;
+
+	    out.println("    {");
+	    out.println("      \"number\" : " + i + ",");
+	    out.println("      \"name\" : \"" + getName(i) + "\",");
+	    out.println("      \"count\" : " + tickTimes[i].getCount() + ",");
+	    out.println("      \"ticks\" : " + summary(tickTimes[i]) + ",");
+	    out.println("      \"nanos\" : " + summary(hostTimes[i]));
+	    out.print("    }");
+	}
+
+	out.println();
+	out.println("  ],");
+	out.println("  \"processes\" : [");
+
+	first = true;
+	for (int pid=0; pid<processes.length; pid++) {
+	    long[] row = processes[pid];
+	    if (row == null)
+		continue;
+
+	    if (!first)
+		out.println(",");
+	    first = false;
+
+	    out.print("    { \"pid\" : " + pid + ", \"syscalls\" : [");
+
+	    boolean firstSyscall = true;
+	    for (int i=0; i<syscallLimit; i++) {
+		if (row[i*3] == 0)
+		    continue;
+
+		out.print((firstSyscall ? " " : ", ")
+			  + "{ \"name\" : \"" + getName(i) + "\""
+			  + ", \"count\" : " + row[i*3]
+			  + ", \"ticks\" : " + row[i*3+1]
+			  + ", \"nanos\" : " + row[i*3+2] + " }");
+		firstSyscall = false;
+	    }
+
+	    out.print(" ] }");
+	}
+
+	out.println();
+	out.println("  ]");
+	out.println("}");
+    }
+
+    private static String summary(Histogram histogram) {
+	return "{ \"mean\" : " + histogram.getMean()
+	    + ", \"p50\" : " + histogram.getPercentile(50)
+	    + ", \"p90\" : " + histogram.getPercentile(90)
+	    + ", \"p99\" : " + histogram.getPercentile(99)
+	    + ", \"max\" : " + histogram.getPercentile(100) + " }";
+    }
+
+    /** One more than the largest syscall number kept. */
+    public static final int syscallLimit = 32;
+
+    private String[] names = new String[syscallLimit];
+    private Histogram[] tickTimes = new Histogram[syscallLimit];
+    private Histogram[] hostTimes = new Histogram[syscallLimit];
+    private long invalid = 0;
+
+    /**
+     * For each process ID, the count, total ticks, and total nanoseconds of
+     * each syscall, or <tt>null</tt> if the process made none.
+     */
+    private long[][] processes = new long[16][];
+}
@@ -0,0 +1,348 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tracing for the hot paths of the machine simulation: the processor's memory
+ * accesses and instructions, and the interrupt controller.
+ *
+ * <p>
+ * Each kind of tracing is switched on by a debug flag (<tt>-d p</tt>,
+ * <tt>-d m</tt>, <tt>-d M</tt>, or <tt>-d i</tt>), and is tested with a
+ * <tt>static final</tt> field of this class. These fields are set once, when
+ * this class is loaded after the command line is read, so the compiler can
+ * remove the tests, and the code they guard, when tracing is off.
+ *
+ * <p>
+ * By default, trace messages are printed as they happen. If the
+ * <tt>nachos.conf</tt> key <tt>Trace.file</tt> names a file, they are instead
+ * recorded as fixed-size binary records in a ring buffer of
+ * <tt>Trace.records</tt> records, which holds the most recent events and is
+ * written to the file when Nachos exits. Recording costs a few stores per
+ * event, so a program can be traced at close to full speed. The file is
+ * decoded with
+ *
+ * <pre>java nachos.machine.Trace <i>file</i></pre>
+ *
+ * which prints the same messages the events would have printed.
+ */
+public final class Trace {
+    private Trace() {
+    }
+
+    /** Trace memory accesses and address translation (<tt>-d p</tt>). */
+    public static final boolean processor = Lib.test('p');
+    /** Disassemble each instruction executed (<tt>-d m</tt>). */
+    public static final boolean disassemble = Lib.test('m');
+    /**
+     * Disassemble each instruction executed, with register values
+     * (<tt>-d M</tt>).
+     */
+    public static final boolean fullDisassemble = Lib.test('M');
+    /** Trace clock ticks and interrupt handlers (<tt>-d i</tt>). */
+    public static final boolean interrupts = Lib.test('i');
+
+    /**
+     * Start recording, if <tt>Trace.file</tt> is set and any tracing is on.
+     * Called by <tt>Machine</tt> once the configuration is loaded.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    static void init(Privilege privilege) {
+	Trace.privilege = privilege;
+
+	final String fileName = Config.getString("Trace.file");
+	if (fileName == null ||
+	    !(processor || disassemble || fullDisassemble || interrupts))
+	    return;
+
+	int numRecords = Config.getInteger("Trace.records", 1<<16);
+	Lib.assertTrue(numRecords > 0);
+
+	records = new long[numRecords*recordLength];
+	recording = true;
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { write(fileName); }
+	    });
+    }
+
+    /**
+     * Test whether trace events are being recorded rather than printed.
+     *
+     * @return	<tt>true</tt> if events are recorded.
+     */
+    static boolean isRecording() {
+	return recording;
+    }
+
+    /**
+     * Record an event in the ring buffer. Must only be called while
+     * recording.
+     *
+     * @param	type	the type of the event.
+     * @param	aux	a small argument, from 0 to 255.
+     * @param	a	the first argument.
+     * @param	b	the second argument.
+     * @param	c	the third argument.
+     * @param	d	the fourth argument.
+     */
+    static void record(int type, int aux, int a, int b, int c, int d) {
+	int i = next;
+	records[i+0] = ((long) type << 56) | ((long) (aux & 0xFF) << 48) |
+	    (privilege.stats.totalTicks & timeMask);
+	records[i+1] = ((long) a << 32) | (b & 0xFFFFFFFFL);
+	records[i+2] = ((long) c << 32) | (d & 0xFFFFFFFFL);
+
+	next = (i + recordLength == records.length) ? 0 : i + recordLength;
+	total++;
+    }
+
+    /**
+     * Record an event, or print it if not recording. Used for events that
+     * print a line of their own.
+     */
+    static void event(int type, int aux, int a, int b) {
+	if (recording) {
+	    record(type, aux, a, b, 0, 0);
+	}
+	else {
+	    System.out.println(format(type, aux, a, b, 0, 0,
+				      privilege.stats.totalTicks, strings));
+	}
+    }
+
+    /**
+     * Return the number of a string recorded with an event, such as the name
+     * of an interrupt handler.
+     *
+     * @param	s	the string.
+     * @return	its number.
+     */
+    static int intern(String s) {
+	Integer number = stringNumbers.get(s);
+	if (number == null) {
+	    number = new Integer(strings.size());
+	    strings.add(s);
+	    stringNumbers.put(s, number);
+	}
+
+	return number.intValue();
+    }
+
+    /**
+     * Return the message for an event.
+     *
+     * @param	strings	the strings recorded with the trace.
+     * @return	the message, without a newline.
+     */
+    static String format(int type, int aux, int a, int b, int c, int d,
+			 long time, ArrayList<String> strings) {
+	switch (type) {
+	case eventTranslate:
+	    return "\ttranslate vaddr=0x" + Lib.toHexString(a)
+		+ (aux != 0 ? ", write" : ", read...");
+	case eventPhysical:
+	    return "\t\tpaddr=0x" + Lib.toHexString(a);
+	case eventRead:
+	    return "\treadMem vaddr=0x" + Lib.toHexString(a) + ", size=" + aux;
+	case eventValue:
+	    return "\t\tvalue read=0x" + Lib.toHexString(a, aux*2);
+	case eventWrite:
+	    return "\twriteMem vaddr=0x" + Lib.toHexString(a) + ", size=" + aux
+		+ ", value=0x" + Lib.toHexString(b, aux*2);
+	case eventFault:
+	    return "\t\t" + faultNames[aux];
+	case eventInstruction:
+	    return "PC=0x" + Lib.toHexString(a) + "\t"
+		+ Processor.disassemble(a, b, c, d, (aux & 1) != 0);
+	case eventResult:
+	    return "#0x" + Lib.toHexString(a)
+		+ (aux != 0 ? " (delayed load)" : "");
+	case eventException:
+	    return "exception: " + Processor.exceptionNames[aux];
+	case eventTick:
+	    return "== Tick " + time + " ==";
+	case eventSchedule:
+	    return "Scheduling the " + name(strings, a)
+		+ " interrupt handler at time = " + (time + b);
+	case eventInterrupt:
+	    return "  " + name(strings, a);
+	default:
+	    return "unknown event " + type;
+	}
+    }
+
+    private static String name(ArrayList<String> strings, int number) {
+	return (number < strings.size()) ? strings.get(number) : "#" + number;
+    }
+
+    private static void write(final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			DataOutputStream out = new DataOutputStream(
+			    new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+			writeRecords(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("Unable to write " + fileName);
+		    }
+		}
+	    });
+    }
+
+    private static void writeRecords(DataOutputStream out)
+	throws IOException {
+	int count = (int) Math.min(total, records.length/recordLength);
+
+	out.writeInt(magic);
+	out.writeInt(strings.size());
+	for (String s : strings)
+	    out.writeUTF(s);
+
+	out.writeLong(total);
+	out.writeInt(count);
+
+	// oldest first
+	int start = (total > count) ? next : 0;
+	for (int i=0; i<count*recordLength; i++)
+	    out.writeLong(records[(start+i) % records.length]);
+    }
+
+    /**
+     * Decode a trace file written by a run with <tt>Trace.file</tt> set, and
+     * print its events.
+     *
+     * @param	args	the name of the trace file.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length != 1) {
+	    System.err.println("usage: java nachos.machine.Trace <file>");
+	    System.exit(1);
+	}
+
+	DataInputStream in = new DataInputStream(
+	    new BufferedInputStream(new FileInputStream(args[0])));
+
+	if (in.readInt() != magic) {
+	    System.err.println(args[0] + " is not a Nachos trace");
+	    System.exit(1);
+	}
+
+	int numStrings = in.readInt();
+	ArrayList<String> strings = new ArrayList<String>(numStrings);
+	for (int i=0; i<numStrings; i++)
+	    strings.add(in.readUTF());
+
+	long total = in.readLong();
+	int count = in.readInt();
+	if (total > count)
+	    System.out.println("(" + (total-count) + " earlier events lost)");
+
+	// an instruction shares a line with its result or exception
+	boolean lineOpen = false;
+	for (int i=0; i<count; i++) {
+	    long header = in.readLong(), ab = in.readLong(), cd = in.readLong();
+
+	    int type = (int) (header >>> 56);
+	    int aux = (int) (header >>> 48) & 0xFF;
+	    long time = header & timeMask;
+
+	    String message = format(type, aux, (int) (ab >> 32), (int) ab,
+				    (int) (cd >> 32), (int) cd, time, strings);
+
+	    if (type == eventResult) {
+		System.out.print(message);
+		lineOpen = true;
+		continue;
+	    }
+
+	    if (lineOpen && type != eventException)
+		System.out.println();
+
+	    System.out.print(message);
+	    // with -d mp, memory accesses are on lines of their own
+	    lineOpen = (type == eventInstruction && aux != 2);
+	    if (!lineOpen)
+		System.out.println();
+	}
+
+	if (lineOpen)
+	    System.out.println();
+
+	in.close();
+    }
+
+    /** A translation of a virtual address; <i>aux</i> is 1 if writing. */
+    static final int eventTranslate = 1;
+    /** The physical address a translation produced. */
+    static final int eventPhysical = 2;
+    /** A memory read; <i>aux</i> is the size. */
+    static final int eventRead = 3;
+    /** The value a memory read returned; <i>aux</i> is the size. */
+    static final int eventValue = 4;
+    /** A memory write of value <i>b</i>; <i>aux</i> is the size. */
+    static final int eventWrite = 5;
+    /** A translation that failed; <i>aux</i> indexes <tt>faultNames</tt>. */
+    static final int eventFault = 6;
+    /**
+     * An instruction at <i>a</i>, encoded as <i>b</i>, with its <tt>rs</tt>
+     * and <tt>rt</tt> registers holding <i>c</i> and <i>d</i>. Bit 0 of
+     * <i>aux</i> is set for a full disassembly, and bit 1 if memory accesses
+     * were traced too.
+     */
+    static final int eventInstruction = 7;
+    /** The result of the last instruction; <i>aux</i> is 1 if delayed. */
+    static final int eventResult = 8;
+    /** A processor exception; <i>aux</i> is the cause. */
+    static final int eventException = 9;
+    /** A clock tick. */
+    static final int eventTick = 10;
+    /** An interrupt handler run; <i>a</i> is its interned type. */
+    static final int eventInterrupt = 11;
+    /**
+     * An interrupt scheduled <i>b</i> ticks from now; <i>a</i> is its
+     * interned type.
+     */
+    static final int eventSchedule = 12;
+
+    static final int faultAlignment = 0, faultPage = 1, faultTLB = 2,
+	faultReadOnly = 3, faultPhysical = 4;
+    private static final String[] faultNames = {
+	"alignment error",
+	"page fault",
+	"TLB miss",
+	"read-only exception",
+	"bad ppn"
+    };
+
+    private static final int recordLength = 3;
+    private static final long timeMask = (1L << 48) - 1;
+    private static final int magic = 0x4E545243;	// "NTRC"
+
+    private static Privilege privilege = null;
+    private static boolean recording = false;
+    private static long[] records = null;
+    private static int next = 0;
+    private static long total = 0;
+
+    private static ArrayList<String> strings = new ArrayList<String>();
+    private static HashMap<String, Integer> stringNumbers =
+	new HashMap<String, Integer>();
+}
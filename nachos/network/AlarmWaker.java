@@ -0,0 +1,66 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.TreeSet;
+
+/**
+ * Wakes a condition variable at chosen times. A timer thread waiting for the
+ * earliest of several deadlines sleeps on the condition variable instead of
+ * in the alarm, so that the thread that sets an earlier deadline can wake it
+ * at once; it asks for a wake-up at its own deadline before it sleeps.
+ *
+ * <p>
+ * Each wake-up is a thread waiting in the alarm. A wake-up is only arranged
+ * if none is already due at or before the same time, so a timer that keeps
+ * moving its deadline later never starts more than one.
+ */
+class AlarmWaker {
+    /**
+     * Allocate a new alarm waker.
+     *
+     * @param	lock		the lock associated with the condition variable.
+     * @param	condition	the condition variable to wake.
+     * @param	name		the name of the threads that wait in the alarm.
+     */
+    AlarmWaker(Lock lock, Condition condition, String name) {
+	this.lock = lock;
+	this.condition = condition;
+	this.name = name;
+    }
+
+    /**
+     * Wake the condition variable at the specified time, unless a wake-up at
+     * or before that time has already been arranged. Must be called with the
+     * lock held.
+     *
+     * @param	time	the time at which to wake the condition variable.
+     */
+    void wakeAt(final long time) {
+	if (!wakeTimes.isEmpty() && wakeTimes.first() <= time)
+	    return;
+
+	wakeTimes.add(time);
+
+	KThread waker = new KThread(new Runnable() {
+		public void run() {
+		    long now = Machine.timer().getTime();
+		    if (time > now)
+			ThreadedKernel.alarm.waitUntil(time - now);
+
+		    lock.acquire();
+		    wakeTimes.remove(time);
+		    condition.wake();
+		    lock.release();
+		}
+	    });
+
+	waker.setName(name).fork();
+    }
+
+    private Lock lock;
+    private Condition condition;
+    private String name;
+    private TreeSet<Long> wakeTimes = new TreeSet<Long>();
+}
@@ -0,0 +1,558 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * One end of a reliable, connection-oriented byte stream between two ports.
+ * A connection is created by <tt>Transport.connect()</tt> or
+ * <tt>Transport.accept()</tt>, and is read, written and closed like any other
+ * <tt>OpenFile</tt>.
+ *
+ * <p>
+ * Data is sent in numbered segments. The receiver acknowledges every segment
+ * with the next sequence number it expects (a cumulative acknowledgement) and
+ * the number of segments it still has room for. The sender keeps up to
+ * <tt>Transport.windowSize</tt> segments in flight, limited by that receive
+ * window, so a bulk transfer does not wait a round trip for every packet.
+ * Segments that arrive out of order are buffered by the receiver, so a lost
+ * packet costs a single retransmission.
+ *
+ * <p>
+ * Lost segments are detected by a retransmission timer, whose timeout
+ * follows the measured round trip time, and by three duplicate
+ * acknowledgements. All state is protected by the lock of the owning
+ * <tt>Transport</tt>; segments are collected while the lock is held and sent
+ * after it is released.
+ */
+public class Connection extends OpenFile {
+    /**
+     * Allocate a new connection. Called by the transport with its lock held.
+     *
+     * @param	transport	the transport that owns this connection.
+     * @param	localPort	the local port of this connection.
+     * @param	remoteLink	the link address of the remote host.
+     * @param	remotePort	the port of this connection on the remote host.
+     */
+    Connection(Transport transport, int localPort, int remoteLink,
+	       int remotePort) {
+	super(null, "connection to " + remoteLink + ":" + remotePort);
+
+	this.transport = transport;
+	this.localPort = localPort;
+	this.remoteLink = remoteLink;
+	this.remotePort = remotePort;
+
+	retransmitTicks = transport.retransmitTicks;
+	peerWindow = transport.windowSize;
+	advertised = transport.receiveWindow;
+
+	established = new Condition(transport.lock);
+	spaceAvailable = new Condition(transport.lock);
+    }
+
+    /**
+     * Send a connection request, which is retransmitted until it is
+     * acknowledged.
+     */
+    void open(List<Segment> out) {
+	state = synSent;
+	out.add(control(Segment.SYN, 0));
+	startTimer();
+    }
+
+    /**
+     * Wait until the remote host accepts this connection.
+     */
+    void waitEstablished() {
+	while (state == synSent)
+	    established.sleep();
+    }
+
+    /**
+     * Acknowledge a connection request from the remote host. The connection is
+     * established as soon as the acknowledgement is sent.
+     */
+    void accept(List<Segment> out) {
+	state = connected;
+	out.add(control(Segment.SYN | Segment.ACK, 0));
+    }
+
+    /**
+     * Read as many bytes as are available, without waiting.
+     *
+     * @return	the number of bytes read, or -1 if the stream was terminated
+     *		and no more data is available.
+     */
+    public int read(byte[] buf, int offset, int length) {
+	LinkedList<Segment> out = new LinkedList<Segment>();
+
+	transport.lock.acquire();
+
+	int amount = 0;
+	while (amount < length && !received.isEmpty()) {
+	    Segment data = received.getFirst();
+	    int n = Math.min(length - amount,
+			     data.getContentsLength() - readOffset);
+
+	    data.getContents(readOffset, buf, offset + amount, n);
+	    amount += n;
+	    readOffset += n;
+
+	    if (readOffset == data.getContentsLength()) {
+		received.removeFirst().release();
+		readOffset = 0;
+	    }
+	}
+
+	if (amount == 0 && (remoteClosed || aborted))
+	    amount = -1;
+
+	// tell the sender once a stalled window has opened up again
+	int half = transport.receiveWindow / 2;
+	if (amount > 0 && advertised < half && window() >= half)
+	    out.add(control(Segment.ACK, expected));
+
+	transport.lock.release();
+
+	transport.send(out);
+	return amount;
+    }
+
+    /**
+     * Queue the specified bytes for sending, waiting if the send buffer is
+     * full.
+     *
+     * @return	the number of bytes queued, which is less than <i>length</i>
+     *		only if the stream was terminated, or -1 if it was already
+     *		terminated.
+     */
+    public int write(byte[] buf, int offset, int length) {
+	LinkedList<Segment> out = new LinkedList<Segment>();
+
+	transport.lock.acquire();
+
+	if (terminated()) {
+	    transport.lock.release();
+	    return -1;
+	}
+
+	int amount = 0;
+	while (amount < length && !terminated()) {
+	    if (sendQueue.size() + unacknowledged.size() < transport.sendBuffer
+		|| hasRoom()) {
+		amount += enqueue(buf, offset + amount, length - amount);
+		pump(out);
+	    }
+	    else if (!out.isEmpty()) {
+		// never wait for acknowledgements of segments not yet sent
+		transport.lock.release();
+		transport.send(out);
+		out = new LinkedList<Segment>();
+		transport.lock.acquire();
+	    }
+	    else {
+		spaceAvailable.sleep();
+	    }
+	}
+
+	transport.lock.release();
+
+	transport.send(out);
+	return amount;
+    }
+
+    /**
+     * Close this end of the connection. Data already written is still
+     * delivered, followed by an end-of-stream marker.
+     */
+    public void close() {
+	LinkedList<Segment> out = new LinkedList<Segment>();
+
+	transport.lock.acquire();
+
+	if (!localClosed) {
+	    localClosed = true;
+
+	    // nobody will read what has arrived
+	    for (Segment segment : received)
+		segment.release();
+	    received.clear();
+	    spaceAvailable.wakeAll();
+
+	    pump(out);
+	    checkFinished();
+	}
+
+	transport.lock.release();
+
+	transport.send(out);
+    }
+
+    /**
+     * Process a segment received for this connection. The segment is either
+     * kept until its data is read, or released.
+     */
+    void receive(Segment segment, List<Segment> out) {
+	if (segment.is(Segment.SYN)) {
+	    if (!segment.is(Segment.ACK))
+		// our acknowledgement was lost; the remote host is still waiting
+		out.add(control(Segment.SYN | Segment.ACK, 0));
+	    else if (state == synSent)
+		establish(segment.window, out);
+
+	    segment.release();
+	    return;
+	}
+
+	boolean kept = false;
+
+	// data from the remote host means it accepted, even if its
+	// acknowledgement was lost
+	if (state == synSent)
+	    establish(transport.windowSize, out);
+
+	if (segment.is(Segment.ACK))
+	    acknowledge(segment.number, segment.window, out);
+
+	if (segment.is(Segment.DATA) || segment.is(Segment.FIN)) {
+	    int position = segment.number - expected;
+	    int free = window();
+
+	    if (position >= 0 &&
+		(position < free || (position == 0 && segment.is(Segment.FIN)))
+		&& !outOfOrder.containsKey(segment.number)) {
+		outOfOrder.put(segment.number, segment);
+		kept = true;
+	    }
+
+	    Segment next;
+	    while ((next = outOfOrder.remove(expected)) != null) {
+		expected++;
+
+		if (next.is(Segment.FIN))
+		    remoteClosed = true;
+
+		if (next.is(Segment.DATA) && !localClosed)
+		    received.add(next);
+		else
+		    next.release();
+	    }
+
+	    if (remoteClosed)
+		spaceAvailable.wakeAll();
+
+	    out.add(control(Segment.ACK, expected));
+	}
+
+	if (!kept)
+	    segment.release();
+
+	checkFinished();
+    }
+
+    private void establish(int window, List<Segment> out) {
+	state = connected;
+	peerWindow = window;
+	retransmitAt = -1;
+	tries = 0;
+
+	established.wakeAll();
+	pump(out);
+    }
+
+    private void acknowledge(int number, int window, List<Segment> out) {
+	int acked = number - sendBase;
+	int inFlight = nextSequence - sendBase;
+
+	if (acked > 0 && acked <= inFlight) {
+	    long now = Machine.timer().getTime();
+
+	    // time only the newest segment acknowledged, and only if nothing
+	    // acknowledged with it was retransmitted (Karn's algorithm)
+	    boolean ambiguous = false;
+	    Unacknowledged u = null;
+	    for (int i=0; i<acked; i++) {
+		u = unacknowledged.removeFirst();
+		ambiguous |= u.retransmitted;
+		if (u.segment.is(Segment.FIN))
+		    finAcknowledged = true;
+	    }
+
+	    if (!ambiguous)
+		sample(now - u.sentTime);
+
+	    sendBase = number;
+	    peerWindow = window;
+	    duplicates = 0;
+	    tries = 0;
+
+	    if (unacknowledged.isEmpty()) {
+		retransmitAt = -1;
+	    }
+	    else if (sendBase - recover < 0) {
+		// a partial acknowledgement during recovery: the next segment
+		// was lost too
+		retransmit(out);
+	    }
+	    else {
+		retransmitAt = now + retransmitTicks;
+	    }
+
+	    spaceAvailable.wakeAll();
+	}
+	else if (acked == 0) {
+	    // a window update is not a duplicate
+	    boolean update = (window != peerWindow);
+	    peerWindow = window;
+
+	    if (!update && !unacknowledged.isEmpty() && window > 0 &&
+		++duplicates == 3) {
+		recover = nextSequence;
+		retransmit(out);
+	    }
+	}
+
+	pump(out);
+    }
+
+    /**
+     * Send as many queued segments as the windows allow.
+     */
+    private void pump(List<Segment> out) {
+	if (state != connected || aborted)
+	    return;
+
+	// every duplicate acknowledgement means a segment has left the network,
+	// so send a new one in its place; keep one segment in flight to probe a
+	// closed window
+	int limit = Math.max(1, Math.min(transport.windowSize + duplicates,
+					 peerWindow));
+
+	while (unacknowledged.size() < limit) {
+	    Segment segment;
+
+	    if (!sendQueue.isEmpty())
+		segment = data(Segment.DATA, nextSequence,
+			       sendQueue.removeFirst());
+	    else if (localClosed && !finSent) {
+		finSent = true;
+		segment = data(Segment.FIN, nextSequence, new byte[0]);
+	    }
+	    else
+		break;
+
+	    nextSequence++;
+
+	    unacknowledged.add(new Unacknowledged(segment));
+	    out.add(segment);
+
+	    if (retransmitAt < 0)
+		startTimer();
+	}
+    }
+
+    /**
+     * Called by the transport's timer thread when the retransmission timer may
+     * have expired.
+     */
+    void timeout(long now, List<Segment> out) {
+	if (retransmitAt < 0 || now < retransmitAt)
+	    return;
+
+	retransmitTicks = Math.min(2*retransmitTicks, maxRetransmitTicks);
+
+	if (state == synSent) {
+	    // connect() never gives up
+	    out.add(control(Segment.SYN, 0));
+	    transport.stats.portRetransmitted(localPort);
+	    retransmitAt = now + retransmitTicks;
+	    return;
+	}
+
+	// a closed receive window is probed forever
+	if (peerWindow > 0 && ++tries > transport.maxRetransmits) {
+	    Lib.debug(dbgNet, "aborting " + getName());
+	    abort();
+	    return;
+	}
+
+	recover = nextSequence;
+	retransmit(out);
+    }
+
+    /**
+     * Return the time at which the retransmission timer expires, or -1 if it
+     * is not running.
+     */
+    long deadline() {
+	return retransmitAt;
+    }
+
+    private void retransmit(List<Segment> out) {
+	Unacknowledged u = unacknowledged.getFirst();
+	u.retransmitted = true;
+	u.sentTime = Machine.timer().getTime();
+
+	Lib.debug(dbgNet, "retransmitting " + u.segment);
+
+	out.add(u.segment);
+	transport.stats.portRetransmitted(localPort);
+	retransmitAt = u.sentTime + retransmitTicks;
+    }
+
+    private void startTimer() {
+	retransmitAt = Machine.timer().getTime() + retransmitTicks;
+	transport.timerIdle.wake();
+    }
+
+    /**
+     * Update the retransmission timeout with a new round trip time
+     * measurement, as TCP does.
+     */
+    private void sample(long rtt) {
+	transport.stats.roundTrip.add(rtt);
+
+	if (smoothedRTT < 0) {
+	    smoothedRTT = rtt;
+	    deviationRTT = rtt/2;
+	}
+	else {
+	    deviationRTT = (3*deviationRTT + Math.abs(smoothedRTT - rtt)) / 4;
+	    smoothedRTT = (7*smoothedRTT + rtt) / 8;
+	}
+
+	retransmitTicks = (int) Math.max(minRetransmitTicks,
+					 Math.min(maxRetransmitTicks,
+						  smoothedRTT + 4*deviationRTT));
+    }
+
+    private int enqueue(byte[] buf, int offset, int length) {
+	// top up a partly filled segment before starting a new one
+	byte[] last = hasRoom() ? sendQueue.removeLast() : null;
+	int used = (last == null) ? 0 : last.length;
+	int n = Math.min(length, Segment.maxContentsLength - used);
+
+	sendQueue.add(copy(last, buf, offset, n));
+	return n;
+    }
+
+    private boolean hasRoom() {
+	return (!sendQueue.isEmpty() &&
+		sendQueue.getLast().length < Segment.maxContentsLength);
+    }
+
+    private static byte[] copy(byte[] head, byte[] buf, int offset,
+			       int length) {
+	int used = (head == null) ? 0 : head.length;
+	byte[] data = new byte[used + length];
+
+	if (head != null)
+	    System.arraycopy(head, 0, data, 0, used);
+	System.arraycopy(buf, offset, data, used, length);
+
+	return data;
+    }
+
+    private void abort() {
+	aborted = true;
+	sendQueue.clear();
+	unacknowledged.clear();
+	retransmitAt = -1;
+
+	spaceAvailable.wakeAll();
+	transport.remove(this);
+    }
+
+    private void checkFinished() {
+	if (localClosed && finAcknowledged && remoteClosed) {
+	    Lib.debug(dbgNet, "closed " + getName());
+	    retransmitAt = -1;
+	    transport.remove(this);
+	}
+    }
+
+    private boolean terminated() {
+	return (localClosed || remoteClosed || aborted);
+    }
+
+    /**
+     * Return the number of segments that can still be received.
+     */
+    private int window() {
+	return Math.max(0, transport.receiveWindow - received.size());
+    }
+
+    private Segment control(int flags, int number) {
+	advertised = window();
+	return data(flags, number, new byte[0]);
+    }
+
+    private Segment data(int flags, int number, byte[] contents) {
+	try {
+	    return new Segment(remoteLink, remotePort, transport.linkAddress,
+			       localPort, flags, Math.min(window(), 0xFF),
+			       number, contents);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    private static class Unacknowledged {
+	Unacknowledged(Segment segment) {
+	    this.segment = segment;
+	    sentTime = Machine.timer().getTime();
+	}
+
+	Segment segment;
+	long sentTime;
+	boolean retransmitted = false;
+    }
+
+    /** The local port of this connection. */
+    final int localPort;
+    /** The link address of the remote host. */
+    final int remoteLink;
+    /** The port of this connection on the remote host. */
+    final int remotePort;
+
+    private Transport transport;
+
+    private static final int synSent = 0, connected = 1;
+    private int state = connected;
+    private boolean localClosed = false, remoteClosed = false;
+    private boolean aborted = false;
+    private Condition established, spaceAvailable;
+
+    private LinkedList<byte[]> sendQueue = new LinkedList<byte[]>();
+    private LinkedList<Unacknowledged> unacknowledged =
+	new LinkedList<Unacknowledged>();
+    private int sendBase = 0, nextSequence = 0;
+    private int peerWindow;
+    private int duplicates = 0;
+    private int recover = 0;
+    private boolean finSent = false, finAcknowledged = false;
+
+    private long retransmitAt = -1;
+    private int retransmitTicks;
+    private int tries = 0;
+    private long smoothedRTT = -1, deviationRTT = 0;
+
+    private LinkedList<Segment> received = new LinkedList<Segment>();
+    private int readOffset = 0;
+    private HashMap<Integer, Segment> outOfOrder =
+	new HashMap<Integer, Segment>();
+    private int expected = 0;
+    private int advertised;
+
+    private static final int minRetransmitTicks = 500;
+    private static final int maxRetransmitTicks = 64000;
+
+    private static final char dbgNet = 'n';
+}
@@ -20,29 +20,58 @@ public class MailMessage {
      */
     public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
 		       byte[] contents) throws MalformedPacketException {
+	this(dstLink, dstPort, srcLink, srcPort,
+	     frame(contents), contents.length);
+
+	this.contents = contents;
+    }
+
+    /**
+     * Allocate a new mail message to be sent, whose contents have already
+     * been written to <i>packetBytes</i> at offset <tt>contentsOffset</tt>.
+     * The headers are written in place, so the contents are not copied.
+     *
+     * @param	dstLink		the destination link address.
+     * @param	dstPort		the destination port.
+     * @param	srcLink		the source link address.
+     * @param	srcPort		the source port.
+     * @param	packetBytes	the array holding the packet.
+     * @param	contentsLength	the number of content bytes.
+     */
+    public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
+		       byte[] packetBytes, int contentsLength)
+	throws MalformedPacketException {
 	// make sure the paramters are valid
 	if (dstPort < 0 || dstPort >= portLimit ||
 	    srcPort < 0 || srcPort >= portLimit ||
-	    contents.length > maxContentsLength)
+	    contentsLength < 0 || contentsLength > maxContentsLength)
 	    throw new MalformedPacketException();
 
 	this.dstPort = (byte) dstPort;
 	this.srcPort = (byte) srcPort;
-	this.contents = contents;
+	this.contentsLength = contentsLength;
 
-	byte[] packetContents = new byte[headerLength + contents.length];
+	packetBytes[Packet.headerLength+0] = (byte) dstPort;
+	packetBytes[Packet.headerLength+1] = (byte) srcPort;
+
+	packet = new Packet(dstLink, srcLink, packetBytes,
+			    headerLength + contentsLength);
+    }
 
-	packetContents[0] = (byte) dstPort;
-	packetContents[1] = (byte) srcPort;
+    private static byte[] frame(byte[] contents) {
+	byte[] packetBytes = new byte[contentsOffset + contents.length];
 
-	System.arraycopy(contents, 0, packetContents, headerLength,
+	System.arraycopy(contents, 0, packetBytes, contentsOffset,
 			 contents.length);
 
-	packet = new Packet(dstLink, srcLink, packetContents);
+	return packetBytes;
     }
 	
     /**
      * Allocate a new mail message using the specified packet from the network.
+     * The headers are read in place. The <tt>contents</tt> field is filled in
+     * if the packet's is; otherwise it is <tt>null</tt>, and the contents are
+     * read with <tt>getContents()</tt>.
      *
      * @param	packet	the packet containg the mail message.
      */
@@ -50,17 +79,63 @@ public class MailMessage {
 	this.packet = packet;
 	
 	// make sure we have a valid header
-	if (packet.contents.length < headerLength ||
-	    packet.contents[0] < 0 || packet.contents[0] >= portLimit ||
-	    packet.contents[1] < 0 || packet.contents[1] >= portLimit)
+	if (packet.getContentsLength() < headerLength ||
+	    packet.getContentsByte(0) < 0 ||
+	    packet.getContentsByte(0) >= portLimit ||
+	    packet.getContentsByte(1) < 0 ||
+	    packet.getContentsByte(1) >= portLimit)
 	    throw new MalformedPacketException();
 
-	dstPort = packet.contents[0];
-	srcPort = packet.contents[1];
+	dstPort = packet.getContentsByte(0);
+	srcPort = packet.getContentsByte(1);
 
-	contents = new byte[packet.contents.length - headerLength];
-	System.arraycopy(packet.contents, headerLength, contents, 0,
-			 contents.length);
+	contentsLength = packet.getContentsLength() - headerLength;
+
+	if (packet.contents != null) {
+	    contents = new byte[contentsLength];
+	    System.arraycopy(packet.contents, headerLength, contents, 0,
+			     contentsLength);
+	}
+    }
+
+    /**
+     * Return the number of content bytes in this message.
+     *
+     * @return	the length of the contents.
+     */
+    public int getContentsLength() {
+	return contentsLength;
+    }
+
+    /**
+     * Return one byte of the contents of this message.
+     *
+     * @param	offset	the offset of the byte within the contents.
+     * @return	the byte.
+     */
+    public byte getContentsByte(int offset) {
+	return packet.getContentsByte(headerLength + offset);
+    }
+
+    /**
+     * Copy part of the contents of this message.
+     *
+     * @param	offset	the offset of the first byte within the contents.
+     * @param	buf	the buffer to copy to.
+     * @param	bufOffset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to copy.
+     */
+    public void getContents(int offset, byte[] buf, int bufOffset,
+			    int length) {
+	packet.getContents(headerLength + offset, buf, bufOffset, length);
+    }
+
+    /**
+     * Return the buffer of this message's packet for reuse. The message must
+     * not be used afterwards.
+     */
+    public void release() {
+	packet.release();
     }
 
     /**
@@ -69,7 +144,7 @@ public class MailMessage {
     public String toString() {
 	return "from (" + packet.srcLink + ":" + srcPort +
 	    ") to (" + packet.dstLink + ":" + dstPort +
-	    "), " + contents.length + " bytes";
+	    "), " + contentsLength + " bytes";
     }
     
     /** This message, as a packet that can be sent through a network link. */
@@ -78,9 +153,15 @@ public class MailMessage {
     public int dstPort;
     /** The port used by this message on the source machine. */
     public int srcPort;
-    /** The contents of this message, excluding the mail message header. */
+    /**
+     * The contents of this message, excluding the mail message header, or
+     * <tt>null</tt> if this message was received with
+     * <tt>NetworkLink.inPlace</tt> set.
+     */
     public byte[] contents;
 
+    private int contentsLength;
+
     /**
      * The number of bytes in a mail header. The header is formatted as
      * follows:
@@ -93,6 +174,9 @@ public class MailMessage {
      */
     public static final int headerLength = 2;
 
+    /** The offset of the contents of a message within its packet. */
+    public static final int contentsOffset = Packet.headerLength + headerLength;
+
     /** Maximum payload (real data) that can be included in a single mesage. */
     public static final int maxContentsLength =
 	Packet.maxContentsLength - headerLength;
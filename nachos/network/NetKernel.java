@@ -24,13 +24,22 @@ public class NetKernel extends VMKernel {
 	super.initialize(args);
 
 	postOffice = new PostOffice();
+	transport = new Transport(postOffice);
+
+	SyscallStats syscallStats = Machine.processor().getSyscallStats();
+	syscallStats.setName(NetProcess.syscallConnect, "connect");
+	syscallStats.setName(NetProcess.syscallAccept, "accept");
     }
 
     /**
-     * Test the network. Create a server thread that listens for pings on port
-     * 1 and sends replies. Then ping one or two hosts. Note that this test
+     * Test the network. Send a stream of bytes to this machine through the
+     * transport, and check that all of it arrives, in order. Make a batch of
+     * remote procedure calls to this machine, and check that each runs once
+     * and gets its own result. Then create a server thread that listens for
+     * pings on port 1 and sends replies, and ping one or two hosts. The
+     * transport and RPC tests cope with any reliability, but the ping test
      * assumes that the network is reliable (i.e. that the network's
-     * reliability is 1.0).
+     * reliability is 1.0), so it is skipped if it is not.
      */
     public void selfTest() {
 	super.selfTest();
@@ -46,6 +55,12 @@ public class NetKernel extends VMKernel {
 
 	int local = Machine.networkLink().getLinkAddress();
 
+	transportTest(local);
+	rpcTest(local);
+
+	if (Config.getDouble("NetworkLink.reliability") < 1.0)
+	    return;
+
 	// ping this machine first
 	ping(local);
 
@@ -54,6 +69,128 @@ public class NetKernel extends VMKernel {
 	    ping(1-local);
     }
 
+    /**
+     * Connect to a server on this machine and send it a stream of bytes,
+     * which it checks. Each byte is its offset in the stream modulo a prime,
+     * so a segment lost, repeated, or delivered out of order shows up as a
+     * wrong byte.
+     */
+    private void transportTest(final int local) {
+	final Semaphore done = new Semaphore(0);
+
+	KThread server = new KThread(new Runnable() {
+		public void run() {
+		    Connection connection;
+		    while ((connection = transport.accept(testPort)) == null)
+			ThreadedKernel.alarm.waitUntil(pollTicks);
+
+		    byte[] buf = new byte[256];
+		    int received = 0, n;
+		    while ((n = connection.read(buf, 0, buf.length)) >= 0) {
+			if (n == 0) {
+			    ThreadedKernel.alarm.waitUntil(pollTicks);
+			    continue;
+			}
+
+			for (int i=0; i<n; i++, received++)
+			    Lib.assertTrue(buf[i] == (byte) (received % 251),
+					   "transport delivered byte "
+					   + received + " wrong");
+		    }
+
+		    connection.close();
+
+		    Lib.assertTrue(received == transferLength,
+				   "transport delivered " + received
+				   + " of " + transferLength + " bytes");
+		    done.V();
+		}
+	    });
+
+	server.setName("transport test server").fork();
+
+	long startTime = Machine.timer().getTime();
+
+	Connection connection = transport.connect(local, testPort);
+	Lib.assertTrue(connection != null);
+
+	byte[] data = new byte[transferLength];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) (i % 251);
+
+	for (int sent=0; sent<data.length; ) {
+	    int n = Math.min(1000, data.length - sent);
+	    Lib.assertTrue(connection.write(data, sent, n) == n);
+	    sent += n;
+	}
+
+	connection.close();
+	done.P();
+
+	long ticks = Machine.timer().getTime() - startTime;
+	System.out.println("transport: " + transferLength + " bytes delivered"
+			   + " in order in " + ticks + " ticks");
+    }
+
+    /**
+     * Start a batch of calls to a server on this machine, one of them with an
+     * argument too long for a single packet, and check the results. The
+     * server returns each argument reversed, so a result given to the wrong
+     * call, or a fragment lost or out of place, shows up as a wrong result.
+     */
+    private void rpcTest(int local) {
+	new RPCServer(postOffice, rpcServerPort, new RPCHandler() {
+		public byte[] handle(int srcLink, int procedure,
+				     byte[] argument) {
+		    rpcsHandled++;
+
+		    byte[] result = new byte[argument.length];
+		    for (int i=0; i<argument.length; i++)
+			result[argument.length-1-i] = argument[i];
+		    return result;
+		}
+	    }, 4);
+
+	RPCClient client = new RPCClient(postOffice, rpcClientPort);
+
+	long startTime = Machine.timer().getTime();
+
+	RPCClient.Call[] calls = new RPCClient.Call[rpcCount];
+	byte[][] arguments = new byte[rpcCount][];
+	for (int i=0; i<rpcCount; i++) {
+	    int length = 1 + i%8;
+	    if (i == rpcCount/2)
+		length = 4*MailMessage.maxContentsLength + 1;
+
+	    arguments[i] = new byte[length];
+	    for (int j=0; j<length; j++)
+		arguments[i][j] = (byte) (i + j);
+
+	    calls[i] = client.start(local, rpcServerPort, 0, arguments[i]);
+	}
+
+	client.flush();
+
+	for (int i=0; i<rpcCount; i++) {
+	    byte[] result = calls[i].result();
+	    Lib.assertTrue(result != null, "rpc " + i + " failed");
+	    Lib.assertTrue(result.length == arguments[i].length,
+			   "rpc " + i + " returned the wrong length");
+
+	    for (int j=0; j<result.length; j++)
+		Lib.assertTrue(result[result.length-1-j] == arguments[i][j],
+			       "rpc " + i + " returned the wrong result");
+	}
+
+	Lib.assertTrue(rpcsHandled == rpcCount,
+		       "server ran " + rpcsHandled + " of " + rpcCount
+		       + " calls");
+
+	long ticks = Machine.timer().getTime() - startTime;
+	System.out.println("rpc: " + rpcCount + " calls answered correctly in "
+			   + ticks + " ticks");
+    }
+
     private void ping(int dstLink) {
 	int srcLink = Machine.networkLink().getLinkAddress();
 	
@@ -76,8 +213,10 @@ public class NetKernel extends VMKernel {
 	postOffice.send(ping);
 
 	MailMessage ack = postOffice.receive(0);
+	ack.release();
 	
 	long endTime = Machine.timer().getTime();
+	Machine.networkLink().getStats().roundTrip.add(endTime-startTime);
 
 	System.out.println("time=" + (endTime-startTime) + " ticks");	
     }
@@ -88,15 +227,21 @@ public class NetKernel extends VMKernel {
 
 	    MailMessage ack;
 
+	    byte[] contents = new byte[ping.getContentsLength()];
+	    ping.getContents(0, contents, 0, contents.length);
+
 	    try {
 		ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
 				      ping.packet.dstLink, ping.dstPort,
-				      ping.contents);
+				      contents);
 	    }
 	    catch (MalformedPacketException e) {
 		// should never happen...
 		continue;
 	    }
+	    finally {
+		ping.release();
+	    }
 
 	    postOffice.send(ack);
 	}	
@@ -116,7 +261,19 @@ public class NetKernel extends VMKernel {
 	super.terminate();
     }
 
-    private PostOffice postOffice;
+    /** The post office used by this kernel. */
+    public static PostOffice postOffice = null;
+    /** The reliable transport used by network processes. */
+    public static Transport transport = null;
+
+    private static final int testPort = 2;
+    private static final int transferLength = 16384;
+    private static final int pollTicks = 100;
+    private static final int rpcServerPort = 3;
+    private static final int rpcClientPort = 4;
+    private static final int rpcCount = 64;
+
+    private int rpcsHandled = 0;
 
     // dummy variables to make javac smarter
     private static NetProcess dummy1 = null;
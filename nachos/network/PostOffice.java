@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -14,6 +16,12 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Sending does not wait for the network hardware. Each message is queued on
+ * the network link, and the sender only blocks if the link's send queue is
+ * full. A sender that needs to know when its messages have left can pass a
+ * semaphore, which is V'd once for each of them.
  */
 public class PostOffice {
     /**
@@ -23,12 +31,15 @@ public class PostOffice {
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	sendSlots = new Semaphore(Machine.networkLink().getSendQueueSize());
+	stats = Machine.networkLink().getStats();
 
+	mailboxes = new SynchList[MailMessage.portLimit];
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = mailboxes[i] = new SynchList();
+
+	claimed = new boolean[MailMessage.portLimit];
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -58,7 +69,7 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = (MailMessage) mailboxes[port].removeFirst();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -66,6 +77,79 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Claim the specified port, and deliver every future message for it to
+     * the specified mailbox instead of the port's own queue. Messages already
+     * waiting in the port's queue stay there. A port can only have one owner
+     * at a time, so this fails if the port is already claimed.
+     *
+     * @param	port	the port to claim.
+     * @param	mailbox	the list to which to add the port's messages.
+     * @return	<tt>true</tt> if the port was claimed, or <tt>false</tt> if it
+     *		already has an owner.
+     */
+    public boolean claim(int port, SynchList mailbox) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean free = !claimed[port];
+	if (free) {
+	    claimed[port] = true;
+	    queues[port] = mailbox;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return free;
+    }
+
+    /**
+     * Claim any free port, as <tt>claim()</tt> does. Ports are handed out
+     * from the top, away from the well-known ones, and in turn, so that a
+     * port that was just released is not reused while stray messages for its
+     * last owner may still arrive.
+     *
+     * @param	mailbox	the list to which to add the port's messages.
+     * @return	the port claimed, or -1 if every port has an owner.
+     */
+    public int claimFree(SynchList mailbox) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int port = -1;
+	for (int i=0; i<claimed.length; i++) {
+	    nextFree = (nextFree == 0) ? claimed.length - 1 : nextFree - 1;
+	    if (!claimed[nextFree]) {
+		port = nextFree;
+		claimed[port] = true;
+		queues[port] = mailbox;
+		break;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return port;
+    }
+
+    /**
+     * Give up a port claimed with <tt>claim()</tt> or <tt>claimFree()</tt>.
+     * Future messages for the port go to its own queue again, and the port
+     * can be claimed by anyone.
+     *
+     * @param	port	the port to release.
+     */
+    public void release(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length && claimed[port]);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	claimed[port] = false;
+	queues[port] = mailboxes[port];
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -73,62 +157,96 @@ public class PostOffice {
 	while (true) {
 	    messageReceived.P();
 
-	    Packet p = Machine.networkLink().receive();
+	    // each receive interrupt announces a whole batch of packets
+	    Packet p;
+	    while ((p = Machine.networkLink().receive()) != null) {
+		MailMessage mail;
 
-	    MailMessage mail;
+		try {
+		    mail = new MailMessage(p);
+		}
+		catch (MalformedPacketException e) {
+		    p.release();
+		    continue;
+		}
 
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+		if (Lib.test(dbgNet))
+		    System.out.println("delivering mail to port " + mail.dstPort
+				       + ": " + mail);
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+		stats.portReceived(mail.dstPort, mail.getContentsLength());
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+		// atomically add message to the mailbox and wake a waiting
+		// thread
+		queues[mail.dstPort].add(mail);
+	    }
 	}
     }
 
     /**
-     * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * Called when a batch of packets has arrived and can be dequeued from the
+     * network link.
      */
     private void receiveInterrupt() {
 	messageReceived.V();
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. Returns as soon as the
+     * message is queued on the network link.
      */
     public void send(MailMessage mail) {
+	send(mail, null);
+    }
+
+    /**
+     * Send a message to a mailbox on a remote machine, and V the specified
+     * semaphore once the message has been sent or dropped by the network
+     * link. Returns as soon as the message is queued, so a thread sending a
+     * batch of messages can queue all of them and then P the semaphore once
+     * for each.
+     *
+     * @param	mail	the message to send.
+     * @param	sent	the semaphore to V when the message has left, or
+     *			<tt>null</tt>.
+     */
+    public void send(MailMessage mail, Semaphore sent) {
 	if (Lib.test(dbgNet))
 	    System.out.println("sending mail: " + mail);
 
-	sendLock.acquire();
+	sendSlots.P();
+
+	stats.portSent(mail.srcPort, mail.getContentsLength());
 
+	boolean intStatus = Machine.interrupt().disable();
+
+	completions.add(sent);
 	Machine.networkLink().send(mail.packet);
-	messageSent.P();
 
-	sendLock.release();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
      * Called when a packet has been sent and another can be queued to the
-     * network link. Note that this is called even if the previous packet was
-     * dropped.
+     * network link. Note that this is called even if the packet was dropped.
      */
     private void sendInterrupt() {
-	messageSent.V();
+	Semaphore sent = completions.removeFirst();
+	if (sent != null)
+	    sent.V();
+
+	sendSlots.V();
     }
 
-    private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
-    private Semaphore messageSent;	// V'd when a message can be queued
-    private Lock sendLock;
+    private SynchList[] mailboxes;	// each port's own queue
+    private SynchList[] queues;		// where each port's messages go
+    private boolean[] claimed;
+    private int nextFree = 0;		// the port claimFree() tried last
+    private NetworkStats stats;
+    private Semaphore messageReceived;	// V'd when messages can be dequeued
+    private Semaphore sendSlots;	// free slots in the link's send queue
+    private LinkedList<Semaphore> completions =	// one per queued message
+	new LinkedList<Semaphore>();
 
     private static final char dbgNet = 'n';
 }
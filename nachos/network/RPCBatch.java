@@ -0,0 +1,130 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Packs RPC records into packets. Records bound for the same port, and
+ * belonging to the same client epoch, share a packet until it is full or
+ * flushed, and a record too long for a packet is
+ * split into fragments. Fragment <i>k</i> always holds the same bytes, those
+ * from <tt>k*RPCRecord.maxDataLength</tt> on, so that a receiver can combine
+ * the fragments of a record sent more than once, however each copy was
+ * packed.
+ */
+class RPCBatch {
+    /**
+     * Allocate a new batch of packets sent from the specified port.
+     *
+     * @param	srcPort	the port from which the packets are sent.
+     */
+    RPCBatch(int srcPort) {
+	this.srcPort = srcPort;
+    }
+
+    /**
+     * Add a request or a reply, fragmenting it if necessary.
+     *
+     * @param	dstLink	the destination link address.
+     * @param	dstPort	the destination port.
+     * @param	epoch	the epoch of the client.
+     * @param	kind	<tt>RPCRecord.REQUEST</tt> or <tt>RPCRecord.REPLY</tt>.
+     * @param	id	the request ID.
+     * @param	code	the procedure or reply status.
+     * @param	data	the argument or result, at most
+     *			<tt>RPCRecord.maxLength</tt> bytes.
+     * @param	out	the list to which to add packets that filled up.
+     */
+    void add(int dstLink, int dstPort, int epoch, int kind, int id, int code,
+	     byte[] data, List<MailMessage> out) {
+	Lib.assertTrue(data.length <= RPCRecord.maxLength);
+
+	Integer key = new Integer((dstLink << 24) | (dstPort << 16) | epoch);
+	Open open = packets.get(key);
+
+	int offset = 0, fragment = 0;
+	do {
+	    int length = Math.min(RPCRecord.maxDataLength,
+				  data.length - offset);
+	    boolean last = (offset + length == data.length);
+
+	    if (open != null &&
+		MailMessage.maxContentsLength - open.length <
+		RPCRecord.headerLength + length) {
+		out.add(open.close());
+		open = null;
+	    }
+	    if (open == null) {
+		open = new Open(dstLink, dstPort, epoch);
+		packets.put(key, open);
+	    }
+
+	    int start = MailMessage.contentsOffset + open.length;
+	    RPCRecord.writeHeader(open.packetBytes, start, kind, id, code,
+				  fragment, last, length);
+	    System.arraycopy(data, offset, open.packetBytes,
+			     start + RPCRecord.headerLength, length);
+
+	    open.length += RPCRecord.headerLength + length;
+	    offset += length;
+	    fragment++;
+	} while (offset < data.length);
+
+	if (open.length == MailMessage.maxContentsLength) {
+	    out.add(open.close());
+	    packets.remove(key);
+	}
+    }
+
+    /**
+     * Close every partly filled packet.
+     *
+     * @param	out	the list to which to add the packets.
+     */
+    void flush(List<MailMessage> out) {
+	for (Open open : packets.values())
+	    out.add(open.close());
+
+	packets.clear();
+    }
+
+    /**
+     * Test whether any records are waiting to be sent.
+     *
+     * @return	<tt>true</tt> if no packets are partly filled.
+     */
+    boolean isEmpty() {
+	return packets.isEmpty();
+    }
+
+    private class Open {
+	Open(int dstLink, int dstPort, int epoch) {
+	    this.dstLink = dstLink;
+	    this.dstPort = dstPort;
+
+	    RPCRecord.writePacketHeader(packetBytes, MailMessage.contentsOffset,
+					epoch);
+	}
+
+	MailMessage close() {
+	    try {
+		return new MailMessage(dstLink, dstPort,
+				       Machine.networkLink().getLinkAddress(),
+				       srcPort, packetBytes, length);
+	    }
+	    catch (MalformedPacketException e) {
+		Lib.assertNotReached();
+		return null;
+	    }
+	}
+
+	int dstLink, dstPort;
+	byte[] packetBytes = new byte[Packet.maxPacketLength];
+	int length = RPCRecord.packetHeaderLength;
+    }
+
+    private int srcPort;
+    private HashMap<Integer, Open> packets = new HashMap<Integer, Open>();
+}
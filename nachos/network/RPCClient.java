@@ -0,0 +1,500 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The calling end of a remote procedure call facility built on a
+ * <tt>PostOffice</tt>. A client owns one local port, to which the replies to
+ * all of its calls are sent.
+ *
+ * <p>
+ * Each call is identified by a request ID. Arguments longer than a packet are
+ * split into fragments and reassembled by the server, and results come back
+ * the same way. Calls are not sent as soon as they are started: calls to the
+ * same server are packed into shared packets, which are sent when they fill,
+ * when <tt>flush()</tt> is called, or when a thread waits for a result. A
+ * thread can therefore start many small calls, and pay for far fewer packets
+ * and round trips than calls.
+ *
+ * <p>
+ * The request IDs of a client start from 0, so each client also picks a
+ * random epoch, which is sent with its requests and returned with their
+ * replies. A server that remembers the replies to an earlier client on the
+ * same port does not mistake this client's calls for that client's.
+ *
+ * <p>
+ * A call that gets no reply is sent again, with the timeout doubling each time
+ * up to <tt>maxRetransmitTicks</tt>, up to <tt>RPC.maxRetransmits</tt>
+ * (default 16) times. A call's timer starts when the network link has sent its
+ * last packet, not when the call is queued, so time spent waiting behind other
+ * packets does not count against it. The timeout is worked out from the
+ * measured round trips of calls that were sent once, as the transport does;
+ * until the first reply, it is set by the <tt>nachos.conf</tt> key
+ * <tt>RPC.retransmitTicks</tt>. The server remembers its recent replies, so a
+ * call is not run twice just because a reply was lost.
+ *
+ * @see	nachos.network.RPCServer
+ */
+public class RPCClient {
+    /**
+     * Allocate a new client that receives replies on the specified port, and
+     * start its "rpc client", "rpc sent", and "rpc timer" threads.
+     *
+     * @param	postOffice	the post office used to send and receive
+     *				packets.
+     * @param	port		the local port used by this client.
+     */
+    public RPCClient(PostOffice postOffice, int port) {
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+
+	this.postOffice = postOffice;
+	this.port = port;
+	stats = Machine.networkLink().getStats();
+	epoch = Lib.random(RPCRecord.epochLimit);
+
+	retransmitTicks = Config.getInteger("RPC.retransmitTicks", 4000);
+	maxRetransmits = Config.getInteger("RPC.maxRetransmits", 16);
+	Lib.assertTrue(retransmitTicks > 0 && maxRetransmits >= 0);
+
+	lock = new Lock();
+	finished = new Condition(lock);
+	timerIdle = new Condition(lock);
+	waker = new AlarmWaker(lock, timerIdle, "rpc alarm");
+	batch = new RPCBatch(port);
+
+	sendLock = new Lock();
+	packetSent = new Semaphore(0);
+	sending = new SynchList();
+
+	mailbox = new SynchList();
+	Lib.assertTrue(postOffice.claim(port, mailbox),
+		       "port " + port + " is already in use");
+
+	KThread receiver = new KThread(new Runnable() {
+		public void run() { receiveReplies(); }
+	    });
+	KThread sent = new KThread(new Runnable() {
+		public void run() { startTimers(); }
+	    });
+	KThread timer = new KThread(new Runnable() {
+		public void run() { retransmitTimer(); }
+	    });
+
+	receiver.setName("rpc client").fork();
+	sent.setName("rpc sent").fork();
+	timer.setName("rpc timer").fork();
+    }
+
+    /**
+     * Call a remote procedure and wait for its result.
+     *
+     * @param	host		the link address of the server.
+     * @param	port		the port of the server.
+     * @param	procedure	the procedure to call, between 0 and 255.
+     * @param	argument	the argument of the call, at most
+     *				<tt>maxArgumentLength</tt> bytes.
+     * @return	the result of the call, or <tt>null</tt> if it failed or the
+     *		server could not be reached.
+     */
+    public byte[] call(int host, int port, int procedure, byte[] argument) {
+	return start(host, port, procedure, argument).result();
+    }
+
+    /**
+     * Start a remote procedure call, without waiting for its result. The call
+     * may not be sent until the packet it shares with other calls fills, or
+     * until <tt>flush()</tt> or <tt>Call.result()</tt> is called.
+     *
+     * @param	host		the link address of the server.
+     * @param	port		the port of the server.
+     * @param	procedure	the procedure to call, between 0 and 255.
+     * @param	argument	the argument of the call, at most
+     *				<tt>maxArgumentLength</tt> bytes.
+     * @return	the call, whose result can be waited for.
+     */
+    public Call start(int host, int port, int procedure, byte[] argument) {
+	Lib.assertTrue(host >= 0 && host < Packet.linkAddressLimit);
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+	Lib.assertTrue(procedure >= 0 && procedure <= 0xFF);
+	Lib.assertTrue(argument.length <= maxArgumentLength);
+
+	LinkedList<MailMessage> out = new LinkedList<MailMessage>();
+
+	lock.acquire();
+
+	Lib.assertTrue(calls.size() < idLimit);
+	while (calls.containsKey(new Integer(nextID)))
+	    nextID = (nextID+1) % idLimit;
+
+	Call call = new Call(host, port, procedure, argument, nextID);
+	nextID = (nextID+1) % idLimit;
+
+	calls.put(new Integer(call.id), call);
+	unsent.add(call);
+	batch.add(host, port, epoch, RPCRecord.REQUEST, call.id, procedure,
+		  argument, out);
+
+	lock.release();
+
+	send(out);
+	return call;
+    }
+
+    /**
+     * Send every call that has been started but not yet sent.
+     */
+    public void flush() {
+	LinkedList<MailMessage> out = new LinkedList<MailMessage>();
+
+	lock.acquire();
+	flush(out);
+	lock.release();
+
+	send(out);
+    }
+
+    /**
+     * A remote procedure call started by this client.
+     */
+    public class Call {
+	private Call(int host, int port, int procedure, byte[] argument,
+		     int id) {
+	    this.host = host;
+	    this.port = port;
+	    this.procedure = procedure;
+	    this.argument = argument;
+	    this.id = id;
+	}
+
+	/**
+	 * Wait for the result of this call, sending any calls that have not
+	 * been sent yet.
+	 *
+	 * @return	the result of the call, or <tt>null</tt> if it failed or
+	 *		the server could not be reached.
+	 */
+	public byte[] result() {
+	    LinkedList<MailMessage> out = new LinkedList<MailMessage>();
+
+	    lock.acquire();
+
+	    if (!unsent.isEmpty()) {
+		flush(out);
+
+		lock.release();
+		send(out);
+		lock.acquire();
+	    }
+
+	    while (status == pending)
+		finished.sleep();
+
+	    lock.release();
+
+	    return (status == succeeded) ? result : null;
+	}
+
+	/**
+	 * Return the status of this call, without waiting.
+	 *
+	 * @return	<tt>pending</tt>, <tt>succeeded</tt>, <tt>failed</tt>, or
+	 *		<tt>timedOut</tt>.
+	 */
+	public int getStatus() {
+	    return status;
+	}
+
+	/**
+	 * Process a fragment of the reply. Called with the lock held.
+	 */
+	private void receive(RPCRecord record) {
+	    if (record.fragment >= parts.length ||
+		(count >= 0 && record.fragment >= count) ||
+		parts[record.fragment] != null)
+		return;
+
+	    parts[record.fragment] = record.data;
+	    received++;
+
+	    if (record.last)
+		count = record.fragment + 1;
+
+	    if (received == count) {
+		result = RPCRecord.join(parts, count);
+		// only a call sent once gives an unambiguous round trip
+		if (tries == 0 && sentTime >= 0)
+		    sample(Machine.timer().getTime() - sentTime);
+
+		if (record.code == RPCRecord.statusOK)
+		    status = succeeded;
+		else
+		    status = failed;
+		parts = null;
+		finish();
+	    }
+	}
+
+	/**
+	 * Forget this call and wake the threads waiting for it. Called with
+	 * the lock held.
+	 */
+	private void finish() {
+	    argument = null;
+	    calls.remove(new Integer(id));
+	    finished.wakeAll();
+	}
+
+	private int host, port, procedure, id;
+	private byte[] argument;
+
+	private long sentTime = -1;	// when the last packet left, if sent
+	private long deadline = -1;	// when to retransmit, if sent
+	private int tries = 0;
+
+	private byte[][] parts = new byte[RPCRecord.maxFragments][];
+	private int received = 0, count = -1;
+	private byte[] result = null;
+	private int status = pending;
+    }
+
+    /**
+     * Close the partly filled packets, so they can be sent. Called with the
+     * lock held.
+     */
+    private void flush(List<MailMessage> out) {
+	batch.flush(out);
+	unsent.clear();
+    }
+
+    /**
+     * Send the specified packets. Must not be called with the lock held.
+     */
+    private void send(List<MailMessage> packets) {
+	// the post office V's packetSent for our packets in the order they
+	// were queued, so keep this list in the same order
+	sendLock.acquire();
+
+	for (MailMessage mail : packets) {
+	    sending.add(finishedCalls(mail));
+	    postOffice.send(mail, packetSent);
+	}
+
+	sendLock.release();
+    }
+
+    /**
+     * Return the IDs of the calls whose last fragment is in the specified
+     * packet.
+     */
+    private static int[] finishedCalls(MailMessage mail) {
+	LinkedList<RPCRecord> records = new LinkedList<RPCRecord>();
+	RPCRecord.parse(mail, records);
+
+	int count = 0;
+	for (RPCRecord record : records) {
+	    if (record.last)
+		count++;
+	}
+
+	int[] ids = new int[count];
+	for (RPCRecord record : records) {
+	    if (record.last)
+		ids[--count] = record.id;
+	}
+
+	return ids;
+    }
+
+    /**
+     * Wait for each packet to leave, and start the timers of the calls it
+     * finished sending.
+     */
+    private void startTimers() {
+	while (true) {
+	    packetSent.P();
+
+	    int[] ids = (int[]) sending.removeFirst();
+
+	    lock.acquire();
+
+	    long now = Machine.timer().getTime();
+	    for (int i=0; i<ids.length; i++) {
+		Call call = calls.get(new Integer(ids[i]));
+		if (call == null || call.status != pending)
+		    continue;
+
+		call.sentTime = now;
+		call.deadline = now +
+		    Math.min((long) retransmitTicks << Math.min(call.tries, 6),
+			     maxRetransmitTicks);
+		timerIdle.wake();
+	    }
+
+	    lock.release();
+	}
+    }
+
+    /**
+     * Update the retransmission timeout with a new round trip time
+     * measurement, as <tt>Connection</tt> does. Called with the lock held.
+     */
+    private void sample(long rtt) {
+	stats.roundTrip.add(rtt);
+
+	if (smoothedRTT < 0) {
+	    smoothedRTT = rtt;
+	    deviationRTT = rtt/2;
+	}
+	else {
+	    deviationRTT = (3*deviationRTT + Math.abs(smoothedRTT - rtt)) / 4;
+	    smoothedRTT = (7*smoothedRTT + rtt) / 8;
+	}
+
+	long timeout = smoothedRTT + 4*deviationRTT;
+	retransmitTicks = (int) Math.max(minRetransmitTicks,
+					 Math.min(maxRetransmitTicks, timeout));
+    }
+
+    /**
+     * Wait for replies to arrive, and hand each one to its call.
+     */
+    private void receiveReplies() {
+	while (true) {
+	    MailMessage mail = (MailMessage) mailbox.removeFirst();
+
+	    int srcLink = mail.packet.srcLink;
+	    int srcPort = mail.srcPort;
+
+	    LinkedList<RPCRecord> records = new LinkedList<RPCRecord>();
+	    RPCRecord.parse(mail, records);
+	    mail.release();
+
+	    lock.acquire();
+
+	    for (RPCRecord record : records) {
+		if (Lib.test(dbgNet))
+		    System.out.println("rpc client received " + record);
+
+		Call call = calls.get(new Integer(record.id));
+		if (record.kind == RPCRecord.REPLY && record.epoch == epoch &&
+		    call != null && call.host == srcLink &&
+		    call.port == srcPort)
+		    call.receive(record);
+	    }
+
+	    lock.release();
+	}
+    }
+
+    /**
+     * Wait for the earliest call to time out, and send it again. Sending a
+     * call wakes this thread, so a deadline earlier than the one it is
+     * waiting for is not missed.
+     */
+    private void retransmitTimer() {
+	lock.acquire();
+
+	while (true) {
+	    long deadline = nextDeadline();
+	    long now = Machine.timer().getTime();
+
+	    if (deadline < 0 || deadline > now) {
+		if (deadline >= 0)
+		    waker.wakeAt(deadline);
+
+		timerIdle.sleep();
+		continue;
+	    }
+
+	    LinkedList<MailMessage> out = new LinkedList<MailMessage>();
+
+	    for (Call call : new ArrayList<Call>(calls.values())) {
+		if (call.deadline < 0 || call.deadline > now)
+		    continue;
+
+		if (call.tries == maxRetransmits) {
+		    call.status = timedOut;
+		    call.finish();
+		    continue;
+		}
+
+		// the timer starts again when the call has been sent
+		call.tries++;
+		stats.portRetransmitted(port);
+		call.sentTime = -1;
+		call.deadline = -1;
+
+		batch.add(call.host, call.port, epoch, RPCRecord.REQUEST,
+			  call.id, call.procedure, call.argument, out);
+	    }
+
+	    flush(out);
+
+	    lock.release();
+
+	    send(out);
+
+	    lock.acquire();
+	}
+    }
+
+    private long nextDeadline() {
+	long next = -1;
+
+	for (Call call : calls.values()) {
+	    if (call.deadline >= 0 && (next < 0 || call.deadline < next))
+		next = call.deadline;
+	}
+
+	return next;
+    }
+
+    /** The longest argument that can be passed to a remote procedure. */
+    public static final int maxArgumentLength = RPCRecord.maxLength;
+
+    /** The status of a call that has not finished. */
+    public static final int pending = 0;
+    /** The status of a call that returned a result. */
+    public static final int succeeded = 1;
+    /** The status of a call that the server could not run. */
+    public static final int failed = 2;
+    /** The status of a call that the server never answered. */
+    public static final int timedOut = 3;
+
+    private PostOffice postOffice;
+    private SynchList mailbox;
+    private int port;
+    private int epoch;
+    private NetworkStats stats;
+
+    private int retransmitTicks;	// the timeout of a call sent once
+    private long smoothedRTT = -1, deviationRTT = 0;
+    private int maxRetransmits;
+
+    private Lock lock;
+    private Condition finished;		// woken when a call finishes
+    private Condition timerIdle;	// woken when a call is sent or expires
+    private AlarmWaker waker;
+
+    private RPCBatch batch;
+    private HashMap<Integer, Call> calls = new HashMap<Integer, Call>();
+    private LinkedList<Call> unsent = new LinkedList<Call>();
+
+    private Lock sendLock;		// keeps sending in packetSent order
+    private Semaphore packetSent;	// V'd when one of our packets leaves
+    private SynchList sending;		// finishedCalls() of each packet
+    private int nextID = 0;
+
+    private static final int idLimit = 0x10000;
+    private static final int minRetransmitTicks = 500;
+    /** The longest a call waits for a reply before it is sent again. */
+    static final int maxRetransmitTicks = 64000;
+
+    private static final char dbgNet = 'n';
+}
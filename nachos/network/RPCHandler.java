@@ -0,0 +1,17 @@
+package nachos.network;
+
+/**
+ * The procedures served by an <tt>RPCServer</tt>.
+ */
+public interface RPCHandler {
+    /**
+     * Run a remote procedure call. Called on one of the server's worker
+     * threads, so several calls may run at once.
+     *
+     * @param	srcLink		the link address of the caller.
+     * @param	procedure	the procedure to run, between 0 and 255.
+     * @param	argument	the argument of the call.
+     * @return	the result of the call, or <tt>null</tt> if it failed.
+     */
+    public byte[] handle(int srcLink, int procedure, byte[] argument);
+}
@@ -0,0 +1,199 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * One record of an RPC packet: a request, a reply, or one fragment of either.
+ * Arguments and results longer than a packet are split into fragments, and
+ * small records bound for the same port share a packet, so a packet holds
+ * one or more records back to back, after the epoch of the client they
+ * belong to.
+ *
+ * <p>
+ * A client picks a random epoch when it is created, and the server tells
+ * apart the requests of different clients by it as well as by their link
+ * address and port. A client created on a port that an earlier client used
+ * therefore never gets the earlier client's replies, even though it numbers
+ * its requests the same way.
+ *
+ * @see	nachos.network.RPCClient
+ * @see	nachos.network.RPCServer
+ */
+class RPCRecord {
+    /**
+     * Allocate a new record.
+     *
+     * @param	epoch		the epoch of the client.
+     * @param	kind		<tt>REQUEST</tt> or <tt>REPLY</tt>.
+     * @param	id		the request ID.
+     * @param	code		the procedure of a request, or the status of a
+     *				reply.
+     * @param	fragment	the index of this fragment.
+     * @param	last		<tt>true</tt> if this is the last fragment.
+     * @param	data		the data in this fragment.
+     */
+    RPCRecord(int epoch, int kind, int id, int code, int fragment,
+	      boolean last, byte[] data) {
+	this.epoch = epoch;
+	this.kind = kind;
+	this.id = id;
+	this.code = code;
+	this.fragment = fragment;
+	this.last = last;
+	this.data = data;
+    }
+
+    /**
+     * Read every record in the specified mail message.
+     *
+     * @param	mail	the message to read.
+     * @param	records	the list to which to add the records.
+     * @return	<tt>true</tt> if the message was well formed. Records read
+     *		before a malformed one are still added.
+     */
+    static boolean parse(MailMessage mail, List<RPCRecord> records) {
+	byte[] packetBytes = mail.packet.packetBytes;
+	int offset = MailMessage.contentsOffset;
+	int end = offset + mail.getContentsLength();
+
+	if (end - offset < packetHeaderLength)
+	    return false;
+
+	int epoch = ((packetBytes[offset+0] & 0xFF) << 8) |
+	    (packetBytes[offset+1] & 0xFF);
+	offset += packetHeaderLength;
+
+	while (offset < end) {
+	    if (end - offset < headerLength)
+		return false;
+
+	    int kind = packetBytes[offset+0] & 0xFF;
+	    int id = ((packetBytes[offset+1] & 0xFF) << 8) |
+		(packetBytes[offset+2] & 0xFF);
+	    int code = packetBytes[offset+3] & 0xFF;
+	    int fragment = packetBytes[offset+4] & 0x7F;
+	    boolean last = (packetBytes[offset+4] & 0x80) != 0;
+	    int length = packetBytes[offset+5] & 0xFF;
+
+	    offset += headerLength;
+	    if ((kind != REQUEST && kind != REPLY) || length > end - offset)
+		return false;
+
+	    byte[] data = new byte[length];
+	    System.arraycopy(packetBytes, offset, data, 0, length);
+	    offset += length;
+
+	    records.add(new RPCRecord(epoch, kind, id, code, fragment, last,
+				      data));
+	}
+
+	return true;
+    }
+
+    /**
+     * Write a packet header to the specified array.
+     */
+    static void writePacketHeader(byte[] packetBytes, int offset, int epoch) {
+	packetBytes[offset+0] = (byte) (epoch >> 8);
+	packetBytes[offset+1] = (byte) epoch;
+    }
+
+    /**
+     * Write a record header to the specified array.
+     */
+    static void writeHeader(byte[] packetBytes, int offset, int kind, int id,
+			    int code, int fragment, boolean last, int length) {
+	packetBytes[offset+0] = (byte) kind;
+	packetBytes[offset+1] = (byte) (id >> 8);
+	packetBytes[offset+2] = (byte) id;
+	packetBytes[offset+3] = (byte) code;
+	packetBytes[offset+4] = (byte) (fragment | (last ? 0x80 : 0));
+	packetBytes[offset+5] = (byte) length;
+    }
+
+    /**
+     * Join the fragments of a request or reply.
+     *
+     * @param	parts	the data of each fragment, in order.
+     * @param	count	the number of fragments.
+     * @return	the whole argument or result.
+     */
+    static byte[] join(byte[][] parts, int count) {
+	int length = 0;
+	for (int i=0; i<count; i++)
+	    length += parts[i].length;
+
+	byte[] data = new byte[length];
+	int offset = 0;
+	for (int i=0; i<count; i++) {
+	    System.arraycopy(parts[i], 0, data, offset, parts[i].length);
+	    offset += parts[i].length;
+	}
+
+	return data;
+    }
+
+    /**
+     * Return a string representation of this record.
+     */
+    public String toString() {
+	return (kind == REQUEST ? "request " : "reply ") + epoch + "." + id
+	    + " code " + code + " fragment " + fragment
+	    + (last ? " (last)" : "") + ", " + data.length + " bytes";
+    }
+
+    int epoch;
+    int kind;
+    int id;
+    int code;
+    int fragment;
+    boolean last;
+    byte[] data;
+
+    /** The kind of a record carrying (part of) a request. */
+    static final int REQUEST = 1;
+    /** The kind of a record carrying (part of) a reply. */
+    static final int REPLY = 2;
+
+    /** The status of a reply carrying the result of a call. */
+    static final int statusOK = 0;
+    /** The status of a reply to a call that could not be run. */
+    static final int statusFailed = 1;
+
+    /**
+     * The number of bytes at the start of each packet, before the records:
+     * the epoch of the client, in 2 bytes.
+     */
+    static final int packetHeaderLength = 2;
+
+    /** The number of client epochs. */
+    static final int epochLimit = 0x10000;
+
+    /**
+     * The number of bytes in a record header. The header is formatted as
+     * follows:
+     *
+     * <table>
+     * <tr><td>offset</td><td>size</td><td>value</td></tr>
+     * <tr><td>0</td><td>1</td><td>kind</td></tr>
+     * <tr><td>1</td><td>2</td><td>request ID</td></tr>
+     * <tr><td>3</td><td>1</td><td>procedure, or reply status</td></tr>
+     * <tr><td>4</td><td>1</td><td>fragment index, with the high bit set in
+     *     the last fragment</td></tr>
+     * <tr><td>5</td><td>1</td><td>length of the data that follows</td></tr>
+     * </table>
+     */
+    static final int headerLength = 6;
+
+    /** The most data that fits in one record. */
+    static final int maxDataLength =
+	MailMessage.maxContentsLength - packetHeaderLength - headerLength;
+
+    /** The most fragments a request or reply can be split into. */
+    static final int maxFragments = 128;
+
+    /** The longest argument or result. */
+    static final int maxLength = maxFragments * maxDataLength;
+}
@@ -0,0 +1,313 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The serving end of a remote procedure call facility built on a
+ * <tt>PostOffice</tt>. A server owns one local port, reassembles the requests
+ * sent to it, and runs them on a pool of worker threads, so a slow call does
+ * not hold up the others.
+ *
+ * <p>
+ * Replies to the same client are packed into shared packets. A reply is held
+ * back only while more requests are waiting for a worker, so that their
+ * replies can join it; once the queue of requests is empty, every held reply
+ * is sent.
+ *
+ * <p>
+ * The server remembers the last <tt>RPC.replyCache</tt> replies it sent,
+ * keyed on the client's link address, port, and epoch, and the request ID. A
+ * retransmitted request that has already run is answered from this cache
+ * instead of being run again, and one that is still running is ignored. A
+ * request that is missing fragments is dropped once none of them has arrived
+ * for <tt>RPC.reassemblyTicks</tt> ticks. The default is twice the longest
+ * timeout of a client, so the fragments that get through each time a
+ * request is sent again are put together, even on a lossy network.
+ *
+ * @see	nachos.network.RPCClient
+ */
+public class RPCServer {
+    /**
+     * Allocate a new server on the specified port, and start its "rpc server"
+     * thread and its worker threads.
+     *
+     * @param	postOffice	the post office used to send and receive
+     *				packets.
+     * @param	port		the port on which to serve requests.
+     * @param	handler		the procedures to serve.
+     * @param	workers		the number of worker threads.
+     */
+    public RPCServer(PostOffice postOffice, int port, RPCHandler handler,
+		     int workers) {
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+	Lib.assertTrue(workers > 0);
+
+	this.postOffice = postOffice;
+	this.handler = handler;
+
+	final int replyCache = Config.getInteger("RPC.replyCache", 256);
+	reassemblyTicks = Config.getInteger("RPC.reassemblyTicks",
+					    2*RPCClient.maxRetransmitTicks);
+	Lib.assertTrue(replyCache >= 0 && reassemblyTicks > 0);
+
+	replies = new LinkedHashMap<Long, Request>() {
+		protected boolean removeEldestEntry(Map.Entry<Long, Request> e) {
+		    return size() > replyCache;
+		}
+	    };
+
+	lock = new Lock();
+	batch = new RPCBatch(port);
+	work = new SynchList();
+
+	mailbox = new SynchList();
+	Lib.assertTrue(postOffice.claim(port, mailbox),
+		       "port " + port + " is already in use");
+
+	KThread receiver = new KThread(new Runnable() {
+		public void run() { receiveRequests(); }
+	    });
+	receiver.setName("rpc server").fork();
+
+	for (int i=0; i<workers; i++) {
+	    KThread worker = new KThread(new Runnable() {
+		    public void run() { serveRequests(); }
+		});
+	    worker.setName("rpc worker " + i).fork();
+	}
+    }
+
+    /**
+     * A request being reassembled, run, or remembered.
+     */
+    private class Request {
+	Request(int srcLink, int srcPort, int epoch, int id, int procedure) {
+	    this.srcLink = srcLink;
+	    this.srcPort = srcPort;
+	    this.epoch = epoch;
+	    this.id = id;
+	    this.procedure = procedure;
+	}
+
+	/**
+	 * Process a fragment of the request.
+	 *
+	 * @return	<tt>true</tt> if this fragment completed the request.
+	 */
+	boolean receive(RPCRecord record) {
+	    if (parts == null || record.fragment >= parts.length ||
+		(count >= 0 && record.fragment >= count) ||
+		parts[record.fragment] != null)
+		return false;
+
+	    parts[record.fragment] = record.data;
+	    received++;
+
+	    if (record.last)
+		count = record.fragment + 1;
+
+	    if (received != count)
+		return false;
+
+	    argument = RPCRecord.join(parts, count);
+	    parts = null;
+	    return true;
+	}
+
+	int srcLink, srcPort, epoch, id, procedure;
+
+	byte[][] parts = new byte[RPCRecord.maxFragments][];
+	int received = 0, count = -1;
+	long lastHeard;
+	byte[] argument = null;
+
+	int status;
+	byte[] result = null;
+    }
+
+    private static Long key(int srcLink, int srcPort, int epoch, int id) {
+	return new Long(((long) srcLink << 40) | ((long) srcPort << 32) |
+			((long) epoch << 16) | id);
+    }
+
+    private void send(List<MailMessage> packets) {
+	for (MailMessage mail : packets)
+	    postOffice.send(mail);
+    }
+
+    /**
+     * Wait for requests to arrive, and queue each one for a worker once all
+     * of its fragments are in.
+     */
+    private void receiveRequests() {
+	while (true) {
+	    MailMessage mail = (MailMessage) mailbox.removeFirst();
+
+	    int srcLink = mail.packet.srcLink;
+	    int srcPort = mail.srcPort;
+
+	    LinkedList<RPCRecord> records = new LinkedList<RPCRecord>();
+	    RPCRecord.parse(mail, records);
+	    mail.release();
+
+	    LinkedList<MailMessage> out = new LinkedList<MailMessage>();
+
+	    lock.acquire();
+
+	    expire();
+
+	    boolean resent = false;
+	    for (RPCRecord record : records) {
+		if (Lib.test(dbgNet))
+		    System.out.println("rpc server received " + record);
+
+		if (record.kind == RPCRecord.REQUEST)
+		    resent |= receive(srcLink, srcPort, record, out);
+	    }
+
+	    if (resent && queued == 0)
+		batch.flush(out);
+
+	    lock.release();
+
+	    send(out);
+	}
+    }
+
+    /**
+     * Process a fragment of a request. Called with the lock held.
+     *
+     * @return	<tt>true</tt> if a cached reply was sent again.
+     */
+    private boolean receive(int srcLink, int srcPort, RPCRecord record,
+			    List<MailMessage> out) {
+	Long key = key(srcLink, srcPort, record.epoch, record.id);
+
+	Request request = replies.get(key);
+	if (request != null) {
+	    // answer the retransmission once, not once per fragment
+	    if (!record.last)
+		return false;
+
+	    batch.add(srcLink, srcPort, request.epoch, RPCRecord.REPLY,
+		      request.id, request.status, request.result, out);
+	    return true;
+	}
+
+	// the request is already running
+	if (active.containsKey(key))
+	    return false;
+
+	request = partial.get(key);
+	if (request == null) {
+	    request = new Request(srcLink, srcPort, record.epoch, record.id,
+				  record.code);
+	    partial.put(key, request);
+	}
+
+	request.lastHeard = Machine.timer().getTime();
+
+	if (request.receive(record)) {
+	    partial.remove(key);
+	    active.put(key, request);
+
+	    queued++;
+	    work.add(request);
+	}
+
+	return false;
+    }
+
+    /**
+     * Drop the requests that have been missing fragments for too long. Called
+     * with the lock held.
+     */
+    private void expire() {
+	long now = Machine.timer().getTime();
+
+	// the least recently heard from come first
+	Iterator<Request> i = partial.values().iterator();
+	while (i.hasNext()) {
+	    Request request = i.next();
+	    if (request.lastHeard + reassemblyTicks > now)
+		break;
+
+	    Lib.debug(dbgNet, "rpc server dropping incomplete request "
+		      + request.id);
+	    i.remove();
+	}
+    }
+
+    /**
+     * Run requests, and send their replies.
+     */
+    private void serveRequests() {
+	while (true) {
+	    Request request = (Request) work.removeFirst();
+
+	    lock.acquire();
+	    queued--;
+	    lock.release();
+
+	    byte[] result = handler.handle(request.srcLink, request.procedure,
+					   request.argument);
+
+	    int status = RPCRecord.statusOK;
+	    if (result == null || result.length > RPCRecord.maxLength) {
+		status = RPCRecord.statusFailed;
+		result = new byte[0];
+	    }
+
+	    LinkedList<MailMessage> out = new LinkedList<MailMessage>();
+
+	    lock.acquire();
+
+	    request.argument = null;
+	    request.status = status;
+	    request.result = result;
+
+	    Long key = key(request.srcLink, request.srcPort, request.epoch,
+			   request.id);
+	    active.remove(key);
+	    replies.put(key, request);
+
+	    batch.add(request.srcLink, request.srcPort, request.epoch,
+		      RPCRecord.REPLY, request.id, status, result, out);
+
+	    // hold the reply only while other replies may join it
+	    if (queued == 0)
+		batch.flush(out);
+
+	    lock.release();
+
+	    send(out);
+	}
+    }
+
+    private PostOffice postOffice;
+    private RPCHandler handler;
+    private SynchList mailbox;
+
+    private Lock lock;
+    private RPCBatch batch;
+    private SynchList work;
+    private int queued = 0;	// requests waiting for a worker
+
+    private int reassemblyTicks;
+
+    // requests being reassembled, in order of their latest fragment
+    private LinkedHashMap<Long, Request> partial =
+	new LinkedHashMap<Long, Request>(16, 0.75f, true);
+    private HashMap<Long, Request> active = new HashMap<Long, Request>();
+    private LinkedHashMap<Long, Request> replies;
+
+    private static final char dbgNet = 'n';
+}
@@ -0,0 +1,171 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+/**
+ * A transport segment. Includes a packet header, a mail header, a transport
+ * header, and the actual payload.
+ *
+ * @see	nachos.network.MailMessage
+ * @see	nachos.network.Transport
+ */
+public class Segment {
+    /**
+     * Allocate a new segment to be sent, using the specified parameters.
+     *
+     * @param	dstLink		the destination link address.
+     * @param	dstPort		the destination port.
+     * @param	srcLink		the source link address.
+     * @param	srcPort		the source port.
+     * @param	flags		the segment flags.
+     * @param	window		the number of segments the sender can receive.
+     * @param	number		the sequence number of the segment, or for an
+     *				acknowledgement, the next sequence number
+     *				expected.
+     * @param	contents	the contents of the segment.
+     */
+    public Segment(int dstLink, int dstPort, int srcLink, int srcPort,
+		   int flags, int window, int number, byte[] contents)
+	throws MalformedPacketException {
+	// make sure the parameters are valid
+	if (flags < 0 || flags > 0xFF || window < 0 || window > 0xFF ||
+	    contents.length > maxContentsLength)
+	    throw new MalformedPacketException();
+
+	this.flags = flags;
+	this.window = window;
+	this.number = number;
+	contentsLength = contents.length;
+
+	// frame the segment straight into the packet that will carry it
+	byte[] packetBytes = new byte[contentsOffset + contents.length];
+
+	int header = MailMessage.contentsOffset;
+	packetBytes[header+0] = (byte) flags;
+	packetBytes[header+1] = (byte) window;
+	Lib.bytesFromInt(packetBytes, header+2, number);
+
+	System.arraycopy(contents, 0, packetBytes, contentsOffset,
+			 contents.length);
+
+	mail = new MailMessage(dstLink, dstPort, srcLink, srcPort,
+			       packetBytes, headerLength + contents.length);
+    }
+
+    /**
+     * Allocate a new segment using the specified mail message from the
+     * network. The segment is read in place.
+     *
+     * @param	mail	the mail message containing the segment.
+     */
+    public Segment(MailMessage mail) throws MalformedPacketException {
+	this.mail = mail;
+
+	// make sure we have a valid header
+	if (mail.getContentsLength() < headerLength)
+	    throw new MalformedPacketException();
+
+	byte[] packetBytes = mail.packet.packetBytes;
+	int header = MailMessage.contentsOffset;
+
+	flags = packetBytes[header+0] & 0xFF;
+	window = packetBytes[header+1] & 0xFF;
+	number = Lib.bytesToInt(packetBytes, header+2);
+
+	contentsLength = mail.getContentsLength() - headerLength;
+    }
+
+    /**
+     * Return the number of content bytes in this segment.
+     *
+     * @return	the length of the contents.
+     */
+    public int getContentsLength() {
+	return contentsLength;
+    }
+
+    /**
+     * Copy part of the contents of this segment.
+     *
+     * @param	offset	the offset of the first byte within the contents.
+     * @param	buf	the buffer to copy to.
+     * @param	bufOffset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to copy.
+     */
+    public void getContents(int offset, byte[] buf, int bufOffset,
+			    int length) {
+	mail.getContents(headerLength + offset, buf, bufOffset, length);
+    }
+
+    /**
+     * Return the buffer of this segment's packet for reuse. The segment must
+     * not be used afterwards.
+     */
+    public void release() {
+	mail.release();
+    }
+
+    /**
+     * Test whether all of the specified flags are set in this segment.
+     *
+     * @param	mask	the flags to test.
+     * @return	<tt>true</tt> if every flag in <i>mask</i> is set.
+     */
+    public boolean is(int mask) {
+	return (flags & mask) == mask;
+    }
+
+    /**
+     * Return a string representation of the segment headers.
+     */
+    public String toString() {
+	String s = "";
+	if (is(SYN)) s += "SYN ";
+	if (is(ACK)) s += "ACK ";
+	if (is(DATA)) s += "DATA ";
+	if (is(FIN)) s += "FIN ";
+
+	return s + "#" + number + " win " + window + " " + mail;
+    }
+
+    /** This segment, as a mail message that can be sent to a port. */
+    public MailMessage mail;
+    /** The flags of this segment. */
+    public int flags;
+    /** The number of segments the sender of this segment can receive. */
+    public int window;
+    /** The sequence or acknowledgement number of this segment. */
+    public int number;
+
+    private int contentsLength;
+
+    /** Flag set in a connection request and in its acknowledgement. */
+    public static final int SYN = 0x01;
+    /** Flag set in an acknowledgement. */
+    public static final int ACK = 0x02;
+    /** Flag set in a segment carrying data. */
+    public static final int DATA = 0x04;
+    /** Flag set in a segment ending a stream. */
+    public static final int FIN = 0x08;
+
+    /**
+     * The number of bytes in a transport header. The header is formatted as
+     * follows:
+     *
+     * <table>
+     * <tr><td>offset</td><td>size</td><td>value</td></tr>
+     * <tr><td>0</td><td>1</td><td>flags</td></tr>
+     * <tr><td>1</td><td>1</td><td>receive window, in segments</td></tr>
+     * <tr><td>2</td><td>4</td><td>sequence or acknowledgement number</td></tr>
+     * </table>
+     */
+    public static final int headerLength = 6;
+
+    /** The offset of the contents of a segment within its packet. */
+    public static final int contentsOffset =
+	MailMessage.contentsOffset + headerLength;
+
+    /** Maximum payload (real data) that can be included in a single segment. */
+    public static final int maxContentsLength =
+	MailMessage.maxContentsLength - headerLength;
+}
@@ -0,0 +1,375 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A reliable, connection-oriented transport built on a <tt>PostOffice</tt>.
+ * The transport demultiplexes incoming segments to their connections, queues
+ * connection requests until they are accepted, and retransmits lost
+ * segments.
+ *
+ * <p>
+ * The transport claims its ports from the post office. <tt>connect()</tt>
+ * claims a free local port for each connection and releases it when the
+ * connection is gone, and <tt>accept()</tt> claims the port it listens on for
+ * good the first time it is called. Every message for a claimed port is
+ * delivered to the transport's "transport worker" thread instead of to the
+ * port's mailbox. Because connection requests are retransmitted, a request
+ * sent before the port was claimed is not lost, only delayed.
+ *
+ * <p>
+ * The behavior of the transport is controlled by the following
+ * <tt>nachos.conf</tt> keys:
+ *
+ * <table>
+ * <tr><td>key</td><td>default</td><td>meaning</td></tr>
+ * <tr><td><tt>Transport.windowSize</tt></td><td>16</td>
+ *     <td>the most segments a connection keeps in flight</td></tr>
+ * <tr><td><tt>Transport.receiveWindow</tt></td><td>32</td>
+ *     <td>the most unread segments a connection buffers</td></tr>
+ * <tr><td><tt>Transport.sendBuffer</tt></td><td>64</td>
+ *     <td>the most unacknowledged segments a connection buffers before
+ *     <tt>write()</tt> waits</td></tr>
+ * <tr><td><tt>Transport.retransmitTicks</tt></td><td>2000</td>
+ *     <td>the initial retransmission timeout</td></tr>
+ * <tr><td><tt>Transport.maxRetransmits</tt></td><td>64</td>
+ *     <td>the number of timeouts after which a connection is aborted</td></tr>
+ * </table>
+ */
+public class Transport {
+    /**
+     * Allocate a new transport using the specified post office, and start the
+     * "transport worker" and "transport timer" threads.
+     *
+     * @param	postOffice	the post office used to send and receive
+     *				segments.
+     */
+    public Transport(PostOffice postOffice) {
+	this.postOffice = postOffice;
+
+	linkAddress = Machine.networkLink().getLinkAddress();
+	stats = Machine.networkLink().getStats();
+
+	windowSize = Config.getInteger("Transport.windowSize", 16);
+	receiveWindow = Config.getInteger("Transport.receiveWindow", 32);
+	sendBuffer = Config.getInteger("Transport.sendBuffer", 64);
+	retransmitTicks = Config.getInteger("Transport.retransmitTicks", 2000);
+	maxRetransmits = Config.getInteger("Transport.maxRetransmits", 64);
+
+	Lib.assertTrue(windowSize > 0 && receiveWindow > 0 &&
+		       receiveWindow <= 0xFF && sendBuffer >= windowSize &&
+		       retransmitTicks > 0);
+
+	lock = new Lock();
+	timerIdle = new Condition(lock);
+	waker = new AlarmWaker(lock, timerIdle, "transport alarm");
+	mailbox = new SynchList();
+
+	bound = new boolean[MailMessage.portLimit];
+	listening = new boolean[MailMessage.portLimit];
+	pending = new ArrayList<LinkedList<Segment>>();
+	for (int i=0; i<MailMessage.portLimit; i++)
+	    pending.add(new LinkedList<Segment>());
+
+	KThread worker = new KThread(new Runnable() {
+		public void run() { transportWorker(); }
+	    });
+	KThread timer = new KThread(new Runnable() {
+		public void run() { transportTimer(); }
+	    });
+
+	worker.setName("transport worker").fork();
+	timer.setName("transport timer").fork();
+    }
+
+    /**
+     * Open a connection to the specified port on the specified host, waiting
+     * until the remote host accepts it.
+     *
+     * @param	host	the link address of the remote host.
+     * @param	port	the port to connect to.
+     * @return	the new connection, or <tt>null</tt> if every local port is
+     *		in use.
+     */
+    public Connection connect(int host, int port) {
+	Lib.assertTrue(host >= 0 && host < Packet.linkAddressLimit);
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+
+	LinkedList<Segment> out = new LinkedList<Segment>();
+
+	lock.acquire();
+
+	int localPort = postOffice.claimFree(mailbox);
+	if (localPort < 0) {
+	    lock.release();
+	    return null;
+	}
+
+	bound[localPort] = true;
+
+	Connection connection = new Connection(this, localPort, host, port);
+	connections.put(key(localPort, host, port), connection);
+	connection.open(out);
+
+	lock.release();
+
+	send(out);
+
+	lock.acquire();
+	connection.waitEstablished();
+	lock.release();
+
+	Lib.debug(dbgNet, "connected " + connection.getName());
+
+	return connection;
+    }
+
+    /**
+     * Accept a pending connection request on the specified port, without
+     * waiting.
+     *
+     * @param	port	the local port on which to accept a connection.
+     * @return	the new connection, or <tt>null</tt> if no connection requests
+     *		are pending or the port is owned by someone else.
+     */
+    public Connection accept(int port) {
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+
+	LinkedList<Segment> out = new LinkedList<Segment>();
+
+	lock.acquire();
+
+	if (!listen(port)) {
+	    lock.release();
+	    return null;
+	}
+
+	Connection connection = null;
+
+	if (!pending.get(port).isEmpty()) {
+	    Segment request = pending.get(port).removeFirst();
+
+	    connection = new Connection(this, port, request.mail.packet.srcLink,
+					request.mail.srcPort);
+	    connections.put(key(port, request.mail.packet.srcLink,
+				request.mail.srcPort), connection);
+	    connection.accept(out);
+
+	    request.release();
+	}
+
+	lock.release();
+
+	send(out);
+
+	if (connection != null)
+	    Lib.debug(dbgNet, "accepted " + connection.getName());
+
+	return connection;
+    }
+
+    /**
+     * Send the specified segments. Must not be called with the lock held.
+     */
+    void send(List<Segment> segments) {
+	for (Segment segment : segments) {
+	    if (Lib.test(dbgNet))
+		System.out.println("sending segment: " + segment);
+
+	    postOffice.send(segment.mail);
+	}
+    }
+
+    /**
+     * Forget a connection that has finished. Called with the lock held.
+     */
+    void remove(Connection connection) {
+	int port = connection.localPort;
+
+	connections.remove(key(port, connection.remoteLink,
+			       connection.remotePort));
+
+	// a port claimed by connect() belongs to this connection alone
+	if (bound[port] && !listening[port]) {
+	    bound[port] = false;
+	    postOffice.release(port);
+
+	    for (Segment request : pending.get(port))
+		request.release();
+	    pending.get(port).clear();
+	}
+    }
+
+    /**
+     * Claim the specified port for good, if the transport does not own it
+     * already, so that connection requests for it are queued.
+     *
+     * @return	<tt>true</tt> if the transport owns the port.
+     */
+    private boolean listen(int port) {
+	if (!bound[port]) {
+	    if (!postOffice.claim(port, mailbox))
+		return false;
+
+	    bound[port] = true;
+	}
+
+	listening[port] = true;
+	return true;
+    }
+
+    private static Integer key(int localPort, int remoteLink,
+			       int remotePort) {
+	return new Integer((localPort << 16) | (remoteLink << 8) | remotePort);
+    }
+
+    /**
+     * Wait for segments to arrive, and hand each one to its connection.
+     */
+    private void transportWorker() {
+	while (true) {
+	    MailMessage mail = (MailMessage) mailbox.removeFirst();
+
+	    Segment segment;
+
+	    try {
+		segment = new Segment(mail);
+	    }
+	    catch (MalformedPacketException e) {
+		mail.release();
+		continue;
+	    }
+
+	    if (Lib.test(dbgNet))
+		System.out.println("received segment: " + segment);
+
+	    LinkedList<Segment> out = new LinkedList<Segment>();
+
+	    lock.acquire();
+	    deliver(segment, out);
+	    lock.release();
+
+	    send(out);
+	}
+    }
+
+    private void deliver(Segment segment, List<Segment> out) {
+	int port = segment.mail.dstPort;
+	int srcLink = segment.mail.packet.srcLink;
+	int srcPort = segment.mail.srcPort;
+
+	Connection connection = connections.get(key(port, srcLink, srcPort));
+	if (connection != null) {
+	    connection.receive(segment, out);
+	    return;
+	}
+
+	if (segment.is(Segment.SYN) && !segment.is(Segment.ACK)) {
+	    // queue the request once, however often it is retransmitted
+	    for (Segment request : pending.get(port)) {
+		if (request.mail.packet.srcLink == srcLink &&
+		    request.mail.srcPort == srcPort) {
+		    segment.release();
+		    return;
+		}
+	    }
+
+	    pending.get(port).add(segment);
+	    return;
+	}
+	else if (segment.is(Segment.FIN)) {
+	    // the connection is gone, but the remote host did not hear us
+	    // acknowledge the end of its stream
+	    try {
+		out.add(new Segment(srcLink, srcPort, linkAddress, port,
+				    Segment.ACK, 0, segment.number + 1,
+				    new byte[0]));
+	    }
+	    catch (MalformedPacketException e) {
+	    }
+	}
+
+	segment.release();
+    }
+
+    /**
+     * Wait for the earliest retransmission timer to expire, and let the
+     * connections retransmit. A connection that starts a timer wakes this
+     * thread, so a deadline earlier than the one it is waiting for is not
+     * missed.
+     */
+    private void transportTimer() {
+	lock.acquire();
+
+	while (true) {
+	    long deadline = nextDeadline();
+	    long now = Machine.timer().getTime();
+
+	    if (deadline < 0 || deadline > now) {
+		if (deadline >= 0)
+		    waker.wakeAt(deadline);
+
+		timerIdle.sleep();
+		continue;
+	    }
+
+	    LinkedList<Segment> out = new LinkedList<Segment>();
+
+	    for (Connection connection :
+		     new ArrayList<Connection>(connections.values()))
+		connection.timeout(now, out);
+
+	    lock.release();
+
+	    send(out);
+
+	    lock.acquire();
+	}
+    }
+
+    private long nextDeadline() {
+	long next = -1;
+
+	for (Connection connection : connections.values()) {
+	    long deadline = connection.deadline();
+	    if (deadline >= 0 && (next < 0 || deadline < next))
+		next = deadline;
+	}
+
+	return next;
+    }
+
+    /** The link address of this host. */
+    final int linkAddress;
+    /** The statistics to which retransmissions and round trips are added. */
+    final NetworkStats stats;
+
+    final int windowSize;
+    final int receiveWindow;
+    final int sendBuffer;
+    final int retransmitTicks;
+    final int maxRetransmits;
+
+    /** Protects the transport and all of its connections. */
+    final Lock lock;
+    /** Woken when a retransmission timer is started or expires. */
+    final Condition timerIdle;
+
+    private AlarmWaker waker;
+    private PostOffice postOffice;
+    private SynchList mailbox;
+
+    private boolean[] bound;		// ports claimed from the post office
+    private boolean[] listening;	// ports kept for accept()
+    private ArrayList<LinkedList<Segment>> pending;
+    private HashMap<Integer, Connection> connections =
+	new HashMap<Integer, Connection>();
+
+    private static final char dbgNet = 'n';
+}
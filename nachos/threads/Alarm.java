@@ -29,6 +29,8 @@ public class Alarm {
      */
     public void timerInterrupt() {
     boolean intStatus = Machine.interrupt().disable();
+    if (SyncStats.enabled)
+	SyncStats.sampleReadyQueue(KThread.getReadyCount());
     long time = Machine.timer().getTime();
     TThread tt = waitQueue.pollFirst();
     while(tt != null) {
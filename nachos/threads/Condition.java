@@ -79,7 +79,7 @@ public class Condition {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
+	Semaphore waiter = new Semaphore(0, stats);
 	waitQueue.add(waiter);
 
 	conditionLock.release();
@@ -111,4 +111,6 @@ public class Condition {
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+    private SyncStats.Entry stats =
+	SyncStats.enabled ? SyncStats.register(SyncStats.kindCondition) : null;
 }
@@ -36,10 +36,14 @@ public class Condition2 {
 	
 	boolean intStatus = Machine.interrupt().disable();
 	KThread ct = KThread.currentThread();
+	long start = SyncStats.enabled ? stats.startWait() : 0;
 	conditionLock.release();
 	waitQueue.waitForAccess(ct);
 	ct.sleep();
 
+	if (SyncStats.enabled)
+	    stats.endWait(start);
+
 	conditionLock.acquire();
 	
 	Machine.interrupt().restore(intStatus);
@@ -75,4 +79,6 @@ public class Condition2 {
 
     private Lock conditionLock;
     private ThreadQueue waitQueue = null;
+    private SyncStats.Entry stats =
+	SyncStats.enabled ? SyncStats.register(SyncStats.kindCondition2) : null;
 }
@@ -2,9 +2,26 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.BitSet;
+
 /**
  * A controller for all the elevators in an elevator bank. The controller
  * accesses the elevator bank through an instance of <tt>ElevatorControls</tt>.
+ *
+ * <p>
+ * Hall calls are kept in one bitset per direction, indexed by floor. Each
+ * call is assigned to the elevator that can reach it most cheaply: an
+ * elevator already heading past the floor in the right direction costs the
+ * distance to it, and any other elevator costs the trip to the end of its run
+ * and back, plus a penalty for the stops it already has. Each elevator then
+ * serves its own stops and calls with the LOOK algorithm, stopping on the way
+ * for any new request ahead of it and reversing only when nothing is left in
+ * its direction.
+ *
+ * <p>
+ * The controller handles every event that has arrived each time it wakes up,
+ * and only then makes its decisions. Doors stay open for
+ * <tt>timeDoorsOpen</tt> ticks, and longer while riders keep getting on.
  */
 public class ElevatorController implements ElevatorControllerInterface {
     /**
@@ -12,7 +29,7 @@ public class ElevatorController implements ElevatorControllerInterface {
      */
     public ElevatorController() {
     }
-    
+
     /**
      * Initialize this elevator controller. The controller will access the
      * elevator bank through <i>controls</i>. This constructor should return
@@ -26,6 +43,26 @@ public class ElevatorController implements ElevatorControllerInterface {
      *				the elevator bank in <i>any</i> other way.
      */
     public void initialize(ElevatorControls controls) {
+	this.controls = controls;
+
+	numFloors = controls.getNumFloors();
+
+	upCalls = new BitSet(numFloors);
+	downCalls = new BitSet(numFloors);
+	upOwner = new int[numFloors];
+	downOwner = new int[numFloors];
+	for (int floor=0; floor<numFloors; floor++)
+	    upOwner[floor] = downOwner[floor] = -1;
+
+	cars = new Car[controls.getNumElevators()];
+	for (int i=0; i<cars.length; i++)
+	    cars[i] = new Car(i);
+
+	eventWait = new Semaphore(0);
+
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventWait.V(); }
+	    });
     }
 
     /**
@@ -34,5 +71,330 @@ public class ElevatorController implements ElevatorControllerInterface {
      * call <tt>controls.finish()</tt> when the controller is finished.
      */
     public void run() {
+	while (true) {
+	    ElevatorEvent e;
+	    while ((e = controls.getNextEvent()) != null)
+		handle(e);
+
+	    if (ridersDone) {
+		controls.finish();
+		Lib.assertNotReached();
+	    }
+
+	    assignCalls();
+
+	    long now = Machine.timer().getTime();
+	    long wakeTime = -1;
+	    for (int i=0; i<cars.length; i++) {
+		cars[i].update(now);
+
+		if (cars[i].doorsOpen &&
+		    (wakeTime < 0 || cars[i].closeTime < wakeTime))
+		    wakeTime = cars[i].closeTime;
+	    }
+
+	    // events that arrive meanwhile are handled together
+	    if (wakeTime < 0)
+		eventWait.P();
+	    else if (wakeTime > now)
+		ThreadedKernel.alarm.waitUntil(wakeTime - now);
+	}
+    }
+
+    private void handle(ElevatorEvent e) {
+	switch (e.event) {
+	case ElevatorEvent.eventUpButtonPressed:
+	    upCalls.set(e.floor);
+	    break;
+	case ElevatorEvent.eventDownButtonPressed:
+	    downCalls.set(e.floor);
+	    break;
+	case ElevatorEvent.eventFloorButtonPressed:
+	    cars[e.elevator].stops.set(e.floor);
+
+	    // someone just got on; give the others time too
+	    if (cars[e.elevator].doorsOpen)
+		cars[e.elevator].closeTime =
+		    Math.max(cars[e.elevator].closeTime,
+			     Machine.timer().getTime() + timeDoorsOpen);
+	    break;
+	case ElevatorEvent.eventElevatorArrived:
+	    cars[e.elevator].moving = false;
+	    break;
+	case ElevatorEvent.eventRidersDone:
+	    ridersDone = true;
+	    break;
+	}
+    }
+
+    /**
+     * Give every unassigned hall call to the elevator that can serve it most
+     * cheaply.
+     */
+    private void assignCalls() {
+	for (int floor = upCalls.nextSetBit(0); floor >= 0;
+	     floor = upCalls.nextSetBit(floor+1)) {
+	    if (upOwner[floor] < 0)
+		assign(floor, dirUp);
+	}
+
+	for (int floor = downCalls.nextSetBit(0); floor >= 0;
+	     floor = downCalls.nextSetBit(floor+1)) {
+	    if (downOwner[floor] < 0)
+		assign(floor, dirDown);
+	}
+    }
+
+    private void assign(int floor, int direction) {
+	Car best = null;
+	int bestCost = 0;
+
+	for (int i=0; i<cars.length; i++) {
+	    int cost = cars[i].cost(floor, direction);
+	    if (best == null || cost < bestCost) {
+		best = cars[i];
+		bestCost = cost;
+	    }
+	}
+
+	if (direction == dirUp) {
+	    upOwner[floor] = best.index;
+	    best.upAssigned.set(floor);
+	}
+	else {
+	    downOwner[floor] = best.index;
+	    best.downAssigned.set(floor);
+	}
+    }
+
+    /**
+     * Clear a hall call that an elevator has answered by opening its doors.
+     */
+    private void answer(int floor, boolean up) {
+	int[] owner = up ? upOwner : downOwner;
+
+	if (owner[floor] >= 0) {
+	    if (up)
+		cars[owner[floor]].upAssigned.clear(floor);
+	    else
+		cars[owner[floor]].downAssigned.clear(floor);
+	}
+
+	owner[floor] = -1;
+
+	if (up)
+	    upCalls.clear(floor);
+	else
+	    downCalls.clear(floor);
+    }
+
+    /**
+     * The state of one elevator, as the controller sees it.
+     */
+    private class Car {
+	Car(int index) {
+	    this.index = index;
+	}
+
+	/**
+	 * Return every floor this elevator needs to visit.
+	 */
+	BitSet requests() {
+	    BitSet requests = (BitSet) stops.clone();
+	    requests.or(upAssigned);
+	    requests.or(downAssigned);
+	    return requests;
+	}
+
+	/**
+	 * Return the nearest floor beyond <i>floor</i> in the specified
+	 * direction that this elevator needs to visit, or -1 if there is none.
+	 */
+	int nextRequest(BitSet requests, int floor, int direction) {
+	    if (direction == dirUp)
+		return requests.nextSetBit(floor+1);
+	    else if (direction == dirDown)
+		return (floor > 0) ? requests.previousSetBit(floor-1) : -1;
+	    else
+		return -1;
+	}
+
+	/**
+	 * Estimate how long this elevator would take to reach a hall call, in
+	 * floors travelled.
+	 */
+	int cost(int floor, int callDirection) {
+	    int position = controls.getFloor(index);
+	    BitSet requests = requests();
+	    int load = requests.cardinality();
+
+	    int travel;
+	    if (direction == dirNeither) {
+		travel = Math.abs(position - floor);
+	    }
+	    else if (direction == callDirection &&
+		     (direction == dirUp ? floor > position : floor < position)) {
+		// on the way
+		travel = Math.abs(floor - position);
+	    }
+	    else {
+		// to the end of this run, and back
+		int end = (direction == dirUp) ? requests.length() - 1
+		    : requests.nextSetBit(0);
+		if (end < 0 || (direction == dirUp ? end < position
+				: end > position))
+		    end = position;
+
+		travel = Math.abs(end - position) + Math.abs(end - floor);
+	    }
+
+	    return 2*travel + load;
+	}
+
+	/**
+	 * Decide what this elevator should do next.
+	 */
+	void update(long now) {
+	    if (moving) {
+		stopEarlier();
+		return;
+	    }
+
+	    int floor = controls.getFloor(index);
+	    boolean leaving = false;
+
+	    if (doorsOpen) {
+		if (now < closeTime)
+		    return;
+
+		controls.closeDoors(index);
+		doorsOpen = false;
+
+		// riders left behind push the button again, but must not
+		// hold the doors forever
+		if (stops.nextSetBit(0) >= 0 && !stops.get(floor)) {
+		    leaving = true;
+		    release(floor);
+		}
+	    }
+
+	    BitSet requests = requests();
+
+	    if (direction == dirNeither ||
+		nextRequest(requests, floor, direction) < 0) {
+		// pick a new direction, serving callers here first
+		if (!leaving && upAssigned.get(floor))
+		    direction = dirUp;
+		else if (!leaving && downAssigned.get(floor))
+		    direction = dirDown;
+		else
+		    direction = nearestDirection(requests, floor);
+	    }
+
+	    if (!leaving &&
+		(stops.get(floor) ||
+		 (direction == dirUp && upAssigned.get(floor)) ||
+		 (direction == dirDown && downAssigned.get(floor)) ||
+		 (direction == dirNeither && requests.get(floor)))) {
+		open(floor, now);
+		return;
+	    }
+
+	    if (direction != dirNeither) {
+		target = nextRequest(requests, floor, direction);
+		if (target >= 0 && controls.moveTo(target, index))
+		    moving = true;
+	    }
+	}
+
+	/**
+	 * Stop at a floor requested after this elevator set off, if it has
+	 * not passed it yet.
+	 */
+	private void stopEarlier() {
+	    int floor = controls.getFloor(index);
+	    int next = nextRequest(requests(), floor, direction);
+
+	    if (next >= 0 && (direction == dirUp ? next < target
+			      : next > target) &&
+		controls.moveTo(next, index))
+		target = next;
+	}
+
+	private int nearestDirection(BitSet requests, int floor) {
+	    int above = requests.nextSetBit(floor+1);
+	    int below = (floor > 0) ? requests.previousSetBit(floor-1) : -1;
+
+	    if (above < 0 && below < 0)
+		return dirNeither;
+	    else if (below < 0 || (above >= 0 && above-floor <= floor-below))
+		return dirUp;
+	    else
+		return dirDown;
+	}
+
+	private void open(int floor, long now) {
+	    // show where we are going next, so riders know whether to get on
+	    int display = direction;
+	    if (display == dirUp && !upAssigned.get(floor) &&
+		nextRequest(requests(), floor, dirUp) < 0)
+		display = downAssigned.get(floor) ? dirDown : dirNeither;
+	    else if (display == dirDown && !downAssigned.get(floor) &&
+		     nextRequest(requests(), floor, dirDown) < 0)
+		display = upAssigned.get(floor) ? dirUp : dirNeither;
+
+	    direction = display;
+	    stops.clear(floor);
+
+	    if (display != dirDown)
+		answer(floor, true);
+	    if (display != dirUp)
+		answer(floor, false);
+
+	    controls.setDirectionDisplay(index, display);
+	    controls.openDoors(index);
+
+	    doorsOpen = true;
+	    closeTime = now + timeDoorsOpen;
+	}
+
+	/**
+	 * Give up the hall calls on the specified floor, so they can be
+	 * assigned again.
+	 */
+	private void release(int floor) {
+	    if (upAssigned.get(floor)) {
+		upAssigned.clear(floor);
+		upOwner[floor] = -1;
+	    }
+	    if (downAssigned.get(floor)) {
+		downAssigned.clear(floor);
+		downOwner[floor] = -1;
+	    }
+	}
+
+	int index;
+	int direction = dirNeither;
+	int target;
+	boolean moving = false, doorsOpen = false;
+	long closeTime;
+
+	/** Floors riders in this elevator want to go to. */
+	BitSet stops = new BitSet();
+	/** Hall calls assigned to this elevator. */
+	BitSet upAssigned = new BitSet(), downAssigned = new BitSet();
     }
+
+    private ElevatorControls controls;
+    private Semaphore eventWait;
+
+    private int numFloors;
+    private boolean ridersDone = false;
+
+    /** Hall calls not yet answered, by floor. */
+    private BitSet upCalls, downCalls;
+    /** The elevator assigned to each hall call, or -1. */
+    private int[] upOwner, downOwner;
+
+    private Car[] cars;
 }
@@ -27,6 +27,14 @@ import nachos.threads.PriorityScheduler;
  * PiRun p = new PiRun();
  * new KThread(p).fork();
  * </pre></blockquote>
+ *
+ * <p>
+ * If the processor has more than one core, each core has its own ready
+ * queue, and each thread is given a core, in turn, when it is forked. When
+ * the current thread gives up the CPU, the cores are served in turn: the
+ * next thread comes from the ready queue of the core after the last one
+ * served that has a thread ready, and the processor switches to that core.
+ * Only one thread runs at a time, so interrupts still protect the kernel.
  */
 public class KThread {
     /**
@@ -38,6 +46,16 @@ public class KThread {
 	Lib.assertTrue(currentThread != null);
 	return currentThread;
     }
+
+    /**
+     * Return the number of threads in the ready queue, not counting the
+     * current thread or the idle thread.
+     *
+     * @return	the number of threads ready to run.
+     */
+    static int getReadyCount() {
+	return readyCount;
+    }
     
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
@@ -48,8 +66,13 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-	    readyQueue.acquire(this);	    
+	    int numCores = (Machine.processor() != null) ?
+		Machine.processor().getNumCores() : 1;
+
+	    readyQueues = new ThreadQueue[numCores];
+	    for (int i=0; i<numCores; i++)
+		readyQueues[i] = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueues[0].acquire(this);
 
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
@@ -145,6 +168,11 @@ public class KThread {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (this != idleThread) {
+	    nextCore = (nextCore + 1) % readyQueues.length;
+	    core = nextCore;
+	}
+
 	tcb.start(new Runnable() {
 		public void run() {
 		    runThread();
@@ -218,7 +246,7 @@ public class KThread {
      * <p>
      * Returns immediately if no other thread is ready to run. Otherwise
      * returns when the current thread is chosen to run again by
-     * <tt>readyQueue.nextThread()</tt>.
+     * <tt>nextThread()</tt> of its core's ready queue.
      *
      * <p>
      * Interrupts are disabled, so that the current thread can atomically add
@@ -273,8 +301,10 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
-	    readyQueue.waitForAccess(this);
+	if (this != idleThread) {
+	    readyQueues[core].waitForAccess(this);
+	    readyCount++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -330,9 +360,20 @@ public class KThread {
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
-	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	int numCores = readyQueues.length;
+	KThread nextThread = null;
+
+	// serve the cores in turn, starting after the last one served
+	for (int i=1; i<=numCores && nextThread == null; i++)
+	    nextThread = readyQueues[(currentCore + i) % numCores].nextThread();
+
+	if (nextThread == null) {
 	    nextThread = idleThread;
+	}
+	else {
+	    readyCount--;
+	    currentCore = nextThread.core;
+	}
 
 	nextThread.run();
     }
@@ -364,6 +405,10 @@ public class KThread {
 
 	currentThread.saveState();
 
+	// the new thread's state is restored to the registers of its core
+	if (readyQueues.length > 1 && this != idleThread)
+	    Machine.processor().setCore(core);
+
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
@@ -455,6 +500,8 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** The processor core whose ready queue this thread waits in. */
+    private int core = 0;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -464,7 +511,14 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
-    private static ThreadQueue readyQueue = null;
+    /** The ready queue of each processor core. */
+    private static ThreadQueue[] readyQueues = null;
+    /** The number of threads in the ready queues. */
+    private static int readyCount = 0;
+    /** The core of the thread that last left the ready queues. */
+    private static int currentCore = 0;
+    /** The core given to the thread last forked. */
+    private static int nextCore = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
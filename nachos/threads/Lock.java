@@ -37,16 +37,27 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long start = SyncStats.enabled ? stats.startWait() : 0;
+
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+
+	    if (SyncStats.enabled)
+		stats.endWait(start);
 	}
 	else {
+	    if (SyncStats.enabled)
+		stats.use();
+
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
 	}
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (SyncStats.enabled)
+	    acquireTime = SyncStats.now();
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,6 +69,9 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (SyncStats.enabled)
+	    stats.release(acquireTime);
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -74,6 +88,9 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    private SyncStats.Entry stats =
+	SyncStats.enabled ? SyncStats.register(SyncStats.kindLock) : null;
+    private long acquireTime;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
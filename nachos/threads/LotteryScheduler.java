@@ -178,7 +178,8 @@ public class LotteryScheduler extends PriorityScheduler {
 	    int ticket = 0;
 		for (ThreadState thread : waitBy)
 			ticket += thread.getEffectivePriority();
-		ticket = (int) Math.floor(Math.random() * ticket);
+		if (ticket > 0)
+			ticket = Lib.random(ticket);
 		for (ThreadState thread : waitBy) {
 			ticket -= thread.getEffectivePriority();
 			if (ticket < 0) return thread;
@@ -317,6 +318,26 @@ public class LotteryScheduler extends PriorityScheduler {
 	    this.time = time;
 	    waitFor = waitQueue;
 	    waitQueue.updateEP(thread);
+
+	    if (SyncStats.enabled && waitQueue.transferPriority)
+		SyncStats.donation(thread, donationDepth(waitQueue));
+	}
+
+	/**
+	 * Return the number of threads the priority of the associated thread
+	 * is donated through, waiting on <tt>waitQueue</tt>: its owner, the
+	 * owner of the queue that thread waits on, and so on.
+	 */
+	private int donationDepth(PriorityQueue waitQueue) {
+	    int depth = 0;
+	    PriorityQueue queue = waitQueue;
+	    while (queue != null && queue.owner != null &&
+		   depth < SyncStats.maxDonationDepth) {
+		depth++;
+		queue = getThreadState(queue.owner).waitFor;
+	    }
+
+	    return depth;
 	}
 
 	/**
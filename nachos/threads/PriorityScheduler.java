@@ -304,6 +304,26 @@ public class PriorityScheduler extends Scheduler {
 	    this.time = time;
 	    waitFor = waitQueue;
 	    waitQueue.updateEP(thread);
+
+	    if (SyncStats.enabled && waitQueue.transferPriority)
+		SyncStats.donation(thread, donationDepth(waitQueue));
+	}
+
+	/**
+	 * Return the number of threads the priority of the associated thread
+	 * is donated through, waiting on <tt>waitQueue</tt>: its owner, the
+	 * owner of the queue that thread waits on, and so on.
+	 */
+	private int donationDepth(PriorityQueue waitQueue) {
+	    int depth = 0;
+	    PriorityQueue queue = waitQueue;
+	    while (queue != null && queue.owner != null &&
+		   depth < SyncStats.maxDonationDepth) {
+		depth++;
+		queue = getThreadState(queue.owner).waitFor;
+	    }
+
+	    return depth;
 	}
 
 	/**
@@ -5,6 +5,14 @@ import nachos.machine.*;
 /**
  * A single rider. Each rider accesses the elevator bank through an
  * instance of <tt>RiderControls</tt>.
+ *
+ * <p>
+ * A rider presses the hall button for its direction and gets on the first
+ * elevator that opens its doors showing that direction, or no direction at
+ * all. If an elevator leaves without it, because it was full or going the
+ * other way, the rider presses the button again. Once on board, it presses
+ * the button for its floor, pressing it again if the doors ever open and
+ * close there before it gets off.
  */
 public class Rider implements RiderInterface {
     /**
@@ -28,6 +36,14 @@ public class Rider implements RiderInterface {
      *				below.
      */
     public void initialize(RiderControls controls, int[] stops) {
+	this.controls = controls;
+	this.stops = stops;
+
+	eventWait = new Semaphore(0);
+
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventWait.V(); }
+	    });
     }
 
     /**
@@ -48,5 +64,88 @@ public class Rider implements RiderInterface {
      * <tt>controls.finish()</tt> when the rider is finished.
      */
     public void run() {
+	for (int i=0; i<stops.length; i++)
+	    ride(stops[i]);
+
+	controls.finish();
+	Lib.assertNotReached();
     }
+
+    private void ride(int stop) {
+	int floor = controls.getFloor();
+	boolean up = (stop > floor) ||
+	    (stop == floor && floor < controls.getNumFloors()-1);
+
+	int elevator = board(floor, up);
+
+	boolean pressed = false;
+	while (!controls.exitElevator(stop)) {
+	    if (!pressed)
+		pressed = controls.pressFloorButton(stop);
+
+	    RiderEvent e = getNextEvent();
+
+	    // the doors closed before we got off
+	    if (e.event == RiderEvent.eventDoorsClosed &&
+		e.elevator == elevator && e.floor == stop)
+		pressed = false;
+	}
+    }
+
+    /**
+     * Wait on the specified floor for an elevator going in the specified
+     * direction, and get on it.
+     *
+     * @return	the elevator boarded.
+     */
+    private int board(int floor, boolean up) {
+	int direction = up ? dirUp : dirDown;
+
+	// any elevator might be here with its doors open
+	boolean[] open = new boolean[controls.getNumElevators()];
+	for (int i=0; i<open.length; i++)
+	    open[i] = true;
+
+	boolean pressed = false;
+	while (true) {
+	    for (int i=0; i<open.length; i++) {
+		if (!open[i])
+		    continue;
+
+		int shown = controls.getDirectionDisplay(i);
+		if ((shown == direction || shown == dirNeither) &&
+		    controls.enterElevator(i))
+		    return i;
+	    }
+
+	    if (!pressed)
+		pressed = controls.pressDirectionButton(up);
+
+	    RiderEvent e = getNextEvent();
+
+	    // ignore what happened on the floor we came from
+	    if (e.floor != floor)
+		continue;
+
+	    if (e.event == RiderEvent.eventDoorsOpened) {
+		open[e.elevator] = true;
+	    }
+	    else if (e.event == RiderEvent.eventDoorsClosed) {
+		open[e.elevator] = false;
+		pressed = false;
+	    }
+	}
+    }
+
+    private RiderEvent getNextEvent() {
+	RiderEvent event;
+	while ((event = controls.getNextEvent()) == null)
+	    eventWait.P();
+
+	return event;
+    }
+
+    private RiderControls controls;
+    private int[] stops;
+    private Semaphore eventWait;
 }
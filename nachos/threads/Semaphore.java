@@ -28,7 +28,20 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, SyncStats.enabled ?
+	     SyncStats.register(SyncStats.kindSemaphore) : null);
+    }
+
+    /**
+     * Allocate a new semaphore whose statistics are kept with those of
+     * another object, such as the condition variable it implements.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	stats		the statistics to add to, or <tt>null</tt>.
+     */
+    Semaphore(int initialValue, SyncStats.Entry stats) {
 	value = initialValue;
+	this.stats = stats;
     }
 
     /**
@@ -38,10 +51,18 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long start = SyncStats.enabled ? stats.startWait() : 0;
+
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+
+	    if (SyncStats.enabled)
+		stats.endWait(start);
 	}
 	else {
+	    if (SyncStats.enabled)
+		stats.use();
+
 	    value--;
 	}
 
@@ -101,4 +122,5 @@ public class Semaphore {
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+    private SyncStats.Entry stats;
 }
@@ -0,0 +1,276 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for the kernel's synchronization primitives and
+ * scheduler. When enabled, the kernel counts how often each
+ * <tt>Lock</tt>, <tt>Semaphore</tt>, <tt>Condition</tt>, and
+ * <tt>Condition2</tt> was used, how often a thread had to wait for it, how
+ * long threads waited and (for locks) held it, and how many threads waited
+ * at once. Objects are named after the place they were created, such as
+ * <tt>UserProcess.&lt;init&gt;:31</tt>, and objects created in the same
+ * place share one set of counters, found when the object is created. The
+ * semaphores a <tt>Condition</tt> allocates for each wait are counted with
+ * the condition variable. The timer interrupt
+ * samples the length of the ready queue, and the priority schedulers record
+ * how long a chain of threads a priority donation passes through.
+ *
+ * <p>
+ * Statistics are enabled by the <tt>nachos.conf</tt> key
+ * <tt>SyncStats.enabled</tt>. The key is read once, when this class is
+ * loaded, into the <tt>static final</tt> field <tt>enabled</tt>, so the
+ * instrumentation costs nothing when it is off. The statistics are printed
+ * when the kernel terminates, listing the <tt>SyncStats.top</tt> (default 10)
+ * most contended objects.
+ */
+public final class SyncStats {
+    private SyncStats() {
+    }
+
+    /** <tt>true</tt> if statistics are being kept. */
+    public static final boolean enabled =
+	Config.getBoolean("SyncStats.enabled", false);
+
+    /**
+     * Start keeping statistics for a new synchronization object.
+     *
+     * @param	kind	the kind of object, such as <tt>Lock</tt>.
+     * @return	the statistics of the objects created in the same place.
+     */
+    static Entry register(String kind) {
+	String name = creationSite();
+	String key = kind + " " + name;
+
+	Entry entry = sites.get(key);
+	if (entry == null) {
+	    entry = new Entry(kind, name);
+	    sites.put(key, entry);
+	}
+
+	entry.objects++;
+	return entry;
+    }
+
+    /**
+     * Return the place that created the synchronization object being
+     * registered: the first caller outside this class and the constructors
+     * of the primitives.
+     */
+    private static String creationSite() {
+	StackTraceElement[] stack = new Throwable().getStackTrace();
+
+	for (int i=0; i<stack.length; i++) {
+	    String className = stack[i].getClassName();
+	    if (className.equals(SyncStats.class.getName()) ||
+		(stack[i].getMethodName().equals("<init>") &&
+		 (className.equals(Lock.class.getName()) ||
+		  className.equals(Semaphore.class.getName()) ||
+		  className.equals(Condition.class.getName()) ||
+		  className.equals(Condition2.class.getName()))))
+		continue;
+
+	    return className.substring(className.lastIndexOf('.')+1) + "."
+		+ stack[i].getMethodName() + ":" + stack[i].getLineNumber();
+	}
+
+	return "unknown";
+    }
+
+    /**
+     * Return the current time, in ticks.
+     */
+    static long now() {
+	return Machine.timer().getTime();
+    }
+
+    /**
+     * Record the length of the ready queue. Called by the timer interrupt.
+     *
+     * @param	length	the number of threads ready to run.
+     */
+    static void sampleReadyQueue(int length) {
+	readyQueue.add(length);
+    }
+
+    /**
+     * Record a priority donation: a thread starting to wait on a queue that
+     * transfers priority, passing it along a chain of <i>depth</i> lock
+     * holders.
+     *
+     * @param	thread	the thread that started waiting.
+     * @param	depth	the number of holders its priority passes through.
+     */
+    static void donation(KThread thread, int depth) {
+	donationChain.add(depth);
+
+	if (depth > longestChain) {
+	    longestChain = depth;
+	    longestChainThread = thread.toString();
+	}
+    }
+
+    /**
+     * Print the statistics, if they are being kept.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	int locks = 0, semaphores = 0, conditions = 0;
+	ArrayList<Entry> contended = new ArrayList<Entry>();
+	for (Entry entry : sites.values()) {
+	    if (entry.kind == kindLock)
+		locks += entry.objects;
+	    else if (entry.kind == kindSemaphore)
+		semaphores += entry.objects;
+	    else
+		conditions += entry.objects;
+
+	    if (entry.contended > 0)
+		contended.add(entry);
+	}
+
+	System.out.println("Synchronization: " + locks + " locks, "
+			   + semaphores + " semaphores, " + conditions
+			   + " condition variables");
+
+	lockWait.print();
+	lockHold.print();
+	semaphoreWait.print();
+	conditionWait.print();
+	readyQueue.print();
+	donationChain.print();
+	if (longestChainThread != null)
+	    System.out.println("Longest donation chain: " + longestChain
+			       + ", from " + longestChainThread);
+
+	Collections.sort(contended, new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+		    if (a.waitTicks != b.waitTicks)
+			return (a.waitTicks > b.waitTicks) ? -1 : 1;
+		    else if (a.contended != b.contended)
+			return (a.contended > b.contended) ? -1 : 1;
+		    else
+			return 0;
+		}
+	    });
+
+	int top = Config.getInteger("SyncStats.top", 10);
+	System.out.println("Most contended:"
+			   + (contended.isEmpty() ? " none" : ""));
+	for (int i=0; i<contended.size() && i<top; i++)
+	    contended.get(i).print();
+    }
+
+    /**
+     * The statistics of the synchronization objects created in one place.
+     */
+    static final class Entry {
+	Entry(String kind, String name) {
+	    this.kind = kind;
+	    this.name = name;
+	}
+
+	/**
+	 * Record a use of the object that did not have to wait.
+	 */
+	void use() {
+	    uses++;
+	}
+
+	/**
+	 * Record a thread starting to wait for the object.
+	 *
+	 * @return	the time the wait started.
+	 */
+	long startWait() {
+	    uses++;
+	    contended++;
+	    if (++waiters > maxWaiters)
+		maxWaiters = waiters;
+
+	    return now();
+	}
+
+	/**
+	 * Record a thread that finished waiting for the object.
+	 *
+	 * @param	start	the time the wait started.
+	 */
+	void endWait(long start) {
+	    long ticks = now() - start;
+
+	    waiters--;
+	    waitTicks += ticks;
+	    if (ticks > maxWait)
+		maxWait = ticks;
+
+	    if (kind == kindLock)
+		lockWait.add(ticks);
+	    else if (kind == kindSemaphore)
+		semaphoreWait.add(ticks);
+	    else
+		conditionWait.add(ticks);
+	}
+
+	/**
+	 * Record a lock being released.
+	 *
+	 * @param	acquired	the time the lock was acquired.
+	 */
+	void release(long acquired) {
+	    long ticks = now() - acquired;
+
+	    holdTicks += ticks;
+	    if (ticks > maxHold)
+		maxHold = ticks;
+
+	    lockHold.add(ticks);
+	}
+
+	void print() {
+	    String line = "  " + kind + " " + name
+		+ (objects > 1 ? " (" + objects + " objects)" : "")
+		+ ": used " + uses
+		+ ", waited " + contended + " (" + waitTicks + " ticks, max "
+		+ maxWait + "), waiters max " + maxWaiters;
+	    if (kind == kindLock)
+		line += ", held " + holdTicks + " ticks (max " + maxHold + ")";
+
+	    System.out.println(line);
+	}
+
+	private String kind, name;
+	private int objects = 0;
+	private long uses = 0, contended = 0;
+	private long waitTicks = 0, maxWait = 0, holdTicks = 0, maxHold = 0;
+	private int waiters = 0, maxWaiters = 0;
+    }
+
+    /** The longest donation chain followed, in case of a cycle. */
+    static final int maxDonationDepth = 64;
+
+    static final String kindLock = "Lock";
+    static final String kindSemaphore = "Semaphore";
+    static final String kindCondition = "Condition";
+    static final String kindCondition2 = "Condition2";
+
+    private static HashMap<String, Entry> sites = new HashMap<String, Entry>();
+
+    private static Histogram lockWait = new Histogram("Lock wait");
+    private static Histogram lockHold = new Histogram("Lock hold");
+    private static Histogram semaphoreWait = new Histogram("Semaphore wait");
+    private static Histogram conditionWait = new Histogram("Condition wait");
+    private static Histogram readyQueue = new Histogram("Ready queue length");
+    private static Histogram donationChain =
+	new Histogram("Priority donation chain");
+
+    private static int longestChain = 0;
+    private static String longestChainThread = null;
+}
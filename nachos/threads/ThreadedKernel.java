@@ -65,6 +65,7 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	SyncStats.print();
 	Machine.halt();
     }
 
@@ -0,0 +1,299 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed COFF executables, shared by every process the kernel
+ * runs. An entry holds the header information of an executable and the
+ * contents of every initialized page of its sections, so that running the
+ * same program again needs neither to parse its headers nor to read its
+ * sections from the file system.
+ *
+ * <p>
+ * Entries are keyed by file name, length and modification time, so a changed
+ * executable is never served from a stale entry. The total number of cached
+ * page bytes is bounded by the <tt>nachos.conf</tt> key
+ * <tt>CoffCache.maxBytes</tt>; when it is exceeded, the least recently used
+ * executables are evicted. A budget of 0 (the default) disables the cache.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new COFF cache, whose budget is specified by the
+     * <tt>nachos.conf</tt> key <tt>CoffCache.maxBytes</tt>.
+     */
+    public CoffCache() {
+	this(Config.getInteger("CoffCache.maxBytes", 0));
+    }
+
+    /**
+     * Allocate a new COFF cache with the specified budget.
+     *
+     * @param	maxBytes	the maximum number of page bytes to cache.
+     */
+    public CoffCache(int maxBytes) {
+	Lib.assertTrue(maxBytes >= 0);
+
+	this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return a loader for the specified executable if it is cached. On a hit,
+     * the executable is closed and the returned loader serves every page from
+     * the cache.
+     *
+     * @param	name		the name of the executable.
+     * @param	executable	the open executable file.
+     * @return	a loader for the cached executable, or <tt>null</tt> if it is
+     *		not cached.
+     */
+    public Coff get(String name, OpenFile executable) {
+	Key key = makeKey(name, executable);
+	if (key == null)
+	    return null;
+
+	boolean intStatus = Machine.interrupt().disable();
+	Image image = images.get(key);
+	Machine.interrupt().restore(intStatus);
+
+	if (image == null)
+	    return null;
+
+	Lib.debug(dbgCache, "CoffCache hit: " + name);
+
+	executable.close();
+	return new CachedCoff(image, null);
+    }
+
+    /**
+     * Wrap a freshly parsed executable so that its pages are recorded as they
+     * are loaded. Once every initialized page has been loaded, the executable
+     * is added to the cache. If the executable cannot be cached, the loader is
+     * returned unchanged.
+     *
+     * @param	name		the name of the executable.
+     * @param	executable	the file from which <i>coff</i> was parsed.
+     * @param	coff		the parsed executable.
+     * @return	a loader that behaves exactly like <i>coff</i>.
+     */
+    public Coff record(String name, OpenFile executable, Coff coff) {
+	Key key = makeKey(name, executable);
+	if (key == null)
+	    return coff;
+
+	Image image = new Image(key, coff);
+	if (image.size > maxBytes)
+	    return coff;
+
+	if (image.pending == 0)
+	    insert(image);
+
+	return new CachedCoff(image, coff);
+    }
+
+    private Key makeKey(String name, OpenFile executable) {
+	if (maxBytes == 0)
+	    return null;
+
+	long stamp = executable.lastModified();
+	int length = executable.length();
+	if (stamp == -1 || length < 0)
+	    return null;
+
+	return new Key(name, length, stamp);
+    }
+
+    private void insert(Image image) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Image previous = images.put(image.key, image);
+	if (previous != null)
+	    usedBytes -= previous.size;
+	usedBytes += image.size;
+
+	for (Iterator<Image> i=images.values().iterator();
+	     usedBytes > maxBytes && i.hasNext(); ) {
+	    Image victim = i.next();
+	    Lib.debug(dbgCache, "CoffCache evict: " + victim.key.name);
+	    usedBytes -= victim.size;
+	    i.remove();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Key {
+	Key(String name, int length, long stamp) {
+	    this.name = name;
+	    this.length = length;
+	    this.stamp = stamp;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key))
+		return false;
+
+	    Key key = (Key) o;
+	    return (key.length == length && key.stamp == stamp &&
+		    key.name.equals(name));
+	}
+
+	public int hashCode() {
+	    return name.hashCode() ^ length ^ (int) (stamp ^ (stamp >>> 32));
+	}
+
+	String name;
+	int length;
+	long stamp;
+    }
+
+    /**
+     * The cached contents of an executable. While it is being recorded, the
+     * pages that have not yet been loaded are counted in <tt>pending</tt>.
+     */
+    private class Image {
+	Image(Key key, Coff coff) {
+	    this.key = key;
+	    entryPoint = coff.getEntryPoint();
+
+	    sections = new SectionImage[coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++) {
+		sections[s] = new SectionImage(coff.getSection(s));
+		if (sections[s].contents != null) {
+		    size += sections[s].contents.length;
+		    pending += sections[s].numPages;
+		}
+	    }
+	}
+
+	void pageRecorded() {
+	    if (--pending == 0)
+		insert(this);
+	}
+
+	Key key;
+	int entryPoint;
+	SectionImage[] sections;
+	int size = 0;
+	int pending = 0;
+    }
+
+    private static class SectionImage {
+	SectionImage(CoffSection section) {
+	    name = section.getName();
+	    executable = section.isExecutable();
+	    readOnly = section.isReadOnly();
+	    numPages = section.getLength();
+	    firstVPN = section.getFirstVPN();
+
+	    if (section.isInitialzed()) {
+		contents = new byte[numPages*pageSize];
+		recorded = new boolean[numPages];
+	    }
+	}
+
+	String name;
+	boolean executable, readOnly;
+	int numPages, firstVPN;
+	byte[] contents = null;
+	boolean[] recorded = null;
+    }
+
+    /**
+     * A loader backed by an <tt>Image</tt>. If <tt>source</tt> is not
+     * <tt>null</tt>, pages are loaded from it and recorded into the image;
+     * otherwise they are copied straight from the image.
+     */
+    private class CachedCoff extends Coff {
+	CachedCoff(Image image, Coff source) {
+	    this.image = image;
+	    this.source = source;
+
+	    entryPoint = image.entryPoint;
+	    sections = new CoffSection[image.sections.length];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = new CachedSection(this, s);
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	    if (source != null)
+		source.close();
+
+	    sections = null;
+	}
+
+	Image image;
+	Coff source;
+    }
+
+    private class CachedSection extends CoffSection {
+	CachedSection(CachedCoff coff, int sectionNumber) {
+	    super(coff, coff.image.sections[sectionNumber].name,
+		  coff.image.sections[sectionNumber].executable,
+		  coff.image.sections[sectionNumber].readOnly,
+		  coff.image.sections[sectionNumber].numPages,
+		  coff.image.sections[sectionNumber].firstVPN);
+
+	    this.sectionNumber = sectionNumber;
+	    initialized = (coff.image.sections[sectionNumber].contents != null);
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    loadPages(spn, ppn, 1);
+	}
+
+	public void loadPages(int spn, int ppn, int count) {
+	    Lib.assertTrue(count > 0 && spn>=0 && spn+count<=numPages);
+	    Lib.assertTrue(ppn>=0 &&
+			   ppn+count<=Machine.processor().getNumPhysPages());
+
+	    CachedCoff cached = (CachedCoff) coff;
+	    SectionImage section = cached.image.sections[sectionNumber];
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+	    int length = count*pageSize;
+
+	    if (cached.source != null) {
+		cached.source.getSection(sectionNumber).loadPages(spn, ppn,
+								  count);
+
+		for (int i=0; section.contents != null && i<count; i++) {
+		    if (!section.recorded[spn+i]) {
+			System.arraycopy(memory, paddr + i*pageSize,
+					 section.contents, (spn+i)*pageSize,
+					 pageSize);
+			section.recorded[spn+i] = true;
+			cached.image.pageRecorded();
+		    }
+		}
+	    }
+	    else if (section.contents != null) {
+		System.arraycopy(section.contents, spn*pageSize, memory, paddr,
+				 length);
+	    }
+	    else {
+		Arrays.fill(memory, paddr, paddr+length, (byte) 0);
+	    }
+	}
+
+	private int sectionNumber;
+    }
+
+    private int maxBytes;
+    private int usedBytes = 0;
+
+    private LinkedHashMap<Key, Image> images =
+	new LinkedHashMap<Key, Image>(16, 0.75f, true);
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgCache = 'a';
+}
@@ -7,6 +7,11 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>SynchConsole.batchOutput</tt> is
+ * <tt>true</tt>, writes through an <tt>OpenFile</tt> are sent in bursts,
+ * taking one send interrupt per burst instead of one per byte.
  */
 public class SynchConsole {
     /**
@@ -16,6 +21,8 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
+
+	batchOutput = Config.getBoolean("SynchConsole.batchOutput", false);
 	
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -57,6 +64,33 @@ public class SynchConsole {
 	return value;
     }
 
+    /**
+     * Return the bytes that have already arrived, up to the specified length
+     * or through the first newline, whichever comes first. Never blocks.
+     *
+     * @param	buf	the buffer in which to store the bytes.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the maximum number of bytes to read.
+     * @return	the number of bytes read.
+     */
+    public int readBytes(byte[] buf, int offset, int length) {
+	int amount = 0;
+	boolean intStatus = Machine.interrupt().disable();	
+	readLock.acquire();
+
+	if (charAvailable && length > 0) {
+	    charAvailable = false;
+	    readWait.P();
+
+	    amount = console.readBytes(buf, offset, length);
+	    Lib.assertTrue(amount > 0);
+	}
+
+	readLock.release();
+	Machine.interrupt().restore(intStatus);
+	return amount;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
@@ -83,6 +117,26 @@ public class SynchConsole {
 	writeLock.release();
     }
 
+    /**
+     * Send the specified bytes, in as few bursts as the console's transmit
+     * buffer allows. Blocks until every byte has been sent.
+     *
+     * @param	buf	the buffer containing the bytes to send.
+     * @param	offset	the offset of the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
+	writeLock.acquire();
+	while (length > 0) {
+	    int amount = console.writeBytes(buf, offset, length);
+	    writeWait.P();
+
+	    offset += amount;
+	    length -= amount;
+	}
+	writeLock.release();
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -97,6 +151,7 @@ public class SynchConsole {
     }
 
     private boolean charAvailable = false;
+    private boolean batchOutput;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
@@ -120,22 +175,18 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.readBytes(buf, offset, length);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
+	    if (batchOutput) {
+		SynchConsole.this.writeBytes(buf, offset, length);
+		return length;
+	    }
+
 	    for (int i=0; i<length; i++)
 		SynchConsole.this.writeByte(buf[offset+i]);
 	    
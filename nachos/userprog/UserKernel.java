@@ -25,10 +25,16 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+	coffCache = new CoffCache();
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
+
+	SyscallStats syscallStats = Machine.processor().getSyscallStats();
+	for (int i=0; i<UserProcess.syscallNames.length; i++)
+	    syscallStats.setName(i, UserProcess.syscallNames[i]);
+
 	pl = new Lock();
 	//pl.acquire();
 	pages = new LinkedList<Integer>();
@@ -103,9 +109,14 @@ public class UserKernel extends ThreadedKernel {
 	super.run();
 
 	UserProcess process = UserProcess.newUserProcess();
-	
-	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+
+	if (Machine.snapshot().isRestoring()) {
+	    Lib.assertTrue(process.restore(), "unable to restore snapshot");
+	}
+	else {
+	    String shellProgram = Machine.getShellProgramName();	
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	}
 
 	KThread.currentThread().finish();
     }
@@ -191,6 +202,8 @@ public class UserKernel extends ThreadedKernel {
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
+    /** Globally accessible reference to the cache of parsed executables. */
+    public static CoffCache coffCache;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
@@ -4,7 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.LinkedList;
 
 /**
@@ -289,13 +294,18 @@ public class UserProcess {
 	    return false;
 	}
 
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
-	    Lib.debug(dbgProcess, "\tcoff load failed");
-	    return false;
+	coff = UserKernel.coffCache.get(name, executable);
+	if (coff == null) {
+	    try {
+		coff = new Coff(executable);
+	    }
+	    catch (EOFException e) {
+		executable.close();
+		Lib.debug(dbgProcess, "\tcoff load failed");
+		return false;
+	    }
+
+	    coff = UserKernel.coffCache.record(name, executable, coff);
 	}
 
 	// make sure the sections are contiguous and start at page 0
@@ -386,12 +396,20 @@ public class UserProcess {
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 		      + " section (" + section.getLength() + " pages)");
 
-	    for (int i=0; i<section.getLength(); i++) {
+	    for (int i=0; i<section.getLength(); ) {
 		int vpn = section.getFirstVPN()+i;
 		pageTable[vpn].readOnly = section.isReadOnly();
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, pageTable[vpn].ppn);
+		// load runs of physically contiguous pages together
+		int run = 1;
+		while (i+run < section.getLength() &&
+		       pageTable[vpn+run].ppn == pageTable[vpn].ppn+run) {
+		    pageTable[vpn+run].readOnly = section.isReadOnly();
+		    run++;
+		}
+
+		section.loadPages(i, pageTable[vpn].ppn, run);
+		i += run;
 	    }
 	}
 	
@@ -423,6 +441,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a restored process carries on where it left off
+	if (restoredRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, restoredRegisters[i]);
+	    restoredRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -443,9 +469,10 @@ public class UserProcess {
     	if(processID != 0)
     		return -1;
 
-	Machine.halt();
+	recordSyscall();
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
     
@@ -464,12 +491,7 @@ public class UserProcess {
     		byte[] data = new byte[4];
     		if(4 != readVirtualMemory(argv + 4*i, data))
     			return -1;
-    		add[i] = 0;
-    		for(int j = 0; j < 4; j++) {
-    			add[i] = (add[i]|data[3-j]);
-    			if(j != 3)
-    				add[i] = add[i] << 8;
-    		}
+    		add[i] = Lib.bytesToInt(data, 0);
     	}
     	String[] args = new String[argc];
     	for(int i = 0; i < argc; i++) {
@@ -533,6 +555,7 @@ public class UserProcess {
     		if(parent.setExitCode(this.processID, status) != 1)
     			return -1;
     	}
+    	recordSyscall();
     	if(processID == 0)
     		Kernel.kernel.terminate();
     	thread.finish();
@@ -549,6 +572,27 @@ public class UserProcess {
     	return 0;
     }
     
+    /**
+     * Give this process a file descriptor for the specified stream, such as a
+     * network connection. Writes to a stream may wait for the remote end, so
+     * they do not hold the lock that serializes other writes, and a stream is
+     * not tracked by the kernel's table of open files.
+     *
+     * @param	stream	the stream to add.
+     * @return	the new file descriptor, or -1 if this process has too many
+     *		open files.
+     */
+    protected int addStream(OpenFile stream) {
+		for (int allo = 0; allo < 16; allo++) {
+			if (files[allo] == null) {
+				files[allo] = new FileDescriptor(null, stream);
+				files[allo].stream = true;
+				return allo;
+			}
+		}
+		return -1;
+	}
+
     private int handleCreate(int address) {
 		if (address < 0)
 			return -1;
@@ -652,12 +696,16 @@ public class UserProcess {
 			if (toRead < data.length) {
 				return -1;
 			} else {
-				stdLock.acquire();
+				if (!ftoRead.stream)
+					stdLock.acquire();
 				int numBytesNewlyWrited = ftoRead.file.write(data, 0,
 						data.length);
-				stdLock.release();
-				read += toRead;
-				address += toRead;
+				if (!ftoRead.stream)
+					stdLock.release();
+				if (numBytesNewlyWrited < 0)
+					return -1;
+				read += numBytesNewlyWrited;
+				address += numBytesNewlyWrited;
 				if (numBytesNewlyWrited < toRead)
 					break;
 			}
@@ -678,7 +726,7 @@ public class UserProcess {
 		toClose.file.close();
 		files[index] = null;
 
-		if (UserKernel.closeFile(filename)) {
+		if (toClose.stream || UserKernel.closeFile(filename)) {
 			return 0;
 		}
 
@@ -713,6 +761,12 @@ public class UserProcess {
 	syscallClose = 8,
 	syscallUnlink = 9;
 
+    /** The names of the syscalls, for the syscall statistics. */
+    static final String[] syscallNames = {
+	"halt", "exit", "exec", "join", "creat", "open", "read", "write",
+	"close", "unlink"
+    };
+
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
      * <i>syscall</i> argument identifies which syscall the user executed:
@@ -786,7 +840,15 @@ public class UserProcess {
 
 	switch (cause) {
 	case Processor.exceptionSyscall:
-	    int result = handleSyscall(processor.readRegister(Processor.regV0),
+	    if (parent == null && ++numSyscalls == snapshotSyscall &&
+		Machine.snapshot().isSaving())
+		saveSnapshot();
+
+	    syscall = processor.readRegister(Processor.regV0);
+	    syscallStartTicks = Machine.timer().getTime();
+	    syscallStartTime = System.nanoTime();
+
+	    int result = handleSyscall(syscall,
 				       processor.readRegister(Processor.regA0),
 				       processor.readRegister(Processor.regA1),
 				       processor.readRegister(Processor.regA2),
@@ -794,6 +856,7 @@ public class UserProcess {
 				       );
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
+	    recordSyscall();
 	    break;				       
 				       
 	default:
@@ -804,6 +867,146 @@ public class UserProcess {
 	}
     }
 
+    /**
+     * Save a snapshot of the machine with this process in it, in the middle
+     * of a syscall. The process must be the first process and have no
+     * children. The syscall instruction is saved unexecuted, so the restored
+     * process makes the syscall again.
+     *
+     * <p>
+     * The kernel state saved is this process's page table, the user
+     * registers, and the files it has open, with their positions. Network
+     * streams cannot be saved.
+     */
+    private void saveSnapshot() {
+	if (!children.isEmpty()) {
+	    System.out.println("Snapshot not saved: process has children");
+	    return;
+	}
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+
+	try {
+	    out.writeUTF(thread.getName());
+
+	    out.writeInt(numPages);
+	    for (int i=0; i<numPages; i++) {
+		TranslationEntry entry = pageTable[i];
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeBoolean(entry.valid);
+		out.writeBoolean(entry.readOnly);
+		out.writeBoolean(entry.used);
+		out.writeBoolean(entry.dirty);
+	    }
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		out.writeInt(Machine.processor().readRegister(i));
+
+	    for (int i=0; i<files.length; i++) {
+		if (files[i] == null) {
+		    out.writeByte(fileNone);
+		}
+		else if (files[i].stream) {
+		    System.out.println("Snapshot not saved: process has a "
+				       + "network stream open");
+		    return;
+		}
+		else if (files[i].filename == null) {
+		    out.writeByte(fileConsole);
+		}
+		else {
+		    out.writeByte(fileOpen);
+		    out.writeUTF(files[i].filename);
+		    out.writeInt(files[i].file.tell());
+		}
+	    }
+
+	    out.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	Machine.snapshot().save(bytes.toByteArray());
+    }
+
+    /**
+     * Restore a process from the snapshot named by
+     * <tt>Snapshot.restore</tt>, and fork a thread to run it. The process
+     * carries on from the syscall it was making when the snapshot was saved.
+     *
+     * @return	<tt>true</tt> if the process was restored.
+     */
+    public boolean restore() {
+	byte[] state = Machine.snapshot().restore();
+	if (state == null)
+	    return false;
+
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+	String name;
+
+	try {
+	    name = in.readUTF();
+
+	    numPages = in.readInt();
+	    pageTable = new TranslationEntry[numPages];
+
+	    UserKernel.pl.acquire();
+	    for (int i=0; i<numPages; i++) {
+		pageTable[i] = new TranslationEntry(in.readInt(), in.readInt(),
+						    in.readBoolean(),
+						    in.readBoolean(),
+						    in.readBoolean(),
+						    in.readBoolean());
+		UserKernel.pages.remove(new Integer(pageTable[i].ppn));
+	    }
+	    UserKernel.pl.release();
+
+	    restoredRegisters = new int[Processor.numUserRegisters];
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		restoredRegisters[i] = in.readInt();
+
+	    for (int i=0; i<files.length; i++) {
+		int type = in.readByte();
+		if (type == fileNone) {
+		    files[i] = null;
+		}
+		else if (type == fileOpen) {
+		    String fileName = in.readUTF();
+		    OpenFile file = ThreadedKernel.fileSystem.open(fileName,
+								   false);
+		    if (file == null || !UserKernel.createFile(fileName))
+			return false;
+
+		    file.seek(in.readInt());
+		    files[i] = new FileDescriptor(fileName, file);
+		}
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("Snapshot is truncated");
+	    return false;
+	}
+
+	thread = new UThread(this);
+	thread.setName(name).fork();
+
+	return true;
+    }
+
+    /**
+     * Record the syscall being handled in the processor's syscall statistics.
+     * Called when the syscall returns, or, for syscalls that do not return,
+     * just before the process or the machine stops.
+     */
+    private void recordSyscall() {
+	Machine.processor().getSyscallStats().record(processID, syscall,
+	    Machine.timer().getTime() - syscallStartTicks,
+	    System.nanoTime() - syscallStartTime);
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
 
@@ -833,6 +1036,7 @@ public class UserProcess {
     public class FileDescriptor {
 		public String filename = null;
 		public OpenFile file = null;
+		public boolean stream = false;
 
 		public FileDescriptor(String filename, OpenFile file) {
 			this.file = file;
@@ -843,6 +1047,22 @@ public class UserProcess {
     private static Lock stdLock = null;
     private FileDescriptor[] files = null;
     private int processID;
+    /** The number of syscalls this process has made. */
+    private int numSyscalls = 0;
+    /** The user registers to start with, if restored from a snapshot. */
+    private int[] restoredRegisters = null;
+
+    /**
+     * The syscall of the first process at which to save a snapshot, if
+     * <tt>Snapshot.save</tt> is set.
+     */
+    private static final int snapshotSyscall =
+	Config.getInteger("UserKernel.snapshotSyscall", 1);
+    private static final int fileNone = 0, fileConsole = 1, fileOpen = 2;
+
+    /** The syscall being handled, and when it started. */
+    private int syscall;
+    private long syscallStartTicks, syscallStartTime;
     private static int process = 0;
     private UThread thread = null;
     private LinkedList<Child> children = null;